@@ -1,18 +1,35 @@
 package boot;
 
 import controller.AuthInterceptor;
+import controller.ReadinessInterceptor;
+import controller.SnapshotInterceptor;
 import eventhandler.EventHandler;
 import eventhandler.HandlesEvents;
 import eventhandler.events.AppConfigChangedEvent;
 import eventhandler.events.UserRegisteredEvent;
 import eventhandler.listeners.ConfigNotifier;
 import eventhandler.listeners.WishlistInitializer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.ApplicationAvailability;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import persistence.CachingPersistenceGateway;
+import persistence.JdbcPersistenceGateway;
+import persistence.JournalPersistenceGateway;
+import persistence.MappedPersistenceGateway;
+import persistence.MeteredPersistenceGateway;
 import persistence.PersistenceInterface;
 import persistence.SerPersistenceGateway;
+import persistence.arena.Arena;
+import persistence.changes.ChangeFeed;
+import persistence.codec.BinaryRowCodec;
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+import persistence.metrics.PersistenceMetrics;
+import persistence.sequence.SequenceAllocator;
 import persistence.relations.RelationMapper;
 import presenter.*;
 import usecases.SystemFacade;
@@ -31,6 +48,7 @@ import usecases.items.ItemEditor;
 import usecases.items.ItemFetcher;
 import usecases.meeting.MeetingFactory;
 import usecases.meeting.MeetingManager;
+import usecases.query.QueryCache;
 import usecases.rules.MaxIncompleteTransactionRule;
 import usecases.rules.MaxTransactionPerWeekRule;
 import usecases.rules.NoMoreBorrowThanLendRule;
@@ -44,6 +62,9 @@ import usecases.users.CreditManager;
 import usecases.users.PermissionsManager;
 import usecases.users.UserManager;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -51,31 +72,154 @@ import java.util.List;
 @Configuration
 public class SpringConfig implements WebMvcConfigurer {
 
+    /**
+     * How entities are stored, either "ser" (one file per type), "journal" (snapshot plus journal),
+     * "mapped" (memory-mapped segment files, read through the page cache instead of the heap)
+     * or "jdbc" (one table per type in the configured datasource).
+     */
+    @Value("${persistence.storage:ser}")
+    private String storageMode;
+
+    /**
+     * How entities are turned into bytes, either "java" (Java serialization) or "binary" (hand-written entity codecs,
+     * which still read files saved with Java serialization). Switching to "binary" cannot be undone: every file it
+     * rewrites can no longer be read with "java".
+     */
+    @Value("${persistence.codec:java}")
+    private String codecMode;
+
+    /**
+     * How commits to the "ser" and "journal" storage are saved, either "direct" (each by its own caller),
+     * "group" (commits that arrive within the window are saved in one write, and each caller waits for its own)
+     * or "write-behind" (commits return straight away, and are saved within the window).
+     */
+    @Value("${persistence.commit.mode:direct}")
+    private String commitMode;
+
+    /**
+     * How long, in milliseconds, a group of commits waits for more commits to join it.
+     */
+    @Value("${persistence.commit.window:5}")
+    private long commitWindow;
+
+    /**
+     * How many commits are saved in one group at most.
+     */
+    @Value("${persistence.commit.group-size:64}")
+    private int commitGroupSize;
+
+    /**
+     * Whether the rows that the "ser" and "journal" storage keep in memory are held off the heap.
+     */
+    @Value("${persistence.cache.off-heap:false}")
+    private boolean cacheOffHeap;
+
+    /**
+     * The most megabytes of rows held off the heap at once. Rows past it are held on the heap.
+     */
+    @Value("${persistence.cache.off-heap.max-mb:256}")
+    private long cacheOffHeapMaxMb;
+
+    /**
+     * Whether every call to the persistence layer is timed and counted, and shown at /admin/metrics/persistence.
+     */
+    @Value("${persistence.metrics.enabled:true}")
+    private boolean metricsEnabled;
+
+    /**
+     * Whether the changes committed to the "ser" and "journal" storage are also appended to the log of the change feed,
+     * so that named subscriptions can replay them. They are published to in-process listeners either way.
+     */
+    @Value("${persistence.changes.log:false}")
+    private boolean changesLogged;
+
+    /**
+     * How many queries the item fetcher and the transaction fetcher each keep the results of, or 0 to keep none.
+     * Only the "ser" and "journal" storage can tell when the results kept have to be worked out again.
+     */
+    @Value("${persistence.query-cache.size:256}")
+    private int queryCacheSize;
+
+    /**
+     * The configured datasource, which the "jdbc" storage saves to.
+     */
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * Whether the application is ready to accept traffic, which it is once the warm-up has loaded the hot tables.
+     */
+    @Autowired
+    private ApplicationAvailability availability;
+
     /**
      * Adds interceptors to run prior to controller methods.
+     * Requests are turned away until the application is ready, and every request after that reads from one snapshot
+     * of the persistence layer, which is pinned before anything else runs.
      * @param registry The registry of all interceptors
      */
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new ReadinessInterceptor(this.availability));
+        registry.addInterceptor(new SnapshotInterceptor(this.getPersistence()));
         registry.addInterceptor(new AuthInterceptor(this.getSystemFacade()));
     }
 
     /**
-     * instantiate SerPersistenceInterface
-     * @return  new SerPersistenceGateway
+     * instantiate PersistenceInterface, which caches file-based storage in memory, or saves straight to the database.
+     * Its close method is called when the application shuts down, which saves any commits that are still queued,
+     * or, for the "mapped" storage, forces the mapped segments to disk.
+     * Unless metrics are turned off, the cache and the storage behind it are each metered under their own label.
+     * @return  new CachingPersistenceGateway
      */
     @Bean
     public PersistenceInterface getPersistence() {
-        return new SerPersistenceGateway();
+        RowCodec codec = this.getRowCodec();
+        if (this.storageMode.equals("mapped")) return this.metered(new MappedPersistenceGateway(codec), "mapped");
+        if (this.storageMode.equals("jdbc")) return this.metered(new JdbcPersistenceGateway(this.dataSource, codec), "jdbc");
+        SequenceAllocator keys = new SequenceAllocator();
+        PersistenceInterface storage = this.metered(this.storageMode.equals("journal")
+                ? new JournalPersistenceGateway(1000, 30, codec)
+                : new SerPersistenceGateway(codec, keys), "storage");
+        Arena arena = new Arena(this.cacheOffHeap, Arena.DEFAULT_CHUNK, this.cacheOffHeapMaxMb << 20);
+        CachingPersistenceGateway cache = this.commitMode.equals("direct")
+                ? new CachingPersistenceGateway(storage, codec, keys, 1, 0, false, arena)
+                : new CachingPersistenceGateway(storage, codec, keys, this.commitGroupSize, this.commitWindow,
+                this.commitMode.equals("write-behind"), arena);
+        cache.setChangeFeed(this.getChangeFeed());
+        return this.metered(cache, "cache");
     }
 
     /**
-     * instantiate RelationMapper
+     * instantiate ChangeFeed, which the persistence layer publishes every committed change to
+     * @return new ChangeFeed
+     */
+    @Bean
+    public ChangeFeed getChangeFeed() {
+        try {
+            return this.changesLogged ? new ChangeFeed(this.getRowCodec()) : new ChangeFeed(this.getRowCodec(), null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * instantiate PersistenceMetrics, which every metered gateway records into
+     * @return new PersistenceMetrics
+     */
+    @Bean
+    public PersistenceMetrics getPersistenceMetrics() {
+        return new PersistenceMetrics();
+    }
+
+    /**
+     * instantiate RelationMapper, which indexes reverse relations from the change feed when the storage publishes to it
      * @return new RelationMapper
      */
     @Bean
     public RelationMapper getRelation() {
-        return new RelationMapper(this.getPersistence());
+        if (this.storageMode.equals("mapped") || this.storageMode.equals("jdbc")) return new RelationMapper(this.getPersistence());
+        return new RelationMapper(this.getPersistence(), this.getChangeFeed());
     }
 
     /**
@@ -97,12 +241,12 @@ public class SpringConfig implements WebMvcConfigurer {
     }
 
     /**
-     * instantiate TransactionFetcher
+     * instantiate TransactionFetcher, which keeps the results of the queries it runs unless the size is 0
      * @return new TransactionFetcher
      */
     @Bean
     public TransactionFetcher getTransactionFetcher() {
-        return new TransactionFetcher(this.getPersistence(), this.getRelation());
+        return new TransactionFetcher(this.getPersistence(), this.getRelation(), this.queryCache());
     }
 
     /**
@@ -134,12 +278,12 @@ public class SpringConfig implements WebMvcConfigurer {
     }
 
     /**
-     * instantiate ItemFetcher
+     * instantiate ItemFetcher, which keeps the results of the queries it runs unless the size is 0
      * @return new ItemFetcher
      */
     @Bean
     public ItemFetcher getItemFetcher() {
-        return new ItemFetcher(this.getPersistence(), this.getRelation());
+        return new ItemFetcher(this.getPersistence(), this.getRelation(), this.queryCache());
     }
 
     /**
@@ -430,4 +574,27 @@ public class SpringConfig implements WebMvcConfigurer {
     public TransactionPresenter getTransactionPresenter() {
         return new TransactionPresenter(getTradingFacade(), getSystemFacade());
     }
+
+    /**
+     * The codec that the persistence layer turns entities into bytes with.
+     */
+    private RowCodec getRowCodec() {
+        return this.codecMode.equals("binary") ? new BinaryRowCodec() : new JavaRowCodec();
+    }
+
+    /**
+     * A new cache for the results of the queries of one fetcher, or null if the size is 0.
+     */
+    private QueryCache queryCache() {
+        return this.queryCacheSize > 0 ? new QueryCache(this.getPersistence(), this.queryCacheSize) : null;
+    }
+
+    /**
+     * Meters a gateway under a label, unless metrics are turned off.
+     */
+    private PersistenceInterface metered(PersistenceInterface gateway, String label) {
+        if (!this.metricsEnabled) return gateway;
+        return new MeteredPersistenceGateway(gateway, this.getPersistenceMetrics().recorder(label));
+    }
+
 }
@@ -0,0 +1,108 @@
+package boot;
+
+import entities.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+import persistence.PersistenceInterface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Loads the entity tables into the persistence layer at startup, so that the first requests after a deploy do not
+ * each have to load them.
+ * <p>
+ * Tables are loaded in parallel on a bounded pool, the hot tables first. Spring only starts accepting traffic once
+ * every runner has returned, and this one returns once the hot tables are loaded (see ReadinessInterceptor).
+ * The other tables carry on loading in the background. How long each table took is recorded by the persistence
+ * metrics, as its "preload" call. A table that cannot be loaded is loaded on first use instead.
+ */
+@Component
+public class WarmUp implements ApplicationRunner {
+
+    /**
+     * The tables that almost every page reads, which have to be loaded before traffic is accepted.
+     */
+    private static final List<Class<?>> HOT = Arrays.asList(User.class, Item.class, WishList.class, Tag.class);
+
+    /**
+     * The tables that are loaded after them, while traffic is already accepted.
+     */
+    private static final List<Class<?>> WARM = Arrays.asList(Trade.class, Transaction.class, Meeting.class);
+
+    /**
+     * Class dependencies
+     */
+    @Autowired
+    private PersistenceInterface gateway;
+
+    /**
+     * How many tables are loaded at once.
+     */
+    @Value("${persistence.warmup.threads:4}")
+    private int threads;
+
+
+    /**
+     * Loads every table, and waits until the hot ones are loaded.
+     *
+     * @param args The arguments the application was started with
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(this.threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "warm-up-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        //The pool takes tables in the order they are submitted, so the hot ones are loaded first
+        List<Future<?>> hot = new ArrayList<>();
+        for (Class<?> type : HOT) hot.add(pool.submit(() -> this.load(type)));
+        for (Class<?> type : WARM) pool.submit(() -> this.load(type));
+        pool.shutdown();
+
+        for (Future<?> future : hot) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                //Cannot happen, since load catches its own errors
+            }
+        }
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    private void load(Class<?> type) {
+
+        try {
+            this.gateway.preload(type);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,41 @@
+package controller;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import persistence.metrics.PersistenceMetrics;
+
+
+@Controller
+public class MetricsController {
+
+    /**
+     * Class dependencies
+     */
+    private final PersistenceMetrics persistenceMetrics;
+
+
+    /**
+     * Creates a new metrics controller
+     *
+     * @param persistenceMetrics What the persistence gateways have recorded.
+     */
+    public MetricsController(PersistenceMetrics persistenceMetrics) {
+        this.persistenceMetrics = persistenceMetrics;
+    }
+
+
+    /**
+     * Shows what the persistence gateways have done since the application started, in the Prometheus text format,
+     * so that it can be scraped. Like every page under /admin, only admins can see it.
+     *
+     * @return The metrics, one sample per line.
+     */
+    @GetMapping(value = "/admin/metrics/persistence", produces = "text/plain; version=0.0.4; charset=utf-8")
+    @ResponseBody
+    public String persistence() {
+        return this.persistenceMetrics.toText();
+    }
+
+
+}
@@ -0,0 +1,47 @@
+package controller;
+
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Turns requests away with 503 Service Unavailable until the application is ready to accept traffic,
+ * which is once every startup runner (such as the table warm-up) has finished.
+ */
+public class ReadinessInterceptor implements HandlerInterceptor {
+
+    ApplicationAvailability availability;
+
+    /**
+     * Instantiates this class
+     *
+     * @param availability The availability state of the application
+     */
+    public ReadinessInterceptor(ApplicationAvailability availability) {
+        this.availability = availability;
+    }
+
+    /**
+     * Handles requests before hitting controller methods.
+     *
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param handler A handler object
+     * @return True if the application is ready, false if the request was turned away
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+
+        if (this.availability.getReadinessState() == ReadinessState.ACCEPTING_TRAFFIC) return true;
+
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+        return false;
+
+    }
+
+}
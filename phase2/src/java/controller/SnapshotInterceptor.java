@@ -0,0 +1,54 @@
+package controller;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+import persistence.PersistenceInterface;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Pins every read made while handling a request to one snapshot of the persistence layer,
+ * so that pages which scan whole tables see one consistent state without holding up writers.
+ */
+public class SnapshotInterceptor implements HandlerInterceptor {
+
+    PersistenceInterface gateway;
+
+    /**
+     * Instantiates this class
+     *
+     * @param gateway PersistenceInterface
+     */
+    public SnapshotInterceptor(PersistenceInterface gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Pins the snapshot before the request is handled.
+     *
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param handler A handler object
+     * @return Always true, so that the request is handled further
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        this.gateway.beginSnapshot();
+        return true;
+    }
+
+    /**
+     * Releases the snapshot once the request has been handled, whether or not it failed.
+     *
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @param handler A handler object
+     * @param ex The exception thrown while handling the request, if any
+     */
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        this.gateway.endSnapshot();
+    }
+
+}
@@ -1,8 +1,13 @@
 package entities;
 
+import persistence.arena.Slice;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 
 /**
@@ -26,6 +31,11 @@ public class History extends AbstractBaseEntity {
      */
     private String displayString;
 
+    /**
+     * Holds the display information as UTF-8 text, if it has not been decoded into displayString yet
+     */
+    private transient Slice encodedDisplayString;
+
     /**
      * Whether this history entity has been undone.
      */
@@ -36,6 +46,11 @@ public class History extends AbstractBaseEntity {
      */
     private final Map<String, Serializable> data = new HashMap<>();
 
+    /**
+     * Decodes the data related to the history, if it has not been added to data yet
+     */
+    private transient Supplier<Map<String, Serializable>> dataReader;
+
     /**
      * Returns the unique id of the this entity.
      *
@@ -80,6 +95,11 @@ public class History extends AbstractBaseEntity {
      * @return A serializable piece of data.
      */
     public Map<String, Serializable> getData() {
+        if (this.dataReader != null) {
+            Supplier<Map<String, Serializable>> reader = this.dataReader;
+            this.dataReader = null;
+            this.data.putAll(reader.get());
+        }
         return this.data;
     }
 
@@ -90,7 +110,7 @@ public class History extends AbstractBaseEntity {
      * @return The data
      */
     public Object getData(String key) {
-        return this.data.get(key);
+        return this.getData().get(key);
     }
 
     /**
@@ -100,7 +120,17 @@ public class History extends AbstractBaseEntity {
      * @param value The value of the piece of data
      */
     public void addData(String key, Serializable value) {
-        this.data.put(key, value);
+        this.getData().put(key, value);
+    }
+
+    /**
+     * Sets where the data associated with this action comes from, when it is still encoded.
+     * It is only decoded when the data is first read, and added to any data that was added before.
+     *
+     * @param dataReader Decodes the data
+     */
+    public void setDataReader(Supplier<Map<String, Serializable>> dataReader) {
+        this.dataReader = dataReader;
     }
 
     /**
@@ -127,6 +157,10 @@ public class History extends AbstractBaseEntity {
      * @return A string representing the display name of this action.
      */
     public String getDisplayString() {
+        if (this.encodedDisplayString != null) {
+            this.displayString = this.encodedDisplayString.utf8();
+            this.encodedDisplayString = null;
+        }
         return this.displayString;
     }
 
@@ -138,6 +172,31 @@ public class History extends AbstractBaseEntity {
      */
     public void setDisplayString(String displayString) {
         this.displayString = displayString;
+        this.encodedDisplayString = null;
+    }
+
+
+    /**
+     * Sets the display value of this historical action to UTF-8 text, which is only decoded when it is first read.
+     *
+     * @param displayString The encoded display value, or null for none
+     */
+    public void setEncodedDisplayString(Slice displayString) {
+        this.displayString = null;
+        this.encodedDisplayString = displayString;
+    }
+
+
+    /**
+     * Decodes whatever is still encoded before this action is serialized, since the encoded values are not saved.
+     *
+     * @param output The stream this action is written to
+     * @throws IOException if the action cannot be written
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        this.getDisplayString();
+        this.getData();
+        output.defaultWriteObject();
     }
 
 }
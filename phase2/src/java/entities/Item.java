@@ -1,7 +1,12 @@
 package entities;
 
+import persistence.arena.Slice;
+import persistence.index.HasColumns;
+import persistence.index.HasIndexes;
 import persistence.relations.HasRelations;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,7 +15,7 @@ import java.util.Map;
  * A class that represents an item
  */
 
-public class Item extends AbstractBaseEntity implements HasRelations {
+public class Item extends AbstractBaseEntity implements HasRelations, HasIndexes, HasColumns {
 
     /**
      * The id of this item which is unique
@@ -22,6 +27,11 @@ public class Item extends AbstractBaseEntity implements HasRelations {
      */
     private String name;
 
+    /**
+     * The name of this item as UTF-8 text, if it has not been decoded into name yet
+     */
+    private transient Slice encodedName;
+
     /**
      * Its owner's id
      */
@@ -37,6 +47,11 @@ public class Item extends AbstractBaseEntity implements HasRelations {
      */
     private String description;
 
+    /**
+     * The description of this item as UTF-8 text, if it has not been decoded into description yet
+     */
+    private transient Slice encodedDescription;
+
     /**
      * Whether the item is visible
      */
@@ -121,6 +136,10 @@ public class Item extends AbstractBaseEntity implements HasRelations {
      * @return the item's description
      */
     public String getDescription() {
+        if (this.encodedDescription != null) {
+            this.description = this.encodedDescription.utf8();
+            this.encodedDescription = null;
+        }
         return description;
     }
 
@@ -130,6 +149,10 @@ public class Item extends AbstractBaseEntity implements HasRelations {
      * @return the item's name
      */
     public String getName() {
+        if (this.encodedName != null) {
+            this.name = this.encodedName.utf8();
+            this.encodedName = null;
+        }
         return name;
     }
 
@@ -140,6 +163,17 @@ public class Item extends AbstractBaseEntity implements HasRelations {
      */
     public void setDescription(String description) {
         this.description = description;
+        this.encodedDescription = null;
+    }
+
+    /**
+     * The methods to set the description to UTF-8 text, which is only decoded when the description is first read
+     *
+     * @param description the encoded description, or null for no description
+     */
+    public void setEncodedDescription(Slice description) {
+        this.description = null;
+        this.encodedDescription = description;
     }
 
     /**
@@ -198,6 +232,17 @@ public class Item extends AbstractBaseEntity implements HasRelations {
      */
     public void setName(String name) {
         this.name = name;
+        this.encodedName = null;
+    }
+
+    /**
+     * The methods to set the name to UTF-8 text, which is only decoded when the name is first read
+     *
+     * @param name the encoded name, or null for no name
+     */
+    public void setEncodedName(Slice name) {
+        this.name = null;
+        this.encodedName = name;
     }
 
     /**
@@ -295,10 +340,10 @@ public class Item extends AbstractBaseEntity implements HasRelations {
     public String toString() {
         return "Item{" +
                 "id=" + id +
-                ", name='" + name + '\'' +
+                ", name='" + getName() + '\'' +
                 ", ownerId=" + ownerId +
                 ", holderId=" + holderId +
-                ", description='" + description + '\'' +
+                ", description='" + getDescription() + '\'' +
                 ", visibility=" + visibility +
                 ", softDelete=" + softDelete +
                 ", isReserved=" + isReserved +
@@ -319,4 +364,50 @@ public class Item extends AbstractBaseEntity implements HasRelations {
     }
 
 
+    /**
+     * Get the fields of item that can be looked up with findBy
+     *
+     * @return A map of the indexed fields and their values
+     */
+    @Override
+    public Map<String, Object> getIndexedFields() {
+        Map<String, Object> indexedFields = new HashMap<>();
+        indexedFields.put("ownerId", this.ownerId);
+        indexedFields.put("holderId", this.holderId);
+        return indexedFields;
+    }
+
+
+    /**
+     * Get the int and boolean fields of item that queries can read without decoding the item
+     *
+     * @return A map of the columns and their values
+     */
+    @Override
+    public Map<String, Object> getColumns() {
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("ownerId", this.ownerId);
+        columns.put("holderId", this.holderId);
+        columns.put("price", this.price);
+        columns.put("visibility", this.visibility);
+        columns.put("softDelete", this.softDelete);
+        columns.put("isReserved", this.isReserved);
+        columns.put("forSale", this.forSale);
+        return columns;
+    }
+
+
+    /**
+     * Decodes the text that is still encoded before this item is serialized, since the encoded text is not saved
+     *
+     * @param output the stream this item is written to
+     * @throws IOException if the item cannot be written
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        getName();
+        getDescription();
+        output.defaultWriteObject();
+    }
+
+
 }
@@ -216,6 +216,42 @@ public class Meeting extends AbstractBaseEntity implements HasRelations {
         this.hasSecondMeeting = hasSecondMeeting;
     }
 
+    /**
+     * get every time suggested for this meeting, oldest first
+     *
+     * @return a read-only list of the suggested times
+     */
+    public List<LocalDate> getTimes() {
+        return Collections.unmodifiableList(this.times);
+    }
+
+    /**
+     * get every location suggested for this meeting, oldest first
+     *
+     * @return a read-only list of the suggested locations
+     */
+    public List<String> getLocations() {
+        return Collections.unmodifiableList(this.locations);
+    }
+
+    /**
+     * get the id of the user behind every edit of this meeting, oldest first
+     *
+     * @return a read-only list of editor ids
+     */
+    public List<Integer> getEditorIds() {
+        return Collections.unmodifiableList(this.editorIds);
+    }
+
+    /**
+     * get the ids of the users who confirmed this meeting
+     *
+     * @return a read-only set of user ids
+     */
+    public Set<Integer> getConfirmedBy() {
+        return Collections.unmodifiableSet(this.confirmedBy);
+    }
+
     /**
      * A method to get the key to this item, which is the id
      *
@@ -1,5 +1,6 @@
 package entities;
 
+import persistence.index.HasIndexes;
 import persistence.relations.HasRelations;
 
 import java.util.HashMap;
@@ -14,7 +15,7 @@ import java.util.Map;
  * @version July 02, 2020
  */
 
-public class Trade extends AbstractBaseEntity implements HasRelations {
+public class Trade extends AbstractBaseEntity implements HasRelations, HasIndexes {
     /**
      * The id of lender
      */
@@ -189,5 +190,19 @@ public class Trade extends AbstractBaseEntity implements HasRelations {
         return relationMap;
     }
 
+
+    /**
+     * Get the fields of trade that can be looked up with findBy
+     *
+     * @return A map of the indexed fields and their values
+     */
+    @Override
+    public Map<String, Object> getIndexedFields() {
+        Map<String, Object> indexedFields = new HashMap<>();
+        indexedFields.put("borrowerId", this.borrowerId);
+        indexedFields.put("lenderId", this.lenderId);
+        return indexedFields;
+    }
+
 }
 
@@ -1,5 +1,6 @@
 package entities;
 
+import persistence.index.HasIndexes;
 import persistence.relations.HasRelations;
 
 import java.util.HashMap;
@@ -11,7 +12,7 @@ import java.util.Map;
  *
  * @version July 02, 2020
  */
-public class User extends AbstractBaseEntity implements HasRelations {
+public class User extends AbstractBaseEntity implements HasRelations, HasIndexes {
 
     /**
      * User's id which is unique
@@ -218,5 +219,18 @@ public class User extends AbstractBaseEntity implements HasRelations {
         return relationMap;
     }
 
+
+    /**
+     * Get the fields of user that can be looked up with findBy
+     *
+     * @return A map of the indexed fields and their values
+     */
+    @Override
+    public Map<String, Object> getIndexedFields() {
+        Map<String, Object> indexedFields = new HashMap<>();
+        indexedFields.put("name", this.name);
+        return indexedFields;
+    }
+
 }
 
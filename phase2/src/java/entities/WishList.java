@@ -1,7 +1,11 @@
 package entities;
 
+import persistence.index.HasIndexes;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A class that represents the wishlist
@@ -12,7 +16,7 @@ import java.util.List;
  */
 
 
-public class WishList extends AbstractBaseEntity {
+public class WishList extends AbstractBaseEntity implements HasIndexes {
     /**
      * The list of item in this wishList, stored as item name
      */
@@ -119,4 +123,17 @@ public class WishList extends AbstractBaseEntity {
                 '}';
     }
 
+
+    /**
+     * Get the fields of wishlist that can be looked up with findBy
+     *
+     * @return A map of the indexed fields and their values
+     */
+    @Override
+    public Map<String, Object> getIndexedFields() {
+        Map<String, Object> indexedFields = new HashMap<>();
+        indexedFields.put("ownerId", this.ownerId);
+        return indexedFields;
+    }
+
 }
@@ -0,0 +1,1728 @@
+package persistence;
+
+import persistence.arena.Arena;
+import persistence.arena.Slice;
+import persistence.changes.Change;
+import persistence.changes.ChangeFeed;
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.index.ColumnStore;
+import persistence.index.Columns;
+import persistence.index.HasColumns;
+import persistence.index.HasIndexes;
+import persistence.index.IntIndex;
+import persistence.index.SecondaryIndex;
+import persistence.index.SharedArray;
+import persistence.index.SharedIntArray;
+import persistence.index.SharedIntIndex;
+import persistence.metrics.Measurable;
+import persistence.metrics.PersistenceMetrics;
+import persistence.sequence.SequenceAllocator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+
+/**
+ * Keeps an in-memory copy of every entity type and writes every change through to another persistence gateway.
+ * Each type is loaded from the underlying storage the first time it is requested, and every read after that is
+ * served from memory.
+ * <p>
+ * Rows are held in their encoded form, so every read hands back a fresh copy of the entity.
+ * This means callers are free to modify the objects they get back before calling update, exactly as they could
+ * when every read came straight from the file.
+ * <p>
+ * The encoded rows are kept in an Arena. The application keeps them on the heap unless persistence.cache.off-heap is
+ * set, in which case a fully loaded catalog takes up little heap and is never walked by the garbage collector (the
+ * constructors that are not given an Arena use one that is off the heap). Rows are decoded straight from the arena,
+ * and codecs that can do so leave long text in it until it is read (see RowCodec.decode), so a query that only looks
+ * at a few fields of each row never copies the rest.
+ * <p>
+ * Every change is first staged as a unit of work. A single create, update or delete is its own unit of work, while
+ * beginBatch and commit let a caller group changes to several types into one. Primary keys are handed out here when
+ * a change is staged (by a SequenceAllocator), so that callers can use them before the unit of work is committed.
+ * <p>
+ * Types that implement HasIndexes also get a secondary index per table, which is updated whenever a unit of work is
+ * applied, so findBy on an indexed field only decodes the rows that match. Types that implement HasColumns get a
+ * column store as well, one int array per column next to the rows, so findKeys never decodes a row at all.
+ * <p>
+ * The loaded tables are immutable versions, held together in one catalog. A commit takes the writer lock of each
+ * type it touches (in name order, so that two commits never wait on each other in a circle) while the storage is
+ * written, then copies the tables it changes and publishes all the new versions at once, in a new catalog.
+ * Reads take no locks at all: each read uses the catalog that was current when it started, so a long scan and a
+ * commit never wait on each other. A copy of a table shares its row references and indexes in chunks, and only
+ * copies the chunks that the commit changes.
+ * <p>
+ * beginSnapshot pins the calling thread to the current catalog until endSnapshot, so that every read in between
+ * (for example, every read of one request) sees the same data. A thread that commits, or removes a type, moves its
+ * snapshot forward to the latest catalog, so that it always sees its own changes. Every table has a version number of
+ * its own, which version reports for the table a thread reads, so that results worked out from the tables can be kept
+ * for as long as the tables they were read from are the ones being read.
+ * <p>
+ * With a group size above 1, commits are handed to a committer thread instead of being written by the calling
+ * thread. The committer takes every unit of work that is waiting (and waits up to the window for as many as its last
+ * group had, up to the group size) and writes all of them to the storage as one unit of work, so that each file is written and synced once
+ * per group instead of once per commit. Each caller still only returns once its own changes are saved. If a group
+ * cannot be saved, its units of work are written one at a time, so that only the ones that fail report an error.
+ * <p>
+ * In write-behind mode a commit is made visible and returns straight away, and the committer saves it within the
+ * window. At most one group of commits can be waiting to be saved; further commits wait for room. A commit that cannot
+ * be saved in this mode is logged, counted as a failed "write-behind" call in the metrics, and kept to be saved again
+ * before the next group and on close. Later commits that touch any of its types are kept behind it, so that the
+ * commits to a type are still saved in the order they were made.
+ * <p>
+ * A kept commit is tried WRITE_BEHIND_ATTEMPTS times in all. After that it is given up on, and so is every commit kept
+ * behind it: their changes are lost, which is logged with the names of their types. Those types are dropped from
+ * memory, so that reads show what the storage holds again, and every later commit that touches one of them fails
+ * until the type is removed or the application restarts. Close saves whatever is waiting, and whatever is still kept
+ * after that is lost in the same way.
+ */
+public class CachingPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface, Measurable, AutoCloseable {
+
+    /**
+     * The gateway that changes are written through to.
+     */
+    private final PersistenceInterface storage;
+
+    /**
+     * Encodes the rows held in memory.
+     */
+    private final RowCodec codec;
+
+    /**
+     * Holds the committed rows of every table.
+     */
+    private final Arena arena;
+
+    /**
+     * Holds the current version of the loaded rows of each type, keyed by the class name.
+     * Neither the map nor the tables in it are ever changed once published, only replaced.
+     */
+    private final AtomicReference<Map<String, Table>> catalog = new AtomicReference<>(Collections.emptyMap());
+
+    /**
+     * Hands out the version number of each table made, loaded or copied.
+     */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /**
+     * How many times a write-behind unit of work is tried before its changes are given up on.
+     */
+    private static final int WRITE_BEHIND_ATTEMPTS = 5;
+
+    /**
+     * Holds the snapshot that each thread has pinned, if any.
+     */
+    private final ThreadLocal<Snapshot> snapshots = new ThreadLocal<>();
+
+    /**
+     * Holds the unit of work that each thread has open, if any.
+     */
+    private final ThreadLocal<Batch> batches = new ThreadLocal<>();
+
+    /**
+     * Holds the writer lock of each type, keyed by the class name. Unlike tables, these are never replaced.
+     */
+    private final Map<String, ReentrantLock> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Hands out new primary keys.
+     */
+    private final SequenceAllocator keys;
+
+    /**
+     * How many units of work the committer merges into one write at most, and how long, in milliseconds,
+     * it waits for more of them once it has one.
+     */
+    private final int groupSize;
+    private final long windowMillis;
+
+    /**
+     * Whether a commit returns as soon as its changes are visible, instead of once they are saved.
+     */
+    private final boolean writeBehind;
+
+    /**
+     * Holds the units of work waiting for the committer, in the order they are to be written.
+     * Also guards closed, so that nothing is queued after the committer has stopped.
+     */
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private boolean closed = false;
+
+    /**
+     * Counts the room left for commits that have returned without being saved, in write-behind mode.
+     */
+    private final Semaphore unsaved;
+
+    /**
+     * Holds the write-behind units of work that could not be saved, and the ones kept behind them, in the order they
+     * were committed. Guarded by itself.
+     */
+    private final List<Batch> failed = new ArrayList<>();
+
+    /**
+     * The types whose write-behind changes were given up on, which take no more commits. Guarded by failed.
+     */
+    private final Set<String> lost = new HashSet<>();
+
+    /**
+     * Writes queued units of work to the storage, or null if every commit is written by the calling thread.
+     */
+    private final Thread committer;
+
+    /**
+     * Counts the rows looked at to answer reads and the write-behind saves, or null if nothing is counted.
+     */
+    private PersistenceMetrics.Recorder metrics;
+
+    /**
+     * Where the changes of each commit are published once they are visible, or null if they are not published.
+     */
+    private ChangeFeed changes;
+
+
+    /**
+     * Initializes this class, holding rows in memory with Java serialization.
+     *
+     * @param storage The gateway that is used to load entities and to save changes.
+     */
+    public CachingPersistenceGateway(PersistenceInterface storage) {
+        this(storage, new JavaRowCodec());
+    }
+
+
+    /**
+     * Initializes this class, with primary keys counted in serfile[Class].seq.
+     *
+     * @param storage The gateway that is used to load entities and to save changes.
+     * @param codec   Encodes the rows held in memory.
+     */
+    public CachingPersistenceGateway(PersistenceInterface storage, RowCodec codec) {
+        this(storage, codec, new SequenceAllocator());
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param storage The gateway that is used to load entities and to save changes.
+     * @param codec   Encodes the rows held in memory.
+     * @param keys    Hands out new primary keys. Share it with the storage if the storage hands out keys as well.
+     */
+    public CachingPersistenceGateway(PersistenceInterface storage, RowCodec codec, SequenceAllocator keys) {
+        this(storage, codec, keys, 1, 0, false);
+    }
+
+
+    /**
+     * Initializes this class, with commits that arrive close together written to the storage as one group.
+     *
+     * @param storage      The gateway that is used to load entities and to save changes.
+     * @param codec        Encodes the rows held in memory.
+     * @param keys         Hands out new primary keys. Share it with the storage if the storage hands out keys as well.
+     * @param groupSize    How many units of work are written together at most. 1 writes each one on its own.
+     * @param windowMillis How long, in milliseconds, the committer waits for more units of work once it has one.
+     * @param writeBehind  Whether a commit returns before it is saved, which loses it if the application stops
+     *                     without being closed.
+     */
+    public CachingPersistenceGateway(PersistenceInterface storage, RowCodec codec, SequenceAllocator keys,
+                                     int groupSize, long windowMillis, boolean writeBehind) {
+        this(storage, codec, keys, groupSize, windowMillis, writeBehind, new Arena());
+    }
+
+
+    /**
+     * Initializes this class, with commits that arrive close together written to the storage as one group,
+     * and the rows held in the given arena.
+     *
+     * @param storage      The gateway that is used to load entities and to save changes.
+     * @param codec        Encodes the rows held in memory.
+     * @param keys         Hands out new primary keys. Share it with the storage if the storage hands out keys as well.
+     * @param groupSize    How many units of work are written together at most. 1 writes each one on its own.
+     * @param windowMillis How long, in milliseconds, the committer waits for more units of work once it has one.
+     * @param writeBehind  Whether a commit returns before it is saved, which loses it if the application stops
+     *                     without being closed.
+     * @param arena        Holds the committed rows, on or off the heap.
+     */
+    public CachingPersistenceGateway(PersistenceInterface storage, RowCodec codec, SequenceAllocator keys,
+                                     int groupSize, long windowMillis, boolean writeBehind, Arena arena) {
+        this.storage = storage;
+        this.codec = codec;
+        this.arena = arena;
+        this.keys = keys;
+        this.groupSize = Math.max(groupSize, 1);
+        this.windowMillis = windowMillis;
+        this.writeBehind = writeBehind;
+        this.unsaved = new Semaphore(this.groupSize);
+
+        if (this.groupSize > 1 || writeBehind) {
+            this.committer = new Thread(this::commitGroups, "persistence-committer");
+            this.committer.setDaemon(true);
+            this.committer.start();
+        } else {
+            this.committer = null;
+        }
+    }
+
+
+    /**
+     * Returns one instance of records based on the id.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T, or null if there is no such record
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        Table table = this.visible(type);
+        Pending pending = this.pending(type);
+
+        Slice row = this.overlay(pending, id, table.get(id));
+        this.scanned(type, 1);
+        if (row == null) return null;
+        return this.decode(row, type);
+
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of the provided ids, ids that do not exist are skipped.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        Table table = this.visible(type);
+        Pending pending = this.pending(type);
+        IntIndex seen = new IntIndex(idList.size());
+        List<Slice> rows = new ArrayList<>();
+
+        for (Integer id : idList) {
+            Slice row = this.overlay(pending, id, table.get(id));
+            if (row != null && seen.add(id)) rows.add(row);
+        }
+        this.scanned(type, idList.size());
+
+        List<T> result = new ArrayList<>();
+        for (Slice row : rows) {
+            result.add(this.decode(row, type));
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        Table table = this.visible(type);
+        Pending pending = this.pending(type);
+
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < table.size; i++) {
+            Slice row = this.overlay(pending, table.keys.get(i), table.rows.get(i));
+            if (row != null) result.add(this.decode(row, type));
+        }
+        if (pending != null) {
+            for (byte[] row : pending.created.values()) {
+                result.add(this.decode(Slice.wrap(row), type));
+            }
+        }
+        this.scanned(type, table.size);
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type one at a time, from the version of the table that was visible when the stream
+     * was opened. Each row is decoded when the stream reaches it.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in the Stream
+     * @return A Stream of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) throws IOException {
+
+        Table table = this.visible(type);
+        Pending pending = this.pending(type);
+
+        Stream<Slice> committed = IntStream.range(0, table.size)
+                .mapToObj(i -> this.overlay(pending, table.keys.get(i), table.rows.get(i)))
+                .filter(Objects::nonNull);
+        Stream<Slice> created = pending == null ? Stream.empty()
+                : new ArrayList<>(pending.created.values()).stream().map(Slice::wrap);
+
+        return Stream.concat(committed, created).map(row -> {
+            try {
+                return this.decode(row, type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+    }
+
+
+    /**
+     * Loads and indexes the table of this type, unless it is loaded already. Nothing is decoded.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> void preload(Class<T> type) throws IOException {
+        this.table(type);
+    }
+
+
+    /**
+     * Gets all records whose indexed field has the given value, through the secondary index of the table.
+     * The calling thread's own changes that are not committed yet are taken into account.
+     * Fields that are not indexed are found by scanning.
+     *
+     * @param field the name of the indexed field, for example "ownerId"
+     * @param value the value to look for, compared with equals
+     * @param type  .class information about class T.
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        Table table = this.visible(type);
+        Pending pending = this.pending(type);
+        int[] keys = table.find(field, value);
+        if (keys == null) return PersistenceInterface.super.findBy(field, value, type);
+
+        Map<Integer, Slice> matches = new TreeMap<>();
+        for (int key : keys) {
+            //Rows this thread has changed may no longer match, and are checked again below
+            if (pending != null && (pending.indexed.containsKey(key) || pending.deleted.contains(key))) continue;
+            matches.put(key, table.get(key));
+        }
+
+        if (pending != null) {
+            for (Map.Entry<Integer, Map<String, Object>> entry : pending.indexed.entrySet()) {
+                if (!Objects.equals(entry.getValue().get(field), value)) continue;
+                Slice row = this.overlay(pending, entry.getKey(), null);
+                if (row != null) matches.put(entry.getKey(), row);
+            }
+        }
+        List<T> result = new ArrayList<>();
+        for (Slice row : matches.values()) result.add(this.decode(row, type));
+        this.scanned(type, keys.length);
+        return result;
+
+    }
+
+
+    /**
+     * Gets the primary keys of the records whose columns pass a condition, by reading the column store of the table
+     * instead of decoding any row. The calling thread's own changes that are not committed yet are taken into account.
+     *
+     * @param type      .class information about class T.
+     * @param field     the name of an indexed field to narrow the search to, or null to look at every record
+     * @param value     the value of the indexed field to look for
+     * @param condition which records to keep. It must not keep the Columns it is given.
+     * @param <T>       the class type, which should implement HasColumns
+     * @return A List of the primary keys of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<Integer> findKeys(Class<T> type, String field, Object value, Predicate<Columns> condition) throws IOException {
+
+        Table table = this.visible(type);
+        Pending pending = this.pending(type);
+        ColumnStore.Cursor cursor = table.columns.cursor();
+        int[] narrowed = field == null ? null : table.find(field, value);
+        List<Integer> result = new ArrayList<>();
+
+        if (narrowed == null) {
+            for (int i = 0; i < table.size; i++) {
+                int key = table.keys.get(i);
+                if (pending != null && (pending.columns.containsKey(key) || pending.deleted.contains(key))) {
+                    Map<String, Object> changed = pending.columns.get(key);
+                    if (changed != null && condition.test(Columns.of(key, changed))) result.add(key);
+                } else if (condition.test(cursor.move(key, i))) {
+                    result.add(key);
+                }
+            }
+            if (pending != null) {
+                for (Integer key : pending.created.keySet()) {
+                    Map<String, Object> created = pending.columns.get(key);
+                    if (created != null && condition.test(Columns.of(key, created))) result.add(key);
+                }
+            }
+            this.scanned(type, table.size);
+            return result;
+        }
+
+        //As in findBy, rows this thread has changed are checked against their new values
+        SortedSet<Integer> keys = new TreeSet<>();
+        for (int key : narrowed) {
+            if (pending == null || !(pending.indexed.containsKey(key) || pending.deleted.contains(key))) keys.add(key);
+        }
+        if (pending != null) {
+            for (Map.Entry<Integer, Map<String, Object>> entry : pending.indexed.entrySet()) {
+                if (Objects.equals(entry.getValue().get(field), value)) keys.add(entry.getKey());
+            }
+        }
+        for (int key : keys) {
+            Map<String, Object> changed = pending == null ? null : pending.columns.get(key);
+            Columns columns = changed != null ? Columns.of(key, changed) : cursor.move(key, table.index.get(key));
+            if (condition.test(columns)) result.add(key);
+        }
+        this.scanned(type, keys.size());
+        return result;
+
+    }
+
+
+    /**
+     * Saves new objects into persistence, then adds them to memory.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        Batch batch = this.batches.get();
+        if (batch != null) {
+            this.stageCreate(batch, newObjList, type);
+            return newObjList;
+        }
+
+        batch = new Batch();
+        this.stageCreate(batch, newObjList, type);
+        this.flush(batch);
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        return this.create(new ArrayList<>(Collections.singletonList(newObject)), type).get(0);
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        return this.update(new ArrayList<>(Collections.singletonList(updateObj)), type);
+    }
+
+
+    /**
+     * Updates the records with the same primary key in the current storage, then replaces them in memory.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        Batch batch = this.batches.get();
+        if (batch != null) {
+            this.stageUpdate(batch, updateObjList, type);
+            return true;
+        }
+
+        batch = new Batch();
+        this.stageUpdate(batch, updateObjList, type);
+        this.flush(batch);
+        return true;
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects from persistence, then removes them from memory.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        Batch batch = this.batches.get();
+        if (batch != null) return this.stageDelete(batch, idList, type);
+
+        batch = new Batch();
+        if (!this.stageDelete(batch, idList, type)) return false;
+        this.flush(batch);
+        return true;
+
+    }
+
+
+    /**
+     * Removes all records relating to this key, both in memory and in the underlying storage.
+     * This is not part of any unit of work, and happens straight away.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the file exists and was successfully deleted, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        Batch batch = this.batches.get();
+        if (batch != null) batch.pending.remove(type.getName());
+
+        //Commits that are still queued or kept must not write the type back after it is removed
+        this.drain();
+        synchronized (this.failed) {
+            for (Batch kept : this.failed) kept.pending.remove(type.getName());
+            this.lost.remove(type.getName());
+        }
+
+        ReentrantLock writer = this.writer(type);
+        writer.lock();
+        try {
+            this.evict(type);
+            this.keys.reset(type.getName());
+            boolean removed = this.storage.remove(type);
+            if (this.changes != null) {
+                this.changes.publish(Collections.singletonList(new Change(type.getName(), 0, Change.Operation.REMOVE, null, null)));
+            }
+            return removed;
+        } finally {
+            writer.unlock();
+            this.moveSnapshot();
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work on the calling thread, or joins the one that is already open.
+     */
+    @Override
+    public void beginBatch() {
+
+        Batch batch = this.batches.get();
+        if (batch != null) batch.depth++;
+        else this.batches.set(new Batch());
+
+    }
+
+
+    /**
+     * Writes every change of the outermost unit of work to the underlying storage as one batch,
+     * then makes all of them visible at once.
+     *
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if a buffered list consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if a buffered create conflicts with an existing primary key.
+     * @throws EntryDoesNotExistException throws this exception if a buffered update refers to a primary key that no longer exists.
+     */
+    @Override
+    public void commit() throws IOException {
+
+        Batch batch = this.batches.get();
+        if (batch == null) return;
+        if (--batch.depth > 0) return;
+
+        this.batches.remove();
+        this.flush(batch);
+
+    }
+
+
+    /**
+     * Throws away every change buffered on the calling thread.
+     */
+    @Override
+    public void rollback() {
+        this.batches.remove();
+    }
+
+
+    /**
+     * Pins every read of the calling thread to the tables as they are now, or joins the snapshot that is already pinned.
+     */
+    @Override
+    public void beginSnapshot() {
+
+        Snapshot snapshot = this.snapshots.get();
+        if (snapshot != null) snapshot.depth++;
+        else this.snapshots.set(new Snapshot(this.catalog.get()));
+
+    }
+
+
+    /**
+     * Ends the outermost snapshot of the calling thread, after which its reads see the latest tables again.
+     */
+    @Override
+    public void endSnapshot() {
+
+        Snapshot snapshot = this.snapshots.get();
+        if (snapshot != null && --snapshot.depth == 0) this.snapshots.remove();
+
+    }
+
+
+    /**
+     * Gets the version of the table of this type that the calling thread reads, loading it if it has not been loaded yet.
+     * A thread with changes to this type buffered in its unit of work reads more than the table, so it gets -1.
+     */
+    @Override
+    public long version(Class<?> type) throws IOException {
+
+        Pending pending = this.pending(type);
+        if (pending != null) return -1;
+        return this.visible(type).version;
+
+    }
+
+
+    /**
+     * Starts counting, by type, the rows this gateway looks at to answer reads. A scan of the whole table counts
+     * every row in it, whether or not it is decoded.
+     *
+     * @param metrics Where to record
+     */
+    @Override
+    public void setMetrics(PersistenceMetrics.Recorder metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Starts publishing the changes of every commit to a feed, with each row as it was before and after.
+     * Changes are published once they are visible, which in write-behind mode is before they are saved.
+     * This should be called once, before the gateway is used.
+     *
+     * @param changes The feed
+     */
+    public void setChangeFeed(ChangeFeed changes) {
+        this.changes = changes;
+    }
+
+
+    /**
+     * Saves every unit of work that is still waiting for the committer, then stops it.
+     * Commits made after this are written by the calling thread.
+     */
+    @Override
+    public void close() {
+
+        if (this.committer == null) return;
+        synchronized (this.queue) {
+            if (this.closed) return;
+            this.closed = true;
+            this.queue.add(Commit.STOP);
+        }
+
+        try {
+            this.committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Holds the rows of one type in a packed array of slices into the arena, with a primary key index pointing into it.
+     * A table is only changed before it is published. To change a published table, a copy is changed and published.
+     * <p>
+     * A copy shares the chunks of the arrays and indexes of the table it was made from (see SharedArray), and only
+     * copies the chunks a commit changes, so a commit costs about the size of its changes rather than of the table.
+     */
+    private static class Table {
+
+        private final SharedIntIndex index;
+        private final SecondaryIndex indexes;
+        private final ColumnStore columns;
+        private final long version = VERSIONS.incrementAndGet();
+        private final SharedIntArray keys;
+        private final SharedArray<Slice> rows;
+        private int size = 0;
+        private int lastKey = 0;
+        private Class<?> rowClass = null;
+        private boolean published = false;
+
+        private Table() {
+            this.index = new SharedIntIndex();
+            this.indexes = new SecondaryIndex();
+            this.columns = new ColumnStore();
+            this.keys = new SharedIntArray();
+            this.rows = new SharedArray<>();
+        }
+
+        private Table(Table other) {
+            this.index = new SharedIntIndex(other.index);
+            this.indexes = new SecondaryIndex(other.indexes);
+            this.columns = new ColumnStore(other.columns);
+            this.keys = new SharedIntArray(other.keys);
+            this.rows = new SharedArray<>(other.rows);
+            this.size = other.size;
+            this.lastKey = other.lastKey;
+            this.rowClass = other.rowClass;
+        }
+
+        private Slice get(int id) {
+            int slot = this.index.get(id);
+            return slot == IntIndex.MISSING ? null : this.rows.get(slot);
+        }
+
+        private void put(int id, Slice row, Map<String, Object> indexedFields, Map<String, Object> columns) {
+            this.checkUnpublished();
+            this.claimKey(id);
+            this.indexes.put(id, indexedFields);
+            int slot = this.index.get(id);
+            if (slot != IntIndex.MISSING) {
+                this.rows.set(slot, row);
+                this.columns.set(slot, columns);
+                return;
+            }
+            this.keys.set(this.size, id);
+            this.rows.set(this.size, row);
+            this.columns.set(this.size, columns);
+            this.index.put(id, this.size);
+            this.size++;
+        }
+
+        private void remove(int id) {
+            this.checkUnpublished();
+            this.indexes.remove(id);
+            int slot = this.index.remove(id);
+            if (slot == IntIndex.MISSING) return;
+
+            //Move the last row into the hole so that the rows stay packed
+            int last = this.size - 1;
+            if (slot != last) {
+                this.keys.set(slot, this.keys.get(last));
+                this.rows.set(slot, this.rows.get(last));
+                this.columns.move(last, slot);
+                this.index.put(this.keys.get(slot), slot);
+            }
+            this.rows.set(last, null);
+            this.size--;
+        }
+
+        /**
+         * Marks this table as published. Its copies share its chunks, so it is never changed again.
+         */
+        private void publish() {
+            this.published = true;
+        }
+
+        private void checkUnpublished() {
+            if (this.published) throw new IllegalStateException("A published table is never changed, only copied");
+        }
+
+        private int[] find(String field, Object value) {
+            return this.indexes.find(field, value);
+        }
+
+        private int lastKey() {
+            return this.lastKey;
+        }
+
+        private void claimKey(int id) {
+            if (id > this.lastKey) this.lastKey = id;
+        }
+
+    }
+
+
+    /**
+     * The changes that one thread has made to one type, which are not saved yet.
+     * A primary key is in at most one of created, updated and deleted.
+     */
+    private static class Pending {
+
+        private final Class<?> type;
+        private final Map<Integer, byte[]> created = new LinkedHashMap<>();
+        private final Map<Integer, byte[]> updated = new LinkedHashMap<>();
+        private final Set<Integer> deleted = new LinkedHashSet<>();
+        private final Map<Integer, Map<String, Object>> indexed = new HashMap<>();
+        private final Map<Integer, Map<String, Object>> columns = new HashMap<>();
+
+        private Pending(Class<?> type) {
+            this.type = type;
+        }
+
+    }
+
+
+    /**
+     * The changes that one thread has made to every type, and how deeply its beginBatch calls are nested.
+     */
+    private static class Batch {
+
+        private final Map<String, Pending> pending = new LinkedHashMap<>();
+        private int depth = 1;
+        private int attempts = 0;
+
+    }
+
+
+    /**
+     * A unit of work waiting for the committer, and the result its caller is waiting on.
+     * STOP tells the committer that nothing comes after it.
+     */
+    private static class Commit {
+
+        private static final Commit STOP = new Commit(new Batch(), false);
+
+        private final Batch batch;
+        private final boolean unsaved;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Commit(Batch batch, boolean unsaved) {
+            this.batch = batch;
+            this.unsaved = unsaved;
+        }
+
+    }
+
+
+    /**
+     * The tables that one thread has pinned, and how deeply its beginSnapshot calls are nested.
+     */
+    private static class Snapshot {
+
+        private Map<String, Table> tables;
+        private int depth = 1;
+
+        private Snapshot(Map<String, Table> catalog) {
+            this.tables = new HashMap<>(catalog);
+        }
+
+    }
+
+
+    /**
+     * Counts rows looked at to answer a read of this type, if anything is counted.
+     */
+    private void scanned(Class<?> type, long rows) {
+        if (this.metrics != null) this.metrics.scanned(type.getName(), rows);
+    }
+
+
+    /**
+     * Gets the lock that commits to this type hold while they write to the storage and publish the new table.
+     */
+    private ReentrantLock writer(Class<?> type) {
+        return this.writers.computeIfAbsent(type.getName(), name -> new ReentrantLock());
+    }
+
+
+    /**
+     * Gets the writer locks of every type in these units of work, in name order.
+     */
+    private List<ReentrantLock> writers(List<Batch> group) {
+
+        Map<String, Class<?>> types = new TreeMap<>();
+        for (Batch batch : group) {
+            for (Pending pending : batch.pending.values()) types.put(pending.type.getName(), pending.type);
+        }
+
+        List<ReentrantLock> writers = new ArrayList<>();
+        for (Class<?> type : types.values()) {
+            writers.add(this.writer(type));
+        }
+        return writers;
+
+    }
+
+
+    /**
+     * Gets the latest version of the table of this type, loading it if it has not been loaded yet.
+     */
+    private <T> Table table(Class<T> type) throws IOException {
+
+        Table table = this.catalog.get().get(type.getName());
+        if (table != null) return table;
+
+        //This type has not been loaded yet, so we load it once from the underlying storage
+        table = new Table();
+        for (T t : this.storage.all(type)) {
+            Persistable p = (Persistable) t; //We know it's persistable due to the way we save
+            table.put(p.getKey(), this.arena.copy(this.encode(p)), this.indexedFields(p), this.columns(p));
+            table.rowClass = p.getClass();
+        }
+
+        while (true) {
+            Map<String, Table> current = this.catalog.get();
+            Table existing = current.get(type.getName());
+            if (existing != null) return existing;
+
+            Map<String, Table> next = new HashMap<>(current);
+            next.put(type.getName(), table);
+            table.publish();
+            if (this.catalog.compareAndSet(current, Collections.unmodifiableMap(next))) return table;
+        }
+
+    }
+
+
+    /**
+     * Gets the table of this type that the calling thread should read: the one in its snapshot, or else the latest.
+     */
+    private <T> Table visible(Class<T> type) throws IOException {
+
+        Snapshot snapshot = this.snapshots.get();
+        if (snapshot == null) return this.table(type);
+
+        Table table = snapshot.tables.get(type.getName());
+        if (table == null) {
+            //A type that was not loaded yet when the snapshot was taken is pinned the first time it is read
+            table = this.table(type);
+            snapshot.tables.put(type.getName(), table);
+        }
+        return table;
+
+    }
+
+
+    /**
+     * Moves the snapshot of the calling thread, if it has one, forward to the latest tables.
+     */
+    private void moveSnapshot() {
+
+        Snapshot snapshot = this.snapshots.get();
+        if (snapshot != null) snapshot.tables = new HashMap<>(this.catalog.get());
+
+    }
+
+
+    /**
+     * Publishes new versions of some tables, all at once.
+     */
+    private void publish(Map<String, Table> tables) {
+
+        if (tables.isEmpty()) return;
+        for (Table table : tables.values()) table.publish();
+        while (true) {
+            Map<String, Table> current = this.catalog.get();
+            Map<String, Table> next = new HashMap<>(current);
+            next.putAll(tables);
+            if (this.catalog.compareAndSet(current, Collections.unmodifiableMap(next))) return;
+        }
+
+    }
+
+
+    /**
+     * Drops the table of this type, so that it is loaded again from the storage on its next read.
+     */
+    private void evict(Class<?> type) {
+
+        while (true) {
+            Map<String, Table> current = this.catalog.get();
+            if (!current.containsKey(type.getName())) return;
+
+            Map<String, Table> next = new HashMap<>(current);
+            next.remove(type.getName());
+            if (this.catalog.compareAndSet(current, Collections.unmodifiableMap(next))) return;
+        }
+
+    }
+
+
+    private Pending pending(Class<?> type) {
+        Batch batch = this.batches.get();
+        return batch == null ? null : batch.pending.get(type.getName());
+    }
+
+
+    private Pending pending(Batch batch, Class<?> type) throws IOException {
+
+        Pending pending = batch.pending.get(type.getName());
+        if (pending == null) {
+            pending = new Pending(type);
+            batch.pending.put(type.getName(), pending);
+        }
+        return pending;
+
+    }
+
+
+    /**
+     * Returns the row as the calling thread should see it, given the row that is currently committed.
+     */
+    private Slice overlay(Pending pending, int id, Slice committed) {
+
+        if (pending == null) return committed;
+        if (pending.deleted.contains(id)) return null;
+
+        byte[] row = pending.created.get(id);
+        if (row == null) row = pending.updated.get(id);
+        return row == null ? committed : Slice.wrap(row);
+
+    }
+
+
+    private boolean exists(Pending pending, Table table, int id) {
+        return this.overlay(pending, id, table.get(id)) != null;
+    }
+
+
+    private <T extends Persistable> void stageCreate(Batch batch, List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        Pending pending = this.pending(batch, type);
+        Table table = this.table(type);
+        this.hasDuplicateKeys(newObjList);
+        if (!this.containsOneType(newObjList, table)) throw new NonUniformObjectsException();
+
+        //Check for conflicts before any key is handed out, so that nothing changes if we fail
+        for (T t : newObjList) {
+            if (t.getKey() != 0 && this.exists(pending, table, t.getKey())) throw new EntryExistsException();
+        }
+
+        //Keys we were given are claimed first, so that the keys we hand out come after them
+        for (T t : newObjList) {
+            if (t.getKey() != 0) this.keys.claim(type.getName(), t.getKey(), table::lastKey);
+        }
+        for (T t : newObjList) {
+            if (t.getKey() == 0) t.setKey(this.keys.next(type.getName(), table::lastKey));
+
+            //A row that is deleted and created again in the same unit of work still exists in storage
+            byte[] row = this.encode(t);
+            if (pending.deleted.remove(t.getKey())) pending.updated.put(t.getKey(), row);
+            else pending.created.put(t.getKey(), row);
+            if (t instanceof HasIndexes) pending.indexed.put(t.getKey(), this.indexedFields(t));
+            if (t instanceof HasColumns) pending.columns.put(t.getKey(), this.columns(t));
+        }
+
+    }
+
+
+    private <T extends Persistable> void stageUpdate(Batch batch, List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        Pending pending = this.pending(batch, type);
+        Table table = this.table(type);
+        this.hasDuplicateKeys(updateObjList);
+        if (!this.containsOneType(updateObjList, table)) throw new NonUniformObjectsException();
+
+        for (T t : updateObjList) {
+            if (!this.exists(pending, table, t.getKey())) throw new EntryDoesNotExistException();
+        }
+
+        for (T t : updateObjList) {
+            byte[] row = this.encode(t);
+            if (pending.created.containsKey(t.getKey())) pending.created.put(t.getKey(), row);
+            else pending.updated.put(t.getKey(), row);
+            if (t instanceof HasIndexes) pending.indexed.put(t.getKey(), this.indexedFields(t));
+            if (t instanceof HasColumns) pending.columns.put(t.getKey(), this.columns(t));
+        }
+
+    }
+
+
+    private <T> boolean stageDelete(Batch batch, List<Integer> idList, Class<T> type) throws IOException {
+
+        Pending pending = this.pending(batch, type);
+        Table table = this.table(type);
+        boolean deleted = false;
+
+        for (Integer id : idList) {
+            if (!this.exists(pending, table, id)) continue;
+            deleted = true;
+
+            //A row that was only created in this unit of work never has to reach the storage
+            pending.indexed.remove(id);
+            pending.columns.remove(id);
+            if (pending.created.remove(id) == null) {
+                pending.updated.remove(id);
+                pending.deleted.add(id);
+            }
+        }
+        return deleted;
+
+    }
+
+
+    /**
+     * Saves a unit of work and makes it visible, either on the calling thread or through the committer.
+     * A calling thread with a snapshot moves it forward, so that it sees what it has just committed.
+     */
+    private void flush(Batch batch) throws IOException {
+
+        if (this.committer == null) {
+            this.flushNow(batch);
+        } else if (this.writeBehind) {
+            this.flushBehind(batch);
+        } else {
+            Commit commit = new Commit(batch, false);
+            if (this.enqueue(commit)) this.await(commit);
+            else this.flushNow(batch);
+        }
+        this.moveSnapshot();
+
+    }
+
+
+    /**
+     * Writes a unit of work to the storage as one batch, then applies it to memory under the exclusive locks
+     * of the types it touches.
+     */
+    private void flushNow(Batch batch) throws IOException {
+
+        List<Batch> group = Collections.singletonList(batch);
+        List<ReentrantLock> writers = this.writers(group);
+        for (ReentrantLock writer : writers) writer.lock();
+        try {
+            try {
+                this.writeThrough(group);
+            } catch (IOException | RuntimeException e) {
+                //The storage may have kept part of the batch, so these types are loaded again on their next read
+                for (Pending pending : batch.pending.values()) {
+                    this.evict(pending.type);
+                }
+                throw e;
+            }
+            this.apply(group);
+        } finally {
+            for (ReentrantLock writer : writers) writer.unlock();
+        }
+
+    }
+
+
+    /**
+     * Applies a unit of work to memory straight away, and queues it for the committer to save.
+     * The writer locks are held while it is queued, so that commits to a type are saved in the order they were made.
+     */
+    private void flushBehind(Batch batch) throws IOException {
+
+        synchronized (this.failed) {
+            for (String name : batch.pending.keySet()) {
+                if (this.lost.contains(name)) {
+                    throw new IOException("Earlier changes to " + name + " could not be saved, so it takes no more commits");
+                }
+            }
+        }
+        this.unsaved.acquireUninterruptibly();
+        List<Batch> group = Collections.singletonList(batch);
+        List<ReentrantLock> writers = this.writers(group);
+        for (ReentrantLock writer : writers) writer.lock();
+        try {
+            if (this.enqueue(new Commit(batch, true))) {
+                this.apply(group);
+            } else {
+                this.unsaved.release();
+                this.flushNow(batch);
+            }
+        } finally {
+            for (ReentrantLock writer : writers) writer.unlock();
+        }
+
+    }
+
+
+    /**
+     * Writes units of work to the storage as one batch. Nothing is written if any of them cannot be saved.
+     */
+    private void writeThrough(List<Batch> group) throws IOException {
+
+        this.storage.beginBatch();
+        try {
+            for (Batch batch : group) {
+                for (Pending pending : batch.pending.values()) {
+                    this.write(pending, pending.type.asSubclass(Persistable.class));
+                }
+            }
+            this.storage.commit();
+        } catch (IOException | RuntimeException e) {
+            this.storage.rollback();
+            throw e;
+        }
+
+    }
+
+
+    /**
+     * Applies saved units of work to copies of the tables they touch, in order, and publishes all the copies at once.
+     * The caller holds the writer locks of these types, so no other commit can publish them in the meantime.
+     */
+    private void apply(List<Batch> group) {
+
+        Map<String, Table> current = this.catalog.get();
+        Map<String, Table> changed = new HashMap<>();
+        List<Change> published = new ArrayList<>();
+        boolean describe = this.changes != null && this.changes.isListened();
+        for (Batch batch : group) {
+            for (Pending pending : batch.pending.values()) {
+                String name = pending.type.getName();
+                Table table = changed.get(name);
+                if (table == null) {
+                    //A type that was evicted in the meantime is loaded again, changes and all, on its next read
+                    if (!current.containsKey(name)) {
+                        if (describe) this.describe(pending, null, published);
+                        continue;
+                    }
+                    table = new Table(current.get(name));
+                    changed.put(name, table);
+                }
+                if (describe) this.describe(pending, table, published);
+
+                if (!pending.created.isEmpty() && table.rowClass == null) table.rowClass = pending.type;
+                for (Map.Entry<Integer, byte[]> entry : pending.created.entrySet()) {
+                    table.put(entry.getKey(), this.arena.copy(entry.getValue()), pending.indexed.get(entry.getKey()),
+                            pending.columns.get(entry.getKey()));
+                }
+                for (Map.Entry<Integer, byte[]> entry : pending.updated.entrySet()) {
+                    table.put(entry.getKey(), this.arena.copy(entry.getValue()), pending.indexed.get(entry.getKey()),
+                            pending.columns.get(entry.getKey()));
+                }
+                for (Integer id : pending.deleted) {
+                    table.remove(id);
+                }
+            }
+        }
+        this.publish(changed);
+        if (describe) this.changes.publish(published);
+
+    }
+
+
+    /**
+     * Describes the changes of a unit of work to one type, before they are applied to its table.
+     * The rows as they were before are read from the table, and are not known if the table is not loaded.
+     */
+    private void describe(Pending pending, Table table, List<Change> published) {
+
+        String name = pending.type.getName();
+        for (Map.Entry<Integer, byte[]> entry : pending.created.entrySet()) {
+            published.add(new Change(name, entry.getKey(), Change.Operation.CREATE, null, entry.getValue()));
+        }
+        for (Map.Entry<Integer, byte[]> entry : pending.updated.entrySet()) {
+            Slice before = table == null ? null : table.get(entry.getKey());
+            published.add(new Change(name, entry.getKey(), Change.Operation.UPDATE,
+                    before == null ? null : before.toArray(), entry.getValue()));
+        }
+        for (Integer id : pending.deleted) {
+            Slice before = table == null ? null : table.get(id);
+            published.add(new Change(name, id, Change.Operation.DELETE, before == null ? null : before.toArray(), null));
+        }
+
+    }
+
+
+    /**
+     * Queues a unit of work for the committer, unless it has been closed.
+     */
+    private boolean enqueue(Commit commit) {
+
+        synchronized (this.queue) {
+            if (this.closed) return false;
+            this.queue.add(commit);
+            return true;
+        }
+
+    }
+
+
+    /**
+     * Waits until the committer has saved a unit of work, and throws whatever stopped it from being saved.
+     */
+    private void await(Commit commit) throws IOException {
+
+        try {
+            commit.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+
+    }
+
+
+    /**
+     * Waits until every unit of work queued so far has been saved.
+     */
+    private void drain() {
+
+        if (this.committer == null) return;
+        Commit marker = new Commit(new Batch(), false);
+        if (this.enqueue(marker)) marker.done.join();
+
+    }
+
+
+    /**
+     * Runs on the committer thread: takes a group of queued units of work at a time and saves it, until STOP.
+     */
+    private void commitGroups() {
+
+        boolean stopping = false;
+        int expected = 1;
+        while (!stopping) {
+            List<Commit> group = new ArrayList<>();
+            while (group.isEmpty()) {
+                try {
+                    group.add(this.queue.take());
+                } catch (InterruptedException e) {
+                    //Nothing stops the committer but STOP
+                }
+            }
+            this.queue.drainTo(group, this.groupSize - group.size());
+
+            //The callers of the last group are likely to commit again, so wait for as many units of work as it had,
+            //until the window has passed. A caller that commits on its own never waits for the window.
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.windowMillis);
+            while (group.size() < expected && group.get(group.size() - 1) != Commit.STOP) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) break;
+                try {
+                    Commit next = this.queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    group.add(next);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            stopping = group.remove(Commit.STOP);
+            expected = Math.max(group.size(), 1);
+            this.commitGroup(group);
+        }
+
+        //One last try for the units of work that failed in the final group, and whatever is still kept is lost
+        if (!this.writeBehind) return;
+        this.commitGroup(Collections.emptyList());
+        List<Batch> left;
+        synchronized (this.failed) {
+            left = new ArrayList<>(this.failed);
+            this.failed.clear();
+        }
+        List<ReentrantLock> writers = this.writers(left);
+        for (ReentrantLock writer : writers) writer.lock();
+        try {
+            for (Batch batch : left) this.giveUp(batch);
+        } finally {
+            for (ReentrantLock writer : writers) writer.unlock();
+        }
+
+    }
+
+
+    /**
+     * Saves a group of units of work as one batch, and lets their callers go.
+     * If the group cannot be saved, each unit of work is saved on its own, so that only the ones that fail report it.
+     */
+    private void commitGroup(List<Commit> group) {
+
+        List<Batch> batches = new ArrayList<>();
+        for (Commit commit : group) batches.add(commit.batch);
+
+        List<Batch> locked = new ArrayList<>(batches);
+        synchronized (this.failed) {
+            locked.addAll(this.failed);
+        }
+        List<ReentrantLock> writers = this.writers(locked);
+        for (ReentrantLock writer : writers) writer.lock();
+        try {
+            Set<String> kept = this.writeBehind ? this.retryFailed() : Collections.emptySet();
+            if (group.size() > 1 && kept.isEmpty() && !this.touchesLost(batches)) {
+                long start = System.nanoTime();
+                try {
+                    this.writeThrough(batches);
+                    if (!this.writeBehind) this.apply(batches);
+                    else this.recordBehind(start, false);
+                    for (Commit commit : group) this.done(commit, null);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    //Fall back to one unit of work at a time below
+                }
+            }
+
+            for (Commit commit : group) {
+                if (this.writeBehind) {
+                    //Nobody is waiting for a write-behind commit, so one that cannot be saved is kept instead
+                    this.saveBehind(commit.batch, kept);
+                    this.done(commit, null);
+                    continue;
+                }
+                try {
+                    this.flushNow(commit.batch);
+                    this.done(commit, null);
+                } catch (IOException | RuntimeException e) {
+                    this.done(commit, e);
+                }
+            }
+        } finally {
+            for (ReentrantLock writer : writers) writer.unlock();
+        }
+
+    }
+
+
+    /**
+     * Saves the write-behind units of work that were kept, in the order they were committed, keeping the ones that
+     * still cannot be saved and the ones behind them. The caller holds the writer locks of their types.
+     *
+     * @return the types of the units of work that are still kept
+     */
+    private Set<String> retryFailed() {
+
+        Set<String> kept = new HashSet<>();
+        synchronized (this.failed) {
+            List<Batch> retries = new ArrayList<>(this.failed);
+            this.failed.clear();
+            for (Batch batch : retries) this.saveBehind(batch, kept);
+        }
+        return kept;
+
+    }
+
+
+    /**
+     * Saves one write-behind unit of work, unless it touches a type that a unit of work before it is kept for, and
+     * keeps it if it is not saved. Failures are logged and counted. A unit of work that has used up its attempts, or
+     * that touches a type that was given up on, is given up on as well.
+     */
+    private void saveBehind(Batch batch, Set<String> kept) {
+
+        if (this.touchesLost(Collections.singletonList(batch))) {
+            this.giveUp(batch);
+            return;
+        }
+
+        if (Collections.disjoint(batch.pending.keySet(), kept)) {
+            long start = System.nanoTime();
+            try {
+                this.writeThrough(Collections.singletonList(batch));
+                this.recordBehind(start, false);
+                return;
+            } catch (IOException | RuntimeException e) {
+                this.recordBehind(start, true);
+                e.printStackTrace();
+                if (++batch.attempts >= WRITE_BEHIND_ATTEMPTS) {
+                    this.giveUp(batch);
+                    return;
+                }
+            }
+        }
+
+        kept.addAll(batch.pending.keySet());
+        synchronized (this.failed) {
+            this.failed.add(batch);
+        }
+
+    }
+
+
+    /**
+     * Gives up on the changes of a write-behind unit of work: logs them as lost with the names of their types, counts
+     * a failed "write-behind" call, and drops the types from memory, so that reads show what the storage holds.
+     * The types take no more commits, since the units of work kept behind this one were made on top of it.
+     * The caller holds the writer locks of its types.
+     */
+    private void giveUp(Batch batch) {
+
+        if (batch.pending.isEmpty()) return;
+        this.recordBehind(System.nanoTime(), true);
+        System.err.println("Write-behind changes to " + new TreeSet<>(batch.pending.keySet()) + " could not be saved and are lost");
+        synchronized (this.failed) {
+            this.lost.addAll(batch.pending.keySet());
+        }
+        for (Pending pending : batch.pending.values()) {
+            this.evict(pending.type);
+        }
+
+    }
+
+
+    /**
+     * Checks whether any of these units of work touches a type whose write-behind changes were given up on.
+     */
+    private boolean touchesLost(List<Batch> batches) {
+
+        synchronized (this.failed) {
+            for (Batch batch : batches) {
+                if (!Collections.disjoint(batch.pending.keySet(), this.lost)) return true;
+            }
+        }
+        return false;
+
+    }
+
+
+    private void recordBehind(long start, boolean failed) {
+        if (this.metrics != null) this.metrics.call("", "write-behind", System.nanoTime() - start, 0, failed);
+    }
+
+
+    private void done(Commit commit, Exception error) {
+
+        if (error == null) commit.done.complete(null);
+        else commit.done.completeExceptionally(error);
+        if (commit.unsaved) this.unsaved.release();
+
+    }
+
+
+    private <T extends Persistable> void write(Pending pending, Class<T> type) throws IOException {
+
+        if (!pending.created.isEmpty()) {
+            this.storage.create(this.decodeAll(pending.created.values(), type), type);
+        }
+        if (!pending.updated.isEmpty()) {
+            this.storage.update(this.decodeAll(pending.updated.values(), type), type);
+        }
+        if (!pending.deleted.isEmpty()) {
+            this.storage.delete(new ArrayList<>(pending.deleted), type);
+        }
+
+    }
+
+
+    private <T> List<T> decodeAll(Collection<byte[]> rows, Class<T> type) throws IOException {
+
+        List<T> result = new ArrayList<>();
+        for (byte[] row : rows) {
+            result.add(this.decode(row, type));
+        }
+        return result;
+
+    }
+
+
+    private <T extends Persistable> boolean containsOneType(List<T> newList, Table table) {
+
+        for (T t : newList) {
+            if (t.getClass() != newList.get(0).getClass()) return false;
+        }
+        return table.rowClass == null || table.rowClass == newList.get(0).getClass();
+
+    }
+
+
+    private <T extends Persistable> void hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
+
+        IntIndex s = new IntIndex(persistableList.size());
+        for (Persistable p : persistableList) {
+            if (p.getKey() != 0 && !s.add(p.getKey())) {
+                throw new EntryExistsException();
+            }
+        }
+
+    }
+
+
+    /**
+     * Gets the indexed fields of this row, or null if its type does not declare any.
+     */
+    private Map<String, Object> indexedFields(Object obj) {
+        return obj instanceof HasIndexes ? ((HasIndexes) obj).getIndexedFields() : null;
+    }
+
+
+    /**
+     * Gets the columns of this row, or null if its type does not declare any.
+     */
+    private Map<String, Object> columns(Object obj) {
+        return obj instanceof HasColumns ? ((HasColumns) obj).getColumns() : null;
+    }
+
+
+    private byte[] encode(Persistable obj) throws IOException {
+        return this.codec.encode(obj);
+    }
+
+
+    private <T> T decode(byte[] row, Class<T> type) throws IOException {
+        return type.cast(this.codec.decode(row));
+    }
+
+
+    private <T> T decode(Slice row, Class<T> type) throws IOException {
+        return type.cast(this.codec.decode(row));
+    }
+
+
+}
@@ -0,0 +1,915 @@
+package persistence;
+
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.PersistenceException;
+import persistence.index.Columns;
+import persistence.index.HasColumns;
+import persistence.index.HasIndexes;
+import persistence.index.IntIndex;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ * Persists each type to its own table in a relational database.
+ * <p>
+ * Layout of persistable_[class name, with dots as underscores]:
+ * id (int, primary key), row_class (the class name of the row), row_data (the row, as written by the codec)
+ * <p>
+ * The indexed fields of types that implement HasIndexes are kept next to it, in persistable_[class name]_index:
+ * id (the row), field (the name of the field), field_value (the value as text, cut to 255 characters), with an
+ * index on field and field_value. They are written in the same transaction as the rows, so findBy and findKeys
+ * on an indexed field only read the rows that match. A row is only returned if its own field is equal to the value,
+ * so values that look the same as text (or compare equal in the database's collation) are told apart. The fields are
+ * kept as rows rather than one column each, since a type's fields are only known from its rows, and adding a column
+ * once a unit of work is open would have to wait for that unit of work to end.
+ * <p>
+ * The last primary key handed out for each type is kept in persistable_keys, and is only ever raised inside
+ * the same database transaction as the rows that use it, so that any number of writers can create rows at once.
+ * Lookups by id go through the primary key index of the table. Inserts, updates and deletes of a list are sent as
+ * one batch of prepared statements, and a unit of work (beginBatch to commit) is one database transaction.
+ */
+public class JdbcPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface {
+
+    private static final String KEY_TABLE = "persistable_keys";
+    private static final int VALUE_LENGTH = 255;
+    private static final int IN_LIST_SIZE = 500;
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Hands out connections to the database.
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Reads and writes the row_data column.
+     */
+    private final RowCodec codec;
+
+    /**
+     * The tables that are known to exist, so that each one is only created once.
+     */
+    private final Set<String> tables = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The unit of work of each thread, if it has one open.
+     */
+    private final ThreadLocal<Unit> units = new ThreadLocal<>();
+
+
+    /**
+     * Initializes this class to save with Java serialization.
+     *
+     * @param dataSource Hands out connections to the database.
+     */
+    public JdbcPersistenceGateway(DataSource dataSource) {
+        this(dataSource, new JavaRowCodec());
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param dataSource Hands out connections to the database.
+     * @param codec      Reads and writes the row_data column.
+     */
+    public JdbcPersistenceGateway(DataSource dataSource, RowCodec codec) {
+        this.dataSource = dataSource;
+        this.codec = codec;
+    }
+
+
+    /**
+     * Returns one instance of records based on the id, using the primary key index.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T, or null if there is no such record
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        String table = this.table(type);
+        byte[] row = this.transact(connection -> {
+            try (PreparedStatement select = connection.prepareStatement("SELECT row_data FROM " + table + " WHERE id = ?")) {
+                select.setInt(1, id);
+                try (ResultSet result = select.executeQuery()) {
+                    return result.next() ? result.getBytes(1) : null;
+                }
+            }
+        });
+        return row == null ? null : type.cast(this.codec.decode(row));
+
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList, using the primary key index.
+     * The records are returned in the order of the provided ids, ids that do not exist are skipped.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        String table = this.table(type);
+        Map<Integer, byte[]> rows = this.transact(connection -> {
+            Map<Integer, byte[]> found = new HashMap<>();
+            for (int from = 0; from < idList.size(); from += IN_LIST_SIZE) {
+                List<Integer> ids = idList.subList(from, Math.min(idList.size(), from + IN_LIST_SIZE));
+                String sql = "SELECT id, row_data FROM " + table + " WHERE id IN (" + this.placeholders(ids.size()) + ")";
+                try (PreparedStatement select = connection.prepareStatement(sql)) {
+                    for (int i = 0; i < ids.size(); i++) select.setInt(i + 1, ids.get(i));
+                    try (ResultSet result = select.executeQuery()) {
+                        while (result.next()) found.put(result.getInt(1), result.getBytes(2));
+                    }
+                }
+            }
+            return found;
+        });
+
+        List<T> result = new ArrayList<>();
+        IntIndex seen = new IntIndex(idList.size());
+        for (Integer id : idList) {
+            byte[] row = rows.get(id);
+            if (row != null && seen.add(id)) result.add(type.cast(this.codec.decode(row)));
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type, in primary key order.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        String table = this.table(type);
+        List<byte[]> rows = this.transact(connection -> {
+            List<byte[]> found = new ArrayList<>();
+            try (Statement select = connection.createStatement();
+                 ResultSet result = select.executeQuery("SELECT row_data FROM " + table + " ORDER BY id")) {
+                while (result.next()) found.add(result.getBytes(1));
+            }
+            return found;
+        });
+
+        List<T> result = new ArrayList<>();
+        for (byte[] row : rows) result.add(type.cast(this.codec.decode(row)));
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type one at a time, in primary key order.
+     * Rows are read a page at a time, each page starting after the last primary key of the one before,
+     * so no connection is held open between pages and only one page is held in memory.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in the Stream
+     * @return A Stream of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) throws IOException {
+
+        String table = this.table(type);
+        Iterator<T> rows = new Iterator<T>() {
+            private final Deque<byte[]> page = new ArrayDeque<>();
+            private int lastKey = Integer.MIN_VALUE;
+            private boolean exhausted = false;
+
+            @Override
+            public boolean hasNext() {
+                if (this.page.isEmpty() && !this.exhausted) this.nextPage();
+                return !this.page.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                try {
+                    return type.cast(JdbcPersistenceGateway.this.codec.decode(this.page.poll()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void nextPage() {
+                String sql = "SELECT id, row_data FROM " + table + " WHERE id > ? ORDER BY id LIMIT " + PAGE_SIZE;
+                try {
+                    JdbcPersistenceGateway.this.transact(connection -> {
+                        try (PreparedStatement select = connection.prepareStatement(sql)) {
+                            select.setInt(1, this.lastKey);
+                            try (ResultSet result = select.executeQuery()) {
+                                while (result.next()) {
+                                    this.lastKey = result.getInt(1);
+                                    this.page.add(result.getBytes(2));
+                                }
+                            }
+                        }
+                        return null;
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                this.exhausted = this.page.size() < PAGE_SIZE;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL), false);
+
+    }
+
+
+    /**
+     * Gets all records whose indexed field has the given value, through the index table of the type.
+     * Fields that no row has ever been indexed on are found by scanning.
+     *
+     * @param field the name of the indexed field, for example "ownerId"
+     * @param value the value to look for, compared with equals
+     * @param type  .class information about class T.
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records, in the order of their primary keys
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        List<T> found = this.findIndexed(field, value, type);
+        return found != null ? found : PersistenceInterface.super.findBy(field, value, type);
+
+    }
+
+
+    /**
+     * Gets the primary keys of the records whose columns pass a condition. If a field is given, only the rows the
+     * index table has for its value are read. This gateway keeps no column store, so the columns are read from the
+     * decoded rows.
+     *
+     * @param type      .class information about class T.
+     * @param field     the name of an indexed field to narrow the search to, or null to look at every record
+     * @param value     the value of the indexed field to look for
+     * @param condition which records to keep. It must not keep the Columns it is given.
+     * @param <T>       the class type, which should implement HasColumns
+     * @return A List of the primary keys of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<Integer> findKeys(Class<T> type, String field, Object value, Predicate<Columns> condition) throws IOException {
+
+        List<T> found = field == null ? null : this.findIndexed(field, value, type);
+        if (found == null) return PersistenceInterface.super.findKeys(type, field, value, condition);
+
+        List<Integer> keys = new ArrayList<>();
+        for (T t : found) {
+            if (t instanceof HasColumns && condition.test(Columns.of((HasColumns) t))) keys.add(((HasColumns) t).getKey());
+        }
+        return keys;
+
+    }
+
+
+    /**
+     * Saves new objects into the table of this type with one batch of inserts. Will not modify existing objects.
+     * If any one of the objects have a primary key of 0, the gateway will automatically generate a primary key.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        this.hasDuplicateKeys(newObjList);
+        String table = this.table(type);
+
+        this.transact(connection -> {
+            if (!this.containsOneType(connection, table, newObjList)) throw new NonUniformObjectsException();
+
+            //Keys we hand out must be above every key given to us, so raise the counter past those first
+            int largest = 0;
+            int missing = 0;
+            for (Persistable p : newObjList) {
+                if (p.getKey() == 0) missing++;
+                else largest = Math.max(largest, p.getKey());
+            }
+            int newKey = this.allocateKeys(connection, type.getName(), largest, missing);
+            for (Persistable p : newObjList) {
+                if (p.getKey() == 0) p.setKey(newKey++);
+            }
+
+            String sql = "INSERT INTO " + table + " (id, row_class, row_data) VALUES (?, ?, ?)";
+            try (PreparedStatement insert = connection.prepareStatement(sql)) {
+                for (Persistable p : newObjList) {
+                    insert.setInt(1, p.getKey());
+                    insert.setString(2, p.getClass().getName());
+                    insert.setBytes(3, this.codec.encode(p));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            } catch (SQLException e) {
+                if (this.isConstraintViolation(e)) throw new EntryExistsException();
+                throw e;
+            }
+            this.index(connection, table, newObjList);
+            return null;
+        });
+
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        return this.create(new ArrayList<>(Collections.singletonList(newObject)), type).get(0);
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        return this.update(new ArrayList<>(Collections.singletonList(updateObj)), type);
+    }
+
+
+    /**
+     * Updates the records with the same primary key with one batch of updates.
+     * If any one of the records does not exist, none of them are updated.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        this.hasDuplicateKeys(updateObjList);
+        String table = this.table(type);
+
+        return this.transact(connection -> {
+            if (!this.containsOneType(connection, table, updateObjList)) throw new NonUniformObjectsException();
+
+            try (PreparedStatement update = connection.prepareStatement("UPDATE " + table + " SET row_data = ? WHERE id = ?")) {
+                for (Persistable p : updateObjList) {
+                    update.setBytes(1, this.codec.encode(p));
+                    update.setInt(2, p.getKey());
+                    update.addBatch();
+                }
+                for (int count : update.executeBatch()) {
+                    if (count == 0) throw new EntryDoesNotExistException();
+                }
+            }
+            this.unindex(connection, table, this.keysOf(updateObjList));
+            this.index(connection, table, updateObjList);
+            return true;
+        });
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects with one batch of deletes.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        if (idList.size() == 0) return false;
+        String table = this.table(type);
+
+        return this.transact(connection -> {
+            boolean deleted = false;
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE id = ?")) {
+                for (Integer id : idList) {
+                    delete.setInt(1, id);
+                    delete.addBatch();
+                }
+                for (int count : delete.executeBatch()) {
+                    if (count != 0) deleted = true;
+                }
+            }
+            this.unindex(connection, table, idList);
+            return deleted;
+        });
+
+    }
+
+
+    /**
+     * Removes all records relating to this key, by dropping its table and forgetting its primary keys.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the table exists and was successfully dropped, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        String table = this.tableName(type.getName());
+        this.tables.remove(table);
+
+        try (Connection connection = this.dataSource.getConnection()) {
+            boolean existed = this.exists(connection, table);
+            try (Statement drop = connection.createStatement()) {
+                drop.executeUpdate("DROP TABLE IF EXISTS " + table);
+                drop.executeUpdate("DROP TABLE IF EXISTS " + table + "_index");
+            }
+            this.ensureKeyTable(connection);
+            try (PreparedStatement forget = connection.prepareStatement("DELETE FROM " + KEY_TABLE + " WHERE type_name = ?")) {
+                forget.setString(1, type.getName());
+                forget.executeUpdate();
+            }
+            return existed;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work on the calling thread, which is one database transaction.
+     * Reads made by this thread go through the same transaction, so they see its own changes.
+     */
+    @Override
+    public void beginBatch() {
+
+        Unit unit = this.units.get();
+        if (unit != null) {
+            unit.depth++;
+            return;
+        }
+        this.units.set(new Unit());
+
+    }
+
+
+    /**
+     * Commits the database transaction of this unit of work, once the outermost commit is reached.
+     * If a statement inside the unit of work failed, the transaction is rolled back instead.
+     *
+     * @throws IOException throws this exception if there is a IO error, or a statement inside the unit of work failed.
+     */
+    @Override
+    public void commit() throws IOException {
+
+        Unit unit = this.units.get();
+        if (unit == null) return;
+        if (--unit.depth > 0) return;
+        this.units.remove();
+
+        if (unit.connection == null) return;
+        try (Connection connection = unit.connection) {
+            if (unit.failed) {
+                connection.rollback();
+                throw new PersistenceException();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+
+    /**
+     * Rolls back the database transaction of this unit of work, and ends it.
+     * Does nothing if the calling thread has no unit of work open.
+     */
+    @Override
+    public void rollback() {
+
+        Unit unit = this.units.get();
+        if (unit == null) return;
+        this.units.remove();
+
+        if (unit.connection == null) return;
+        try (Connection connection = unit.connection) {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * The open unit of work of a thread. The connection is only taken from the pool once a statement is run.
+     */
+    private static class Unit {
+
+        private Connection connection;
+        private int depth = 1;
+        private boolean failed = false;
+
+    }
+
+
+    /**
+     * Work done with a connection, which may run statements and decode rows.
+     */
+    private interface Work<R> {
+
+        R run(Connection connection) throws SQLException, IOException;
+
+    }
+
+
+    /**
+     * Runs this work inside the calling thread's unit of work if it has one, and in a transaction of its own otherwise.
+     */
+    private <R> R transact(Work<R> work) throws IOException {
+
+        Unit unit = this.units.get();
+        if (unit != null) {
+            try {
+                if (unit.connection == null) unit.connection = this.open();
+                return work.run(unit.connection);
+            } catch (SQLException e) {
+                unit.failed = true;
+                throw new IOException(e);
+            } catch (IOException | RuntimeException e) {
+                unit.failed = true;
+                throw e;
+            }
+        }
+
+        try (Connection connection = this.open()) {
+            try {
+                R result = work.run(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | IOException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+
+    private Connection open() throws SQLException {
+
+        Connection connection = this.dataSource.getConnection();
+        connection.setAutoCommit(false);
+        return connection;
+
+    }
+
+
+    /**
+     * Gets the table of this type, creating it the first time it is used.
+     */
+    private <T> String table(Class<T> type) throws IOException {
+
+        String table = this.tableName(type.getName());
+        if (this.tables.contains(table)) return table;
+
+        //Tables are created outside any unit of work, since some databases commit as soon as a table is created
+        try (Connection connection = this.dataSource.getConnection(); Statement create = connection.createStatement()) {
+            boolean indexed = this.exists(connection, table + "_index");
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "id INT NOT NULL PRIMARY KEY, "
+                    + "row_class VARCHAR(255) NOT NULL, "
+                    + "row_data LONGBLOB NOT NULL)");
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + "_index ("
+                    + "id INT NOT NULL, "
+                    + "field VARCHAR(64) NOT NULL, "
+                    + "field_value VARCHAR(" + VALUE_LENGTH + "), "
+                    + "PRIMARY KEY (id, field))");
+            this.ensureKeyTable(connection);
+            if (!indexed) {
+                create.executeUpdate("CREATE INDEX " + table + "_by_value ON " + table + "_index (field, field_value)");
+                this.reindex(connection, table);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        this.tables.add(table);
+        return table;
+
+    }
+
+
+    /**
+     * Finds the rows whose indexed field has this value through the index table, in the order of their primary keys.
+     *
+     * @return the matching rows, or null if no row of the type has been indexed on this field
+     */
+    private <T> List<T> findIndexed(String field, Object value, Class<T> type) throws IOException {
+
+        String table = this.table(type);
+        List<byte[]> rows = this.transact(connection -> {
+            try (PreparedStatement known = connection.prepareStatement("SELECT 1 FROM " + table + "_index WHERE field = ? LIMIT 1")) {
+                known.setString(1, field);
+                try (ResultSet result = known.executeQuery()) {
+                    if (!result.next()) return null;
+                }
+            }
+            String sql = "SELECT t.row_data FROM " + table + " t JOIN " + table + "_index i ON i.id = t.id "
+                    + "WHERE i.field = ? AND i.field_value " + (value == null ? "IS NULL" : "= ?") + " ORDER BY t.id";
+            List<byte[]> found = new ArrayList<>();
+            try (PreparedStatement select = connection.prepareStatement(sql)) {
+                select.setString(1, field);
+                if (value != null) select.setString(2, this.text(value));
+                try (ResultSet result = select.executeQuery()) {
+                    while (result.next()) found.add(result.getBytes(1));
+                }
+            }
+            return found;
+        });
+        if (rows == null) return null;
+
+        List<T> result = new ArrayList<>();
+        for (byte[] row : rows) {
+            Persistable p = this.codec.decode(row);
+            if (p instanceof HasIndexes && Objects.equals(((HasIndexes) p).getIndexedFields().get(field), value)) {
+                result.add(type.cast(p));
+            }
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Writes the indexed fields of rows to the index table, if they have any.
+     */
+    private <T extends Persistable> void index(Connection connection, String table, List<T> rows) throws SQLException {
+
+        if (rows.isEmpty() || !(rows.get(0) instanceof HasIndexes)) return;
+        String sql = "INSERT INTO " + table + "_index (id, field, field_value) VALUES (?, ?, ?)";
+        try (PreparedStatement insert = connection.prepareStatement(sql)) {
+            for (T row : rows) {
+                for (Map.Entry<String, Object> entry : ((HasIndexes) row).getIndexedFields().entrySet()) {
+                    insert.setInt(1, row.getKey());
+                    insert.setString(2, entry.getKey());
+                    insert.setString(3, entry.getValue() == null ? null : this.text(entry.getValue()));
+                    insert.addBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+
+    }
+
+
+    /**
+     * Takes rows out of the index table.
+     */
+    private void unindex(Connection connection, String table, List<Integer> ids) throws SQLException {
+
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + "_index WHERE id = ?")) {
+            for (Integer id : ids) {
+                delete.setInt(1, id);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+
+    }
+
+
+    /**
+     * Indexes the rows already in a table whose index table has just been made, a page at a time.
+     */
+    private void reindex(Connection connection, String table) throws SQLException, IOException {
+
+        connection.setAutoCommit(false);
+        try {
+            int lastKey = Integer.MIN_VALUE;
+            while (true) {
+                List<Persistable> page = new ArrayList<>();
+                String sql = "SELECT id, row_data FROM " + table + " WHERE id > ? ORDER BY id LIMIT " + PAGE_SIZE;
+                try (PreparedStatement select = connection.prepareStatement(sql)) {
+                    select.setInt(1, lastKey);
+                    try (ResultSet result = select.executeQuery()) {
+                        while (result.next()) {
+                            lastKey = result.getInt(1);
+                            page.add(this.codec.decode(result.getBytes(2)));
+                        }
+                    }
+                }
+                this.index(connection, table, page);
+                if (page.size() < PAGE_SIZE) break;
+            }
+            connection.commit();
+        } catch (SQLException | IOException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        }
+
+    }
+
+
+    private boolean exists(Connection connection, String table) throws SQLException {
+
+        try (ResultSet result = connection.getMetaData().getTables(null, null, table, null);
+             ResultSet upper = connection.getMetaData().getTables(null, null, table.toUpperCase(), null)) {
+            return result.next() || upper.next();
+        }
+
+    }
+
+
+    private String text(Object value) {
+
+        String text = String.valueOf(value);
+        return text.length() > VALUE_LENGTH ? text.substring(0, VALUE_LENGTH) : text;
+
+    }
+
+
+    private <T extends Persistable> List<Integer> keysOf(List<T> rows) {
+
+        List<Integer> keys = new ArrayList<>();
+        for (T row : rows) keys.add(row.getKey());
+        return keys;
+
+    }
+
+
+    private void ensureKeyTable(Connection connection) throws SQLException {
+
+        try (Statement create = connection.createStatement()) {
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS " + KEY_TABLE + " ("
+                    + "type_name VARCHAR(255) NOT NULL PRIMARY KEY, "
+                    + "last_key INT NOT NULL)");
+        }
+
+    }
+
+
+    /**
+     * Raises the last key of this type to at least largest, then reserves count more keys after it.
+     * The key row stays locked until the transaction ends, so no two writers can be handed the same keys.
+     *
+     * @return the first of the reserved keys
+     */
+    private int allocateKeys(Connection connection, String typeName, int largest, int count) throws SQLException {
+
+        String table = this.tableName(typeName);
+        try (PreparedStatement raise = connection.prepareStatement("UPDATE " + KEY_TABLE
+                + " SET last_key = CASE WHEN last_key < ? THEN ? ELSE last_key END + ? WHERE type_name = ?")) {
+            raise.setInt(1, largest);
+            raise.setInt(2, largest);
+            raise.setInt(3, count);
+            raise.setString(4, typeName);
+            if (raise.executeUpdate() == 0) {
+                //First rows of this type, so start counting after any row already in the table
+                try (PreparedStatement start = connection.prepareStatement("INSERT INTO " + KEY_TABLE
+                        + " (type_name, last_key) SELECT ?, COALESCE(MAX(id), 0) FROM " + table)) {
+                    start.setString(1, typeName);
+                    start.executeUpdate();
+                } catch (SQLException e) {
+                    //Another writer started the count first, which is just as good
+                    if (!this.isConstraintViolation(e)) throw e;
+                }
+                raise.executeUpdate();
+            }
+        }
+
+        try (PreparedStatement select = connection.prepareStatement("SELECT last_key FROM " + KEY_TABLE + " WHERE type_name = ?")) {
+            select.setString(1, typeName);
+            try (ResultSet result = select.executeQuery()) {
+                result.next();
+                return result.getInt(1) - count + 1;
+            }
+        }
+
+    }
+
+
+    private <T extends Persistable> boolean containsOneType(Connection connection, String table, List<T> newList) throws SQLException {
+
+        for (Persistable p : newList) {
+            if (p.getClass() != newList.get(0).getClass()) return false;
+        }
+
+        //Every row in a table is the same type, so we only need to match one of them.
+        try (Statement select = connection.createStatement();
+             ResultSet result = select.executeQuery("SELECT row_class FROM " + table + " LIMIT 1")) {
+            return !result.next() || result.getString(1).equals(newList.get(0).getClass().getName());
+        }
+
+    }
+
+
+    private <T extends Persistable> boolean hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
+
+        IntIndex s = new IntIndex(persistableList.size());
+        for (Persistable p : persistableList) {
+            if (p.getKey() != 0 && !s.add(p.getKey())) {
+                throw new EntryExistsException();
+            }
+        }
+        return false;
+
+    }
+
+
+    /**
+     * Whether this error, or the one behind it in a batch, is a broken constraint such as a duplicate primary key.
+     */
+    private boolean isConstraintViolation(SQLException e) {
+
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            if (cause instanceof SQLIntegrityConstraintViolationException) return true;
+            if (cause.getSQLState() != null && cause.getSQLState().startsWith("23")) return true;
+        }
+        return false;
+
+    }
+
+
+    private String placeholders(int count) {
+
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < count; i++) sql.append(i == 0 ? "?" : ", ?");
+        return sql.toString();
+
+    }
+
+
+    private String tableName(String typeName) {
+        return "persistable_" + typeName.replace('.', '_').toLowerCase();
+    }
+
+
+}
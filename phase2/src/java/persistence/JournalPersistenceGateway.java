@@ -0,0 +1,847 @@
+package persistence;
+
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.index.IntIndex;
+import persistence.metrics.Measurable;
+import persistence.metrics.PersistenceMetrics;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Persists to a snapshot .ser file plus an append-only journal for each type.
+ * <p>
+ * The snapshot has exactly the same format as the files written by SerPersistenceGateway with the same codec, so
+ * existing data is picked up without any migration. Every create, update or delete only appends one small record per
+ * changed row to serfile[Class].journal, instead of rewriting the whole table, and syncs the journal before it
+ * returns.
+ * <p>
+ * Once enough records have piled up in a journal (or periodically, in the background) the journal is folded into a new
+ * snapshot, which is synced and renamed into place before the journal is deleted. Loading a type is then a snapshot
+ * load followed by a replay of its journal.
+ * <p>
+ * Inside a unit of work the records of every type are held back until commit, then written and synced to one batch
+ * log before they are appended to their journals. If we crash half way through the appends, the batch log is
+ * appended again the next time this class is created, so a unit of work is either saved completely or not at all.
+ * The batch log is only deleted once every journal it was appended to is synced.
+ */
+public class JournalPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface, Measurable {
+
+    /**
+     * The kinds of records that can be found in a journal.
+     */
+    private static final byte CREATE = 1;
+    private static final byte UPDATE = 2;
+    private static final byte DELETE = 3;
+
+    /**
+     * Where the records of a unit of work are kept until they are all in their journals, in the directory.
+     */
+    private static final String BATCH_FILE = "serfile.batch";
+
+    /**
+     * How many journal records a type can have before it is folded into a new snapshot.
+     */
+    private final int snapshotThreshold;
+
+    /**
+     * Reads and writes the rows in the journal and the snapshot.
+     */
+    private final RowCodec codec;
+
+    /**
+     * The directory the files are kept in, or null for the working directory.
+     */
+    private final File directory;
+
+    /**
+     * Holds the state of each type that has been touched, keyed by class name.
+     */
+    private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+
+    /**
+     * Holds the unit of work that each thread has open, if any.
+     */
+    private final ThreadLocal<Batch> batches = new ThreadLocal<>();
+
+    /**
+     * Only one unit of work can use the batch log at a time.
+     */
+    private final Object batchLock = new Object();
+
+    /**
+     * Runs snapshots in the background so that no request has to wait for one.
+     */
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Counts the bytes read and written and the rows decoded, or null if nothing is counted.
+     */
+    private PersistenceMetrics.Recorder metrics;
+
+
+    /**
+     * Initializes this class with a snapshot every 1000 records, and a check for pending records every 30 seconds.
+     */
+    public JournalPersistenceGateway() {
+        this(1000, 30);
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param snapshotThreshold       How many journal records a type can have before a snapshot is taken.
+     * @param snapshotIntervalSeconds How often, in seconds, types with any journal records are snapshotted.
+     */
+    public JournalPersistenceGateway(int snapshotThreshold, long snapshotIntervalSeconds) {
+        this(snapshotThreshold, snapshotIntervalSeconds, new JavaRowCodec());
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param snapshotThreshold       How many journal records a type can have before a snapshot is taken.
+     * @param snapshotIntervalSeconds How often, in seconds, types with any journal records are snapshotted.
+     * @param codec                   Reads and writes the rows in the journal and the snapshot.
+     */
+    public JournalPersistenceGateway(int snapshotThreshold, long snapshotIntervalSeconds, RowCodec codec) {
+        this(snapshotThreshold, snapshotIntervalSeconds, codec, null);
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param snapshotThreshold       How many journal records a type can have before a snapshot is taken.
+     * @param snapshotIntervalSeconds How often, in seconds, types with any journal records are snapshotted.
+     * @param codec                   Reads and writes the rows in the journal and the snapshot.
+     * @param directory               The directory the files are kept in, or null for the working directory.
+     */
+    public JournalPersistenceGateway(int snapshotThreshold, long snapshotIntervalSeconds, RowCodec codec, File directory) {
+        this.snapshotThreshold = snapshotThreshold;
+        this.codec = codec;
+        this.directory = directory;
+        try {
+            this.recoverBatch();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.snapshotter.scheduleWithFixedDelay(this::snapshotAll, snapshotIntervalSeconds, snapshotIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Starts counting, by type, the bytes this gateway reads from snapshots and journals and appends to them, and the
+     * rows it decodes. Bytes written to the batch log are counted without a type.
+     *
+     * @param metrics Where to record
+     */
+    @Override
+    public void setMetrics(PersistenceMetrics.Recorder metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Returns one instance of records based on the id.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+        List<T> results = this.get(Collections.singletonList(id), type);
+        if (results.size() > 0) return results.get(0);
+        return null;
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        IntIndex ids = new IntIndex(idList.size());
+        for (Integer id : idList) ids.add(id);
+        List<T> result = new ArrayList<>();
+        for (T t : this.all(type)) {
+            if (ids.containsKey(((Persistable) t).getKey())) result.add(t);
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type, by loading the snapshot and replaying the journal on top of it.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        Journal journal = this.journal(type);
+        List<T> result = new ArrayList<>();
+        synchronized (journal) {
+            for (Persistable p : this.load(journal).values()) {
+                result.add(type.cast(p));
+            }
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Saves new objects into persistence by appending them to the journal. Will not modify existing objects.
+     * If any one of the objects have a primary key of 0, the gateway will automatically generate a primary key.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        this.hasDuplicateKeys(newObjList);
+        Journal journal = this.journal(type);
+
+        synchronized (journal) {
+            if (!this.containsOneType(newObjList, journal)) throw new NonUniformObjectsException();
+
+            //Check for conflicts before any key is handed out, so that nothing changes if we fail
+            int newKey = journal.nextKey;
+            for (Persistable p : newObjList) {
+                if (p.getKey() != 0 && journal.ids.containsKey(p.getKey())) throw new EntryExistsException();
+                if (p.getKey() >= newKey) newKey = p.getKey() + 1;
+            }
+            for (Persistable p : newObjList) {
+                if (p.getKey() == 0) {
+                    p.setKey(newKey);
+                    newKey++;
+                }
+            }
+
+            this.append(journal, CREATE, newObjList);
+            for (Persistable p : newObjList) {
+                journal.ids.add(p.getKey());
+                this.staged(journal, p.getKey(), true);
+            }
+            journal.nextKey = newKey;
+            journal.rowClass = newObjList.get(0).getClass();
+        }
+
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        return this.create(new ArrayList<>(Collections.singletonList(newObject)), type).get(0);
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        return this.update(new ArrayList<>(Collections.singletonList(updateObj)), type);
+    }
+
+
+    /**
+     * Updates the records with the same primary key by appending the new versions to the journal.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        this.hasDuplicateKeys(updateObjList);
+        Journal journal = this.journal(type);
+
+        synchronized (journal) {
+            if (!this.containsOneType(updateObjList, journal)) throw new NonUniformObjectsException();
+            for (Persistable p : updateObjList) {
+                if (!journal.ids.containsKey(p.getKey())) throw new EntryDoesNotExistException();
+            }
+            this.append(journal, UPDATE, updateObjList);
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects from persistence by appending delete records to the journal.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        Journal journal = this.journal(type);
+
+        synchronized (journal) {
+            Set<Integer> existing = new LinkedHashSet<>();
+            for (Integer id : idList) {
+                if (journal.ids.containsKey(id)) existing.add(id);
+            }
+            if (existing.isEmpty()) return false;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            for (Integer id : existing) {
+                output.writeByte(DELETE);
+                output.writeInt(id);
+                output.writeInt(0);
+            }
+            this.write(journal, bytes.toByteArray(), existing.size());
+            for (Integer id : existing) {
+                journal.ids.remove(id);
+                this.staged(journal, id, false);
+            }
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Removes all records relating to this key, which deletes both the snapshot and the journal.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the file exists and was successfully deleted, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        Journal journal = this.journals.computeIfAbsent(type.getName(), Journal::new);
+        synchronized (journal) {
+            boolean snapshotDeleted = new File(this.getSnapshotPath(journal.name)).delete();
+            boolean journalDeleted = new File(this.getJournalPath(journal.name)).delete();
+            new File(this.getTombstonePath(journal.name)).delete();
+            this.journals.remove(type.getName());
+            journal.loaded = false;
+            return snapshotDeleted || journalDeleted;
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work on the calling thread, or joins the one that is already open.
+     */
+    @Override
+    public void beginBatch() {
+
+        Batch batch = this.batches.get();
+        if (batch != null) batch.depth++;
+        else this.batches.set(new Batch());
+
+    }
+
+
+    /**
+     * Writes the records of the outermost unit of work to the batch log and syncs it, then appends them to the
+     * journal of each type and drops the batch log.
+     *
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void commit() throws IOException {
+
+        Batch batch = this.batches.get();
+        if (batch == null) return;
+        if (--batch.depth > 0) return;
+
+        this.batches.remove();
+        if (batch.records.isEmpty()) return;
+
+        synchronized (this.batchLock) {
+            File log = new File(this.directory, BATCH_FILE);
+            try (FileOutputStream file = new FileOutputStream(log);
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file))) {
+                output.writeInt(batch.records.size());
+                for (Map.Entry<Journal, ByteArrayOutputStream> entry : batch.records.entrySet()) {
+                    output.writeUTF(entry.getKey().name);
+                    output.writeInt(entry.getValue().size());
+                    entry.getValue().writeTo(output);
+                }
+                output.flush();
+                file.getFD().sync();
+                if (this.metrics != null) this.metrics.written("", file.getChannel().position());
+            }
+
+            for (Map.Entry<Journal, ByteArrayOutputStream> entry : batch.records.entrySet()) {
+                Journal journal = entry.getKey();
+                synchronized (journal) {
+                    this.appendJournal(journal.name, entry.getValue().toByteArray());
+                    if (this.metrics != null) this.metrics.written(journal.name, entry.getValue().size());
+                    this.recorded(journal, batch.counts.get(journal));
+                }
+            }
+            //Every journal is synced by now, so the unit of work no longer needs its batch log
+            log.delete();
+        }
+
+    }
+
+
+    /**
+     * Throws away the records buffered on the calling thread, and takes the rows it created out of the known keys and
+     * puts back the ones it deleted. Other threads' changes are left alone, and so is the key counter: the keys this
+     * unit of work was handed are simply never used.
+     */
+    @Override
+    public void rollback() {
+
+        Batch batch = this.batches.get();
+        if (batch == null) return;
+
+        this.batches.remove();
+        Set<Journal> touched = new HashSet<>(batch.added.keySet());
+        touched.addAll(batch.removed.keySet());
+        for (Journal journal : touched) {
+            synchronized (journal) {
+                IntIndex added = batch.added.get(journal);
+                IntIndex removed = batch.removed.get(journal);
+                if (added != null) for (int id : added.keys()) journal.ids.remove(id);
+                if (removed != null) for (int id : removed.keys()) journal.ids.add(id);
+                if (journal.ids.size() == 0) journal.rowClass = null;
+            }
+        }
+
+    }
+
+
+    /**
+     * Folds the journal of every type that has pending records into a new snapshot.
+     */
+    public void snapshotAll() {
+        for (Journal journal : this.journals.values()) {
+            try {
+                this.snapshot(journal);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Holds what we need to know about a type to validate writes without reading its rows.
+     */
+    private static class Journal {
+
+        private final String name;
+        private final IntIndex ids = new IntIndex();
+        private int nextKey = 1;
+        private int pendingRecords = 0;
+        private Class<?> rowClass = null;
+        private boolean loaded = false;
+
+        private Journal(String name) {
+            this.name = name;
+        }
+
+    }
+
+
+    /**
+     * The records that one thread has held back in a unit of work, grouped by type, and the keys it has added to and
+     * removed from each type so far, so that a rollback can undo just those.
+     */
+    private static class Batch {
+
+        private final Map<Journal, ByteArrayOutputStream> records = new LinkedHashMap<>();
+        private final Map<Journal, Integer> counts = new HashMap<>();
+        private final Map<Journal, IntIndex> added = new HashMap<>();
+        private final Map<Journal, IntIndex> removed = new HashMap<>();
+        private int depth = 1;
+
+    }
+
+
+    private <T> Journal journal(Class<T> type) throws IOException {
+
+        Journal journal = this.journals.computeIfAbsent(type.getName(), Journal::new);
+        synchronized (journal) {
+            if (!journal.loaded) {
+                Map<Integer, Persistable> rows = this.load(journal);
+                for (Integer id : rows.keySet()) journal.ids.add(id);
+                for (Persistable p : rows.values()) {
+                    if (p.getKey() >= journal.nextKey) journal.nextKey = p.getKey() + 1;
+                    journal.rowClass = p.getClass();
+                }
+                journal.loaded = true;
+            }
+        }
+        return journal;
+
+    }
+
+
+    private Map<Integer, Persistable> load(Journal journal) throws IOException {
+
+        Map<Integer, Persistable> rows = new LinkedHashMap<>();
+        try {
+            List<Persistable> snapshot = this.readSnapshot(this.getSnapshotPath(journal.name));
+            for (Persistable p : snapshot) {
+                rows.put(p.getKey(), p);
+            }
+            if (this.metrics != null) {
+                this.metrics.read(journal.name, new File(this.getSnapshotPath(journal.name)).length());
+                this.metrics.scanned(journal.name, snapshot.size());
+            }
+        } catch (FileNotFoundException e) {
+            //Do nothing, a type that has never been snapshotted simply starts empty
+        }
+
+        //A snapshot written by SerPersistenceGateway may still hold rows it deleted with tombstones
+        File tombstones = new File(this.getTombstonePath(journal.name));
+        if (tombstones.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(tombstones)))) {
+                while (true) rows.remove(input.readInt());
+            } catch (EOFException e) {
+                //The end of the tombstones
+            }
+        }
+
+        File file = new File(this.getJournalPath(journal.name));
+        if (!file.exists()) return rows;
+
+        long validLength = 0;
+        int records = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int op = input.read();
+                if (op == -1) break;
+                int id = input.readInt();
+                byte[] row = new byte[input.readInt()];
+                input.readFully(row);
+
+                if (op == DELETE) rows.remove(id);
+                else rows.put(id, this.codec.decode(row));
+
+                validLength += 1 + 4 + 4 + row.length;
+                records++;
+            }
+        } catch (EOFException e) {
+            //The last record was only partly written before a crash, so we ignore it
+        }
+
+        //Cut off a torn record so new records are not appended after it
+        if (validLength < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        journal.pendingRecords = records;
+        if (this.metrics != null) {
+            this.metrics.read(journal.name, validLength);
+            this.metrics.scanned(journal.name, records);
+        }
+
+        return rows;
+
+    }
+
+
+    private void snapshot(Journal journal) throws IOException {
+
+        synchronized (journal) {
+            if (journal.pendingRecords == 0 || !journal.loaded) return;
+
+            List<Persistable> rows = new ArrayList<>(this.load(journal).values());
+            File snapshot = new File(this.getSnapshotPath(journal.name));
+            File temp = new File(this.getSnapshotPath(journal.name) + ".tmp");
+            this.writeSnapshot(rows, temp);
+            if (this.metrics != null) this.metrics.written(journal.name, temp.length());
+
+            //Only drop the journal once the new snapshot is fully in place, and its rename is on disk as well
+            if (!temp.renameTo(snapshot)) {
+                snapshot.delete();
+                if (!temp.renameTo(snapshot)) throw new IOException("Could not replace snapshot of " + journal.name);
+            }
+            this.syncDirectory(snapshot);
+            new File(this.getJournalPath(journal.name)).delete();
+            new File(this.getTombstonePath(journal.name)).delete();
+            journal.pendingRecords = 0;
+        }
+
+    }
+
+
+    private <T extends Persistable> void append(Journal journal, byte op, List<T> rows) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (Persistable p : rows) {
+            byte[] row = this.codec.encode(p);
+            output.writeByte(op);
+            output.writeInt(p.getKey());
+            output.writeInt(row.length);
+            output.write(row);
+        }
+        this.write(journal, bytes.toByteArray(), rows.size());
+
+    }
+
+
+    /**
+     * Appends encoded records to a journal, or holds them back if the calling thread has a unit of work open.
+     */
+    private void write(Journal journal, byte[] records, int count) throws IOException {
+
+        Batch batch = this.batches.get();
+        if (batch != null) {
+            batch.records.computeIfAbsent(journal, j -> new ByteArrayOutputStream()).write(records);
+            batch.counts.merge(journal, count, Integer::sum);
+            return;
+        }
+
+        this.appendJournal(journal.name, records);
+        if (this.metrics != null) this.metrics.written(journal.name, records.length);
+        this.recorded(journal, count);
+
+    }
+
+
+    /**
+     * Finishes a unit of work whose batch log was synced, but which may not have reached every journal.
+     * Appending its records a second time is harmless, since replaying a record only sets or removes that row.
+     */
+    private void recoverBatch() throws IOException {
+
+        File log = new File(this.directory, BATCH_FILE);
+        if (!log.exists()) return;
+
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            int types = input.readInt();
+            for (int i = 0; i < types; i++) {
+                String name = input.readUTF();
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                records.put(name, bytes);
+            }
+        } catch (EOFException e) {
+            //The batch log itself was torn, so the unit of work never committed and nothing reached a journal
+            log.delete();
+            return;
+        }
+
+        for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+            //Loading cuts off a record that was torn in the crash, so we append after the last whole one
+            Journal journal = new Journal(entry.getKey());
+            this.load(journal);
+            this.appendJournal(journal.name, entry.getValue());
+        }
+        log.delete();
+
+    }
+
+
+    /**
+     * Remembers that the unit of work the calling thread has open, if any, added or removed a key of a type.
+     * Deleting a key it created, or creating one it deleted, cancels out.
+     */
+    private void staged(Journal journal, int id, boolean added) {
+
+        Batch batch = this.batches.get();
+        if (batch == null) return;
+        IntIndex opposite = (added ? batch.removed : batch.added).get(journal);
+        if (opposite != null && opposite.remove(id) != IntIndex.MISSING) return;
+        (added ? batch.added : batch.removed).computeIfAbsent(journal, j -> new IntIndex()).add(id);
+
+    }
+
+
+    /**
+     * Appends records to the journal of a type and syncs it, so that they are on disk before the change is reported
+     * as saved.
+     */
+    private void appendJournal(String name, byte[] records) throws IOException {
+
+        try (FileOutputStream file = new FileOutputStream(this.getJournalPath(name), true)) {
+            file.write(records);
+            file.getFD().sync();
+        }
+
+    }
+
+
+    private void recorded(Journal journal, int records) {
+        journal.pendingRecords += records;
+        if (journal.pendingRecords >= this.snapshotThreshold) {
+            this.snapshotter.execute(() -> {
+                try {
+                    this.snapshot(journal);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+
+    private List<Persistable> readSnapshot(String filePath) throws IOException {
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(filePath))) {
+            return this.codec.readAll(input);
+        }
+
+    }
+
+
+    /**
+     * Writes the rows to a file and syncs it.
+     */
+    private void writeSnapshot(List<Persistable> rows, File file) throws IOException {
+
+        try (FileOutputStream stream = new FileOutputStream(file);
+             OutputStream output = new BufferedOutputStream(stream)) {
+            this.codec.writeAll(rows, output);
+            output.flush();
+            stream.getFD().sync();
+        }
+
+    }
+
+
+    /**
+     * Syncs the directory a file is in, so that a rename into it survives a crash. Some platforms cannot open a
+     * directory at all, and there the rename is left to the file system.
+     */
+    private void syncDirectory(File file) {
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //This platform does not let us sync a directory
+        }
+
+    }
+
+
+    private String getSnapshotPath(String fileName) {
+        return new File(this.directory, "serfile" + fileName + ".ser").getPath();
+    }
+
+
+    private String getJournalPath(String fileName) {
+        return new File(this.directory, "serfile" + fileName + ".journal").getPath();
+    }
+
+
+    private String getTombstonePath(String fileName) {
+        return new File(this.directory, "serfile" + fileName + ".tombstones").getPath();
+    }
+
+
+    private <T extends Persistable> boolean containsOneType(List<T> newList, Journal journal) {
+
+        for (T t : newList) {
+            if (t.getClass() != newList.get(0).getClass()) return false;
+        }
+        return journal.rowClass == null || journal.rowClass == newList.get(0).getClass();
+
+    }
+
+
+    private <T extends Persistable> void hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
+
+        IntIndex s = new IntIndex(persistableList.size());
+        for (Persistable p : persistableList) {
+            if (p.getKey() != 0 && !s.add(p.getKey())) {
+                throw new EntryExistsException();
+            }
+        }
+
+    }
+
+
+}
@@ -0,0 +1,713 @@
+package persistence;
+
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.index.IntIndex;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+
+/**
+ * Persists each type to a memory-mapped segment file made up of fixed-size slots, one row per slot.
+ * <p>
+ * A directory from primary key to slot is built when the segment is opened, by only reading the small header of
+ * each slot. A single row can then be read, overwritten or deleted in place without touching the rest of the file,
+ * and the operating system's page cache keeps the hot parts of the file in memory for us.
+ * <p>
+ * Layout of serfile[Class].seg:
+ * header: magic (int), slot size (int), number of slots in use (int), next primary key (int)
+ * slots:  state (byte), primary key (int), row length (int), serialized row (the rest of the slot)
+ * <p>
+ * A slot is only marked live once everything else in it has been written, so a slot that was being filled when the
+ * process died is never read back. An update is written to a free slot rather than over the row it replaces: the old
+ * slot is marked as being replaced first, and only freed once the new slot is live. When a segment is opened, a slot
+ * still marked as being replaced is freed if a live slot with the same primary key exists, and is live again if not.
+ * <p>
+ * Changes reach the disk whenever the operating system writes the mapped pages back, and at the latest when flush or
+ * close is called.
+ * <p>
+ * If a segment does not exist yet but a .ser file written by SerPersistenceGateway does, the rows are imported
+ * from it the first time the type is opened.
+ */
+public class MappedPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface, AutoCloseable {
+
+    private static final int MAGIC = 0x5345474D;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 9;
+    private static final int MIN_SLOT_SIZE = 256;
+    private static final byte FREE = 0;
+    private static final byte LIVE = 1;
+    private static final byte REPLACED = 2;
+
+    /**
+     * Holds the open segment of each type, keyed by class name.
+     */
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * Reads and writes the rows in the slots, and the .ser files that are imported.
+     */
+    private final RowCodec codec;
+
+
+    /**
+     * Initializes this class to save with Java serialization.
+     */
+    public MappedPersistenceGateway() {
+        this(new JavaRowCodec());
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param codec Reads and writes the rows in the slots, and the .ser files that are imported.
+     */
+    public MappedPersistenceGateway(RowCodec codec) {
+        this.codec = codec;
+    }
+
+
+    /**
+     * Returns one instance of records based on the id.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T, or null if there is no such record
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        Segment segment = this.segment(type);
+        byte[] row;
+        synchronized (segment) {
+            int slot = segment.directory.get(id);
+            if (slot == IntIndex.MISSING) return null;
+            row = this.readSlot(segment, slot);
+        }
+        return type.cast(this.codec.decode(row));
+
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of the provided ids, ids that do not exist are skipped.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        Segment segment = this.segment(type);
+        IntIndex seen = new IntIndex(idList.size());
+        List<byte[]> rows = new ArrayList<>();
+        synchronized (segment) {
+            for (Integer id : idList) {
+                int slot = segment.directory.get(id);
+                if (slot != IntIndex.MISSING && seen.add(id)) rows.add(this.readSlot(segment, slot));
+            }
+        }
+
+        List<T> result = new ArrayList<>();
+        for (byte[] row : rows) result.add(type.cast(this.codec.decode(row)));
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type, in slot order.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        Segment segment = this.segment(type);
+        List<byte[]> rows = new ArrayList<>();
+        synchronized (segment) {
+            for (int slot = 0; slot < segment.slotsInUse; slot++) {
+                if (segment.buffer.get(this.offset(segment, slot)) == LIVE) rows.add(this.readSlot(segment, slot));
+            }
+        }
+
+        List<T> result = new ArrayList<>();
+        for (byte[] row : rows) result.add(type.cast(this.codec.decode(row)));
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records of this type one at a time, in slot order.
+     * Only the primary keys are read up front, each row is read from its slot and decoded when the stream reaches it.
+     * Rows deleted after the stream was opened are skipped.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in the Stream
+     * @return A Stream of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) throws IOException {
+
+        Segment segment = this.segment(type);
+        int[] keys;
+        int size = 0;
+        synchronized (segment) {
+            keys = new int[segment.directory.size()];
+            for (int slot = 0; slot < segment.slotsInUse; slot++) {
+                int offset = this.offset(segment, slot);
+                if (segment.buffer.get(offset) == LIVE) keys[size++] = segment.buffer.getInt(offset + 1);
+            }
+        }
+
+        return IntStream.of(keys).limit(size).mapToObj(id -> {
+            try {
+                return this.get(id, type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).filter(Objects::nonNull);
+
+    }
+
+
+    /**
+     * Saves new objects into free slots of the segment. Will not modify existing objects.
+     * If any one of the objects have a primary key of 0, the gateway will automatically generate a primary key.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        this.hasDuplicateKeys(newObjList);
+        Segment segment = this.segment(type);
+
+        synchronized (segment) {
+            if (!this.containsOneType(newObjList, segment)) throw new NonUniformObjectsException();
+
+            //Check for conflicts before any key is handed out, so that nothing changes if we fail
+            int newKey = segment.nextKey;
+            for (Persistable p : newObjList) {
+                if (p.getKey() != 0 && segment.directory.containsKey(p.getKey())) throw new EntryExistsException();
+                if (p.getKey() >= newKey) newKey = p.getKey() + 1;
+            }
+            for (Persistable p : newObjList) {
+                if (p.getKey() == 0) {
+                    p.setKey(newKey);
+                    newKey++;
+                }
+            }
+
+            List<byte[]> rows = this.encodeAll(newObjList);
+            this.fit(segment, rows);
+            for (int i = 0; i < rows.size(); i++) {
+                int slot = segment.freeCount > 0 ? segment.freeSlots[--segment.freeCount] : segment.slotsInUse++;
+                this.writeSlot(segment, slot, newObjList.get(i).getKey(), rows.get(i));
+                segment.directory.put(newObjList.get(i).getKey(), slot);
+            }
+            segment.nextKey = newKey;
+            segment.rowClass = newObjList.get(0).getClass();
+            this.writeHeader(segment);
+        }
+
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        return this.create(new ArrayList<>(Collections.singletonList(newObject)), type).get(0);
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        return this.update(new ArrayList<>(Collections.singletonList(updateObj)), type);
+    }
+
+
+    /**
+     * Updates the records with the same primary key by writing each of them to a free slot, then freeing its old slot.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        this.hasDuplicateKeys(updateObjList);
+        Segment segment = this.segment(type);
+
+        synchronized (segment) {
+            if (!this.containsOneType(updateObjList, segment)) throw new NonUniformObjectsException();
+            for (Persistable p : updateObjList) {
+                if (!segment.directory.containsKey(p.getKey())) throw new EntryDoesNotExistException();
+            }
+            List<byte[]> rows = this.encodeAll(updateObjList);
+            this.fit(segment, rows);
+            for (int i = 0; i < rows.size(); i++) {
+                int key = updateObjList.get(i).getKey();
+                int old = segment.directory.get(key);
+                int slot = segment.freeCount > 0 ? segment.freeSlots[--segment.freeCount] : segment.slotsInUse++;
+
+                //The old row stays readable until the new one is live
+                segment.buffer.put(this.offset(segment, old), REPLACED);
+                this.writeSlot(segment, slot, key, rows.get(i));
+                this.writeHeader(segment);
+                segment.buffer.put(this.offset(segment, old), FREE);
+                segment.directory.put(key, slot);
+                this.freeSlot(segment, old);
+            }
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects by marking their slots as free.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        Segment segment = this.segment(type);
+        boolean deleted = false;
+
+        synchronized (segment) {
+            for (Integer id : idList) {
+                int slot = segment.directory.remove(id);
+                if (slot == IntIndex.MISSING) continue;
+                segment.buffer.put(this.offset(segment, slot), FREE);
+                this.freeSlot(segment, slot);
+                deleted = true;
+            }
+        }
+
+        return deleted;
+
+    }
+
+
+    /**
+     * Removes all records relating to this key, including any .ser file it was imported from.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the file exists and was successfully deleted, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        Segment segment = this.segments.remove(type.getName());
+        if (segment != null) {
+            synchronized (segment) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        boolean legacyDeleted = new File(this.getLegacyPath(type.getName())).delete();
+        return new File(this.getFilePath(type.getName())).delete() || legacyDeleted;
+
+    }
+
+
+    /**
+     * Forces every change made to the mapped segments to be written to disk.
+     */
+    public void flush() {
+        for (Segment segment : this.segments.values()) {
+            synchronized (segment) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+
+    /**
+     * Forces every change to disk, then closes every segment. Types are opened again on their next use.
+     */
+    @Override
+    public void close() {
+
+        this.flush();
+        synchronized (this.segments) {
+            for (Segment segment : this.segments.values()) {
+                synchronized (segment) {
+                    try {
+                        segment.channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            this.segments.clear();
+        }
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * An open segment file, with its directory of primary keys and its free slots.
+     */
+    private static class Segment {
+
+        private final String name;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int slotSize;
+        private int slotsInUse;
+        private int nextKey;
+        private Class<?> rowClass;
+        private IntIndex directory = new IntIndex();
+        private int[] freeSlots = new int[16];
+        private int freeCount = 0;
+
+        private Segment(String name) {
+            this.name = name;
+        }
+
+    }
+
+
+    private <T> Segment segment(Class<T> type) throws IOException {
+
+        Segment segment = this.segments.get(type.getName());
+        if (segment != null) return segment;
+
+        synchronized (this.segments) {
+            segment = this.segments.get(type.getName());
+            if (segment == null) {
+                segment = this.open(type.getName());
+                this.segments.put(type.getName(), segment);
+            }
+        }
+        return segment;
+
+    }
+
+
+    private Segment open(String name) throws IOException {
+
+        File file = new File(this.getFilePath(name));
+        if (!file.exists()) return this.importLegacy(name);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Segment segment = new Segment(name);
+        segment.channel = raf.getChannel();
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+
+        if (segment.buffer.getInt(0) != MAGIC) {
+            segment.channel.close();
+            throw new IOException(file.getName() + " is not a segment file.");
+        }
+        segment.slotSize = segment.buffer.getInt(4);
+        segment.slotsInUse = segment.buffer.getInt(8);
+        segment.nextKey = segment.buffer.getInt(12);
+
+        //Build the directory by only looking at the header of each slot
+        Map<Integer, Integer> replaced = new HashMap<>();
+        for (int slot = 0; slot < segment.slotsInUse; slot++) {
+            int offset = this.offset(segment, slot);
+            byte state = segment.buffer.get(offset);
+            if (state == LIVE) segment.directory.put(segment.buffer.getInt(offset + 1), slot);
+            else if (state == REPLACED) replaced.put(segment.buffer.getInt(offset + 1), slot);
+            else this.freeSlot(segment, slot);
+        }
+        //An update was cut short: the old row is only kept if its replacement never became live
+        for (Map.Entry<Integer, Integer> entry : replaced.entrySet()) {
+            int offset = this.offset(segment, entry.getValue());
+            if (segment.directory.containsKey(entry.getKey())) {
+                segment.buffer.put(offset, FREE);
+                this.freeSlot(segment, entry.getValue());
+            } else {
+                segment.buffer.put(offset, LIVE);
+                segment.directory.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (int slot = 0; slot < segment.slotsInUse && segment.rowClass == null; slot++) {
+            if (segment.buffer.get(this.offset(segment, slot)) == LIVE)
+                segment.rowClass = this.codec.decode(this.readSlot(segment, slot)).getClass();
+        }
+
+        return segment;
+
+    }
+
+
+    private Segment importLegacy(String name) throws IOException {
+
+        List<Persistable> rows = new ArrayList<>();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(this.getLegacyPath(name)))) {
+            rows = this.codec.readAll(input);
+        } catch (FileNotFoundException e) {
+            //Do nothing, there is nothing to import
+        }
+
+        List<byte[]> encoded = new ArrayList<>();
+        int[] keys = new int[rows.size()];
+        int nextKey = 1;
+        for (int i = 0; i < rows.size(); i++) {
+            encoded.add(this.codec.encode(rows.get(i)));
+            keys[i] = rows.get(i).getKey();
+            if (keys[i] >= nextKey) nextKey = keys[i] + 1;
+        }
+
+        Segment segment = this.build(name, encoded, keys, nextKey, 0);
+        if (!rows.isEmpty()) segment.rowClass = rows.get(0).getClass();
+        return segment;
+
+    }
+
+
+    /**
+     * Writes a brand new segment file holding these rows, sized so that the largest row fits in a slot.
+     */
+    private Segment build(String name, List<byte[]> rows, int[] keys, int nextKey, int largest) throws IOException {
+
+        for (byte[] row : rows) largest = Math.max(largest, row.length);
+        int slotSize = MIN_SLOT_SIZE;
+        while (slotSize < (largest + SLOT_HEADER_SIZE) * 5 / 4) slotSize <<= 1;
+
+        File file = new File(this.getFilePath(name) + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+        }
+
+        Segment segment = new Segment(name);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        segment.channel = raf.getChannel();
+        segment.slotSize = slotSize;
+        segment.nextKey = nextKey;
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) Math.max(16, rows.size() * 2) * slotSize);
+
+        for (int i = 0; i < rows.size(); i++) {
+            this.writeSlot(segment, segment.slotsInUse, keys[i], rows.get(i));
+            segment.directory.put(keys[i], segment.slotsInUse);
+            segment.slotsInUse++;
+        }
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, slotSize);
+        this.writeHeader(segment);
+        segment.buffer.force();
+        segment.channel.close();
+
+        //Only replace the old segment once the new one is complete
+        File target = new File(this.getFilePath(name));
+        if (!file.renameTo(target)) {
+            target.delete();
+            if (!file.renameTo(target)) throw new IOException("Could not replace segment of " + name);
+        }
+        return this.open(name);
+
+    }
+
+
+    private void writeSlot(Segment segment, int slot, int id, byte[] row) throws IOException {
+
+        if (row.length > segment.slotSize - SLOT_HEADER_SIZE) throw new IOException("Row does not fit in a slot.");
+        this.ensureCapacity(segment, slot + 1);
+
+        int offset = this.offset(segment, slot);
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(offset + 1, id);
+        buffer.putInt(offset + 5, row.length);
+        for (int i = 0; i < row.length; i++) buffer.put(offset + SLOT_HEADER_SIZE + i, row[i]);
+        buffer.put(offset, LIVE);
+
+    }
+
+
+    private byte[] readSlot(Segment segment, int slot) {
+
+        int offset = this.offset(segment, slot);
+        byte[] row = new byte[segment.buffer.getInt(offset + 5)];
+        for (int i = 0; i < row.length; i++) row[i] = segment.buffer.get(offset + SLOT_HEADER_SIZE + i);
+        return row;
+
+    }
+
+
+    /**
+     * Makes sure every one of these rows fits in a slot, rewriting the whole segment with larger slots if not.
+     * This only happens when a row outgrows the current slot size, which should be rare.
+     */
+    private void fit(Segment segment, List<byte[]> newRows) throws IOException {
+
+        int largest = 0;
+        for (byte[] row : newRows) largest = Math.max(largest, row.length);
+        if (largest <= segment.slotSize - SLOT_HEADER_SIZE) return;
+
+        List<byte[]> rows = new ArrayList<>();
+        int[] keys = new int[segment.directory.size()];
+        for (int slot = 0; slot < segment.slotsInUse; slot++) {
+            int offset = this.offset(segment, slot);
+            if (segment.buffer.get(offset) == LIVE) {
+                keys[rows.size()] = segment.buffer.getInt(offset + 1);
+                rows.add(this.readSlot(segment, slot));
+            }
+        }
+        segment.channel.close();
+
+        //The caller still holds the old segment, so we move the new state into it
+        Segment resized = this.build(segment.name, rows, keys, segment.nextKey, largest);
+        segment.channel = resized.channel;
+        segment.buffer = resized.buffer;
+        segment.slotSize = resized.slotSize;
+        segment.slotsInUse = resized.slotsInUse;
+        segment.directory = resized.directory;
+        segment.freeSlots = resized.freeSlots;
+        segment.freeCount = resized.freeCount;
+
+    }
+
+
+    private void ensureCapacity(Segment segment, int slots) throws IOException {
+
+        long needed = HEADER_SIZE + (long) slots * segment.slotSize;
+        if (needed <= segment.buffer.capacity()) return;
+
+        long size = segment.buffer.capacity();
+        while (size < needed) size = HEADER_SIZE + (size - HEADER_SIZE) * 2;
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+    }
+
+
+    private void freeSlot(Segment segment, int slot) {
+        if (segment.freeCount == segment.freeSlots.length) {
+            segment.freeSlots = Arrays.copyOf(segment.freeSlots, segment.freeCount * 2);
+        }
+        segment.freeSlots[segment.freeCount++] = slot;
+    }
+
+
+    private void writeHeader(Segment segment) {
+        segment.buffer.putInt(8, segment.slotsInUse);
+        segment.buffer.putInt(12, segment.nextKey);
+    }
+
+
+    private int offset(Segment segment, int slot) {
+        return HEADER_SIZE + slot * segment.slotSize;
+    }
+
+
+    private <T extends Persistable> List<byte[]> encodeAll(List<T> objList) throws IOException {
+        List<byte[]> rows = new ArrayList<>();
+        for (Persistable p : objList) rows.add(this.codec.encode(p));
+        return rows;
+    }
+
+
+    private String getFilePath(String fileName) {
+        return "serfile" + fileName + ".seg";
+    }
+
+
+    private String getLegacyPath(String fileName) {
+        return "serfile" + fileName + ".ser";
+    }
+
+
+    private <T extends Persistable> boolean containsOneType(List<T> newList, Segment segment) {
+
+        for (T t : newList) {
+            if (t.getClass() != newList.get(0).getClass()) return false;
+        }
+        return segment.rowClass == null || segment.rowClass == newList.get(0).getClass();
+
+    }
+
+
+    private <T extends Persistable> void hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
+
+        IntIndex s = new IntIndex(persistableList.size());
+        for (Persistable p : persistableList) {
+            if (p.getKey() != 0 && !s.add(p.getKey())) {
+                throw new EntryExistsException();
+            }
+        }
+
+    }
+
+
+}
@@ -0,0 +1,477 @@
+package persistence;
+
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.index.Columns;
+import persistence.metrics.Measurable;
+import persistence.metrics.PersistenceMetrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+
+/**
+ * Times every call made to another gateway and counts the rows it returns, by type and operation, then hands
+ * back exactly what that gateway returned or threw.
+ * <p>
+ * If the other gateway is Measurable, it is given the same recorder, so that it can also count the bytes it reads
+ * and writes and the rows it scans. Wrap each layer separately (for example the storage behind a cache, then the
+ * cache) and give each its own recorder, so that the time spent in each can be told apart.
+ * <p>
+ * Rows returned by stream are counted as the stream hands them out, while the time only covers opening the stream.
+ */
+public class MeteredPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface, AutoCloseable {
+
+    /**
+     * The gateway that every call is passed on to.
+     */
+    private final PersistenceInterface delegate;
+
+    /**
+     * Where the calls are recorded.
+     */
+    private final PersistenceMetrics.Recorder metrics;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param delegate The gateway that every call is passed on to.
+     * @param metrics  Where the calls are recorded.
+     */
+    public MeteredPersistenceGateway(PersistenceInterface delegate, PersistenceMetrics.Recorder metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        if (delegate instanceof Measurable) ((Measurable) delegate).setMetrics(metrics);
+    }
+
+
+    /**
+     * Returns one instance of records based on the id.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        T result = null;
+        try {
+            result = this.delegate.get(id, type);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.call(type.getName(), "get", System.nanoTime() - start, result == null ? 0 : 1, failed);
+        }
+
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        List<T> result = null;
+        try {
+            result = this.delegate.get(idList, type);
+            return result;
+        } finally {
+            this.record(type, "getAll", start, result);
+        }
+
+    }
+
+
+    /**
+     * Gets all records that exist in a file/table with the given key.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        List<T> result = null;
+        try {
+            result = this.delegate.all(type);
+            return result;
+        } finally {
+            this.record(type, "all", start, result);
+        }
+
+    }
+
+
+    /**
+     * Gets all records with the given key one at a time, counting each one as the stream hands it out.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in the Stream
+     * @return A Stream of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Stream<T> result = this.delegate.stream(type);
+            failed = false;
+            return result.peek(t -> this.metrics.returned(type.getName(), "stream", 1));
+        } finally {
+            this.metrics.call(type.getName(), "stream", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Loads every record of this type into whatever the other gateway keeps in memory.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> void preload(Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            this.delegate.preload(type);
+            failed = false;
+        } finally {
+            this.metrics.call(type.getName(), "preload", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Gets all records whose indexed field has the given value.
+     *
+     * @param field the name of the indexed field, for example "ownerId"
+     * @param value the value to look for, compared with equals
+     * @param type  .class information about class T.
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        List<T> result = null;
+        try {
+            result = this.delegate.findBy(field, value, type);
+            return result;
+        } finally {
+            this.record(type, "findBy", start, result);
+        }
+
+    }
+
+
+    /**
+     * Gets the primary keys of the records whose columns pass a condition.
+     *
+     * @param type      .class information about class T.
+     * @param field     the name of an indexed field to narrow the search to, or null to look at every record
+     * @param value     the value of the indexed field to look for
+     * @param condition which records to keep. It must not keep the Columns it is given.
+     * @param <T>       the class type, which should implement HasColumns
+     * @return A List of the primary keys of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<Integer> findKeys(Class<T> type, String field, Object value, Predicate<Columns> condition) throws IOException {
+
+        long start = System.nanoTime();
+        List<Integer> result = null;
+        try {
+            result = this.delegate.findKeys(type, field, value, condition);
+            return result;
+        } finally {
+            this.record(type, "findKeys", start, result);
+        }
+
+    }
+
+
+    /**
+     * Saves new objects into persistence. Will not modify existing objects.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        long start = System.nanoTime();
+        List<T> result = null;
+        try {
+            result = this.delegate.create(newObjList, type);
+            return result;
+        } finally {
+            this.record(type, "create", start, result);
+        }
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException IOException
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = this.delegate.create(newObject, type);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.call(type.getName(), "create", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = this.delegate.update(updateObj, type);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.call(type.getName(), "update", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Updates the records with the same primary key in the current storage.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = this.delegate.update(updateObjList, type);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.call(type.getName(), "update", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects from persistence.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = this.delegate.delete(idList, type);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.call(type.getName(), "delete", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Removes all records relating to this key.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the file exists and was successfully deleted, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = this.delegate.remove(type);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.call(type.getName(), "remove", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work on the calling thread.
+     */
+    @Override
+    public void beginBatch() {
+        this.delegate.beginBatch();
+    }
+
+
+    /**
+     * Saves every change buffered since beginBatch in one go, and ends the unit of work.
+     * Commits are recorded without a type.
+     *
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void commit() throws IOException {
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            this.delegate.commit();
+            failed = false;
+        } finally {
+            this.metrics.call("", "commit", System.nanoTime() - start, 0, failed);
+        }
+
+    }
+
+
+    /**
+     * Throws away every change buffered since beginBatch, and ends the unit of work.
+     */
+    @Override
+    public void rollback() {
+        this.delegate.rollback();
+    }
+
+
+    /**
+     * Pins every read made by the calling thread to the records as they are right now, until endSnapshot is called.
+     */
+    @Override
+    public void beginSnapshot() {
+        this.delegate.beginSnapshot();
+    }
+
+
+    /**
+     * Releases the snapshot pinned by beginSnapshot.
+     */
+    @Override
+    public void endSnapshot() {
+        this.delegate.endSnapshot();
+    }
+
+
+    /**
+     * Gets the version of the records of this type that the calling thread reads.
+     *
+     * @param type .class information about the type
+     * @return the version, or -1 if the other gateway cannot tell
+     * @throws IOException throws this exception if there is a IO error while loading the records.
+     */
+    @Override
+    public long version(Class<?> type) throws IOException {
+        return this.delegate.version(type);
+    }
+
+
+    /**
+     * Closes the other gateway, if it can be closed.
+     *
+     * @throws IOException whatever closing the other gateway throws, wrapped in an IOException if it is not one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!(this.delegate instanceof AutoCloseable)) return;
+        try {
+            ((AutoCloseable) this.delegate).close();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Records a call that returns a list, which failed if it returned nothing.
+     */
+    private void record(Class<?> type, String operation, long start, List<?> result) {
+        this.metrics.call(type.getName(), operation, System.nanoTime() - start,
+                result == null ? 0 : result.size(), result == null);
+    }
+
+
+}
@@ -3,9 +3,18 @@ package persistence;
 import persistence.exceptions.EntryDoesNotExistException;
 import persistence.exceptions.EntryExistsException;
 import persistence.exceptions.NonUniformObjectsException;
+import persistence.index.Columns;
+import persistence.index.HasColumns;
+import persistence.index.HasIndexes;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 /**
@@ -49,6 +58,84 @@ public interface PersistenceInterface {
     <T> List<T> all(Class<T> type) throws IOException;
 
 
+    /**
+     * Gets all records with the given key one at a time, instead of as one list.
+     * Gateways that can do so only decode a record when the stream reaches it, so a scan that filters the stream
+     * only holds the records it keeps, and a scan that stops early (for example with findFirst) never decodes the rest.
+     * Errors while reading a record are thrown as an UncheckedIOException by the stream.
+     * Gateways that cannot read lazily stream the result of all, which is what this default does.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in the Stream
+     * @return A Stream of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    default <T> Stream<T> stream(Class<T> type) throws IOException {
+        return this.all(type).stream();
+    }
+
+
+    /**
+     * Loads every record of this type into whatever the gateway keeps in memory, so that the first request to read
+     * them does not have to. Gateways that keep nothing in memory do nothing, which is what this default does.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    default <T> void preload(Class<T> type) throws IOException {
+    }
+
+
+    /**
+     * Gets all records whose indexed field (as declared by HasIndexes) has the given value.
+     * Gateways that keep secondary indexes answer this without reading every record.
+     * Gateways that do not, and fields that are not indexed, fall back to scanning the stream, which is what this default does.
+     *
+     * @param field the name of the indexed field, for example "ownerId"
+     * @param value the value to look for, compared with equals
+     * @param type  .class information about class T.
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    default <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+        try {
+            return this.stream(type)
+                    .filter(t -> t instanceof HasIndexes && Objects.equals(((HasIndexes) t).getIndexedFields().get(field), value))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    /**
+     * Gets the primary keys of the records whose columns (as declared by HasColumns) pass a condition,
+     * in the order that stream returns the records. If a field is given, only the records whose indexed field has the
+     * given value are looked at, and they are returned in the order findBy returns them.
+     * Gateways that keep a column store answer this without decoding any record.
+     * Gateways that do not decode every record and read the columns from it, which is what this default does.
+     *
+     * @param type      .class information about class T.
+     * @param field     the name of an indexed field to narrow the search to, or null to look at every record
+     * @param value     the value of the indexed field to look for
+     * @param condition which records to keep. It must not keep the Columns it is given.
+     * @param <T>       the class type, which should implement HasColumns
+     * @return A List of the primary keys of the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    default <T> List<Integer> findKeys(Class<T> type, String field, Object value, Predicate<Columns> condition) throws IOException {
+
+        List<Integer> keys = new ArrayList<>();
+        for (T t : field == null ? this.all(type) : this.findBy(field, value, type)) {
+            if (t instanceof HasColumns && condition.test(Columns.of((HasColumns) t))) keys.add(((HasColumns) t).getKey());
+        }
+        return keys;
+
+    }
+
+
     /**
      * Saves new objects into persistence. Will not modify existing objects.
      * These objects must be of the same type and implement the Persistable interface.
@@ -138,4 +225,72 @@ public interface PersistenceInterface {
     <T> boolean remove(Class<T> type);
 
 
+    /**
+     * Starts a unit of work on the calling thread.
+     * Until commit is called, every create, update and delete made by this thread (across any number of types) is
+     * buffered, and only becomes visible to other threads once all of them have been saved.
+     * Reads made by this thread in the meantime already see its own buffered changes.
+     * Calls may be nested, in which case only the outermost commit saves anything.
+     * Gateways that cannot buffer changes save them straight away, which is what this default does.
+     */
+    default void beginBatch() {
+    }
+
+
+    /**
+     * Saves every change buffered since beginBatch in one go, and ends the unit of work.
+     * If the changes cannot be saved, none of them become visible, and the unit of work is ended anyway.
+     *
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if a buffered list consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if a buffered create conflicts with an existing primary key.
+     * @throws EntryDoesNotExistException throws this exception if a buffered update refers to a primary key that no longer exists.
+     */
+    default void commit() throws IOException {
+    }
+
+
+    /**
+     * Throws away every change buffered since beginBatch, and ends the unit of work.
+     * Does nothing if the calling thread has no unit of work open.
+     */
+    default void rollback() {
+    }
+
+
+    /**
+     * Pins every read made by the calling thread to the records as they are right now, until endSnapshot is called,
+     * so that a long read (such as a report) sees one consistent state, without holding up writers.
+     * The calling thread's own changes are still visible to it.
+     * Calls may be nested, in which case only the outermost endSnapshot releases the snapshot.
+     * Gateways that cannot keep snapshots always read the latest records, which is what this default does.
+     */
+    default void beginSnapshot() {
+    }
+
+
+    /**
+     * Releases the snapshot pinned by beginSnapshot, after which the calling thread reads the latest records again.
+     * Does nothing if the calling thread has no snapshot pinned.
+     */
+    default void endSnapshot() {
+    }
+
+
+    /**
+     * Gets the version of the records of this type that the calling thread reads: the version in its snapshot, if it
+     * has one pinned, or else the latest. The version changes whenever a record of this type is committed, so while
+     * it stays the same every read of this type gives the same answer.
+     * Gateways that cannot tell return -1, which is what this default does, and so does a gateway whose calling thread
+     * has changes to this type buffered in a unit of work that is not committed yet.
+     *
+     * @param type .class information about the type
+     * @return the version, or -1 if it cannot be told
+     * @throws IOException throws this exception if there is a IO error while loading the records.
+     */
+    default long version(Class<?> type) throws IOException {
+        return -1;
+    }
+
+
 }
@@ -1,19 +1,178 @@
 package persistence;
 
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
 import persistence.exceptions.EntryDoesNotExistException;
 import persistence.exceptions.EntryExistsException;
 import persistence.exceptions.NonUniformObjectsException;
+import persistence.index.IntIndex;
+import persistence.metrics.Measurable;
+import persistence.metrics.PersistenceMetrics;
+import persistence.sequence.SequenceAllocator;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * Persists to a ser file. Mimics the behaviour of a relational database.
+ * How the rows are turned into bytes is up to the codec, which is Java serialization unless another one is given.
+ * <p>
+ * Each type has its own read/write lock. Any number of threads can read a file at once, while a change to a file
+ * (which reads it, then rewrites it) has it to itself, so that two changes can never overwrite each other.
+ * Files of different types never wait on each other.
+ * <p>
+ * New primary keys come from a SequenceAllocator, so that creating a row does not need the largest existing key.
+ * <p>
+ * Every file is synced to disk before a change returns. Inside a unit of work (beginBatch to commit) the rows of each
+ * type are read once and changed in memory, and each file that was changed is only written and synced once, at commit.
+ * A unit of work holds no lock between calls. Its commit takes the write locks of every type it changed, in name
+ * order, so that two units of work can never wait on each other. If another thread has rewritten one of these files
+ * since the unit of work read it, the rows it created, updated and deleted are applied again to the rows in the file,
+ * and the commit throws (writing nothing) if a row it updated is gone, or a row it created now exists.
+ * <p>
+ * Deletes do not rewrite the file. The primary keys of the deleted rows are appended to serfile[Class].tombstones
+ * instead, and reads skip the rows they name, so a delete only writes a few bytes. The next time the file is
+ * rewritten anyway (by a create or an update) the dead rows are left out and the tombstones are dropped. Once a file
+ * holds more dead rows than the compact threshold, it is rewritten in the background for that reason alone.
+ * A unit of work that only deletes rows from a type does not read its file at all.
  */
-public class SerPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface {
+public class SerPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface, Measurable {
+
+    /**
+     * Reads and writes the files.
+     */
+    private final RowCodec codec;
+
+    /**
+     * Holds the lock of each type, keyed by class name.
+     */
+    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Hands out new primary keys.
+     */
+    private final SequenceAllocator keys;
+
+    /**
+     * Holds the unit of work that each thread has open, if any.
+     */
+    private final ThreadLocal<Unit> units = new ThreadLocal<>();
+
+    /**
+     * Holds the dead and live primary keys of each type, keyed by class name.
+     */
+    private final Map<String, Tombstones> tombstones = new ConcurrentHashMap<>();
+
+    /**
+     * How many dead rows a file can hold before it is compacted.
+     */
+    private final int compactThreshold;
+
+    /**
+     * Hands out the generation of each file, so that a file that is removed and written again never reuses one.
+     */
+    private final AtomicLong generations = new AtomicLong();
+
+    /**
+     * Compacts files, in the background by default so that no delete has to wait for it.
+     */
+    private final Executor compactor;
+
+    /**
+     * The directory the files are kept in, or null for the working directory.
+     */
+    private final File directory;
+
+    /**
+     * Counts the bytes read and written and the rows decoded, or null if nothing is counted.
+     */
+    private PersistenceMetrics.Recorder metrics;
+
+
+    /**
+     * Initializes this class to save with Java serialization.
+     */
+    public SerPersistenceGateway() {
+        this(new JavaRowCodec());
+    }
+
+
+    /**
+     * Initializes this class, with primary keys counted in serfile[Class].seq.
+     *
+     * @param codec Reads and writes the files.
+     */
+    public SerPersistenceGateway(RowCodec codec) {
+        this(codec, new SequenceAllocator());
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param codec Reads and writes the files.
+     * @param keys  Hands out new primary keys. Share it with any gateway that hands out keys for this one.
+     */
+    public SerPersistenceGateway(RowCodec codec, SequenceAllocator keys) {
+        this(codec, keys, 256);
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param codec            Reads and writes the files.
+     * @param keys             Hands out new primary keys. Share it with any gateway that hands out keys for this one.
+     * @param compactThreshold How many dead rows a file can hold before it is compacted in the background.
+     */
+    public SerPersistenceGateway(RowCodec codec, SequenceAllocator keys, int compactThreshold) {
+        this(codec, keys, compactThreshold, null, null);
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param codec            Reads and writes the files.
+     * @param keys             Hands out new primary keys. Share it with any gateway that hands out keys for this one.
+     * @param compactThreshold How many dead rows a file can hold before it is compacted.
+     * @param directory        The directory the files are kept in, or null for the working directory.
+     * @param compactor        Runs the compactions, or null to run them on a background thread of this gateway's own.
+     */
+    public SerPersistenceGateway(RowCodec codec, SequenceAllocator keys, int compactThreshold, File directory,
+                                 Executor compactor) {
+        this.codec = codec;
+        this.keys = keys;
+        this.compactThreshold = compactThreshold;
+        this.directory = directory;
+        this.compactor = compactor != null ? compactor : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ser-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Starts counting the bytes this gateway reads and writes, and the rows it decodes, by type.
+     *
+     * @param metrics Where to record
+     */
+    @Override
+    public void setMetrics(PersistenceMetrics.Recorder metrics) {
+        this.metrics = metrics;
+    }
 
 
     /**
@@ -48,10 +207,12 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
 
         List<T> all = this.all(type);
         List<T> result = new ArrayList<>();
+        IntIndex ids = new IntIndex(idList.size());
+        for (Integer id : idList) ids.add(id);
 
         for (T t : all) {
             Persistable p = (Persistable) t; //We know it's persistable due to the way we save
-            if (idList.contains(p.getKey())) {
+            if (ids.containsKey(p.getKey())) {
                 result.add(t);
             }
         }
@@ -74,13 +235,17 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     public <T> List<T> all(Class<T> type) throws IOException {
 
         List<T> result = new ArrayList<T>();
+        ReadWriteLock lock = this.lock(type);
+        lock.readLock().lock();
         try {
-            List<Persistable> all = this.read(this.getFilePath(type.getName()));
+            List<Persistable> all = this.load(type);
             for (Persistable t : all) {
                 result.add(type.cast(t));
             }
         } catch (FileNotFoundException e) {
             //Do nothing, since if there is no file that exists, we can return an empty list
+        } finally {
+            lock.readLock().unlock();
         }
 
         return result;
@@ -107,47 +272,55 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
 
-        if (newObjList.size() == 0) return newObjList;
+        ReadWriteLock lock = this.lock(type);
+        lock.writeLock().lock();
+        try {
+            if (newObjList.size() == 0) return newObjList;
 
-        //First check if duplicates exist in our provided ArrayList, except 0
-        this.hasDuplicateKeys(newObjList);
+            //First check if duplicates exist in our provided ArrayList, except 0
+            this.hasDuplicateKeys(newObjList);
 
-        //Then check if everything is one type
-        List<Persistable> existingList = null;
-        try {
-            existingList = this.read(this.getFilePath(type.getName()));
-        } catch (FileNotFoundException e) {
-            existingList = new ArrayList<>();
-        }
+            //Then check if everything is one type
+            List<Persistable> existingList = null;
+            try {
+                existingList = this.load(type);
+            } catch (FileNotFoundException e) {
+                existingList = new ArrayList<>();
+            }
 
-        int newKey = this.getNextPrimaryKey(existingList, newObjList);
-        //Now we assign non-zero keys
-        for (Persistable p : newObjList) {
-            if (p.getKey() == 0) {
-                p.setKey(newKey);
-                newKey++;
+            //Keys we were given are claimed first, so that the keys we hand out come after them
+            List<Persistable> existing = existingList;
+            for (Persistable p : newObjList) {
+                if (p.getKey() != 0) this.keys.claim(type.getName(), p.getKey(), () -> this.getLargestKey(existing));
+            }
+            //Now we assign non-zero keys
+            for (Persistable p : newObjList) {
+                if (p.getKey() == 0) p.setKey(this.keys.next(type.getName(), () -> this.getLargestKey(existing)));
             }
-        }
 
-        //We need to check if everything passed in is of the same type (not including subclasses).
-        //This is necessary since subclasses may require additional columns in a csv or in a relational database
-        if (!this.containsOneType(newObjList, existingList)) {
-            throw new NonUniformObjectsException();
-        }
+            //We need to check if everything passed in is of the same type (not including subclasses).
+            //This is necessary since subclasses may require additional columns in a csv or in a relational database
+            if (!this.containsOneType(newObjList, existingList)) {
+                throw new NonUniformObjectsException();
+            }
 
-        List<Integer> existingIds = this.getListOfPrimaryKeys(existingList);
-        for (Persistable p : newObjList) {
-            if (existingIds.contains(p.getKey())) {
-                throw new EntryExistsException();
+            IntIndex existingIds = this.getIndexOfPrimaryKeys(existingList);
+            for (Persistable p : newObjList) {
+                if (existingIds.containsKey(p.getKey())) {
+                    throw new EntryExistsException();
+                }
             }
-        }
 
-        List<Persistable> newList = new ArrayList<>(newObjList);
-        newList.addAll(existingList);
+            List<Persistable> newList = new ArrayList<>(newObjList);
+            newList.addAll(existingList);
 
-        this.write(newList, type.getName());
+            this.save(newList, type);
+            this.logPut(newObjList, type, true);
 
-        return newObjList;
+            return newObjList;
+        } finally {
+            lock.writeLock().unlock();
+        }
 
     }
 
@@ -214,40 +387,47 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
 
-        if (updateObjList.size() == 0) return false;
+        ReadWriteLock lock = this.lock(type);
+        lock.writeLock().lock();
+        try {
+            if (updateObjList.size() == 0) return false;
 
-        //First check if duplicates exist in our provided List
-        this.hasDuplicateKeys(updateObjList);
+            //First check if duplicates exist in our provided List
+            this.hasDuplicateKeys(updateObjList);
 
-        List<Persistable> existingList = null;
-        try {
-            existingList = this.read(this.getFilePath(type.getName()));
-        } catch (FileNotFoundException e) {
-            existingList = new ArrayList<>();
-        }
+            List<Persistable> existingList = null;
+            try {
+                existingList = this.load(type);
+            } catch (FileNotFoundException e) {
+                existingList = new ArrayList<>();
+            }
 
-        //Check we have only passed in one type of object.
-        if (!this.containsOneType(updateObjList, existingList)) throw new NonUniformObjectsException();
+            //Check we have only passed in one type of object.
+            if (!this.containsOneType(updateObjList, existingList)) throw new NonUniformObjectsException();
 
-        List<Integer> existingIds = this.getListOfPrimaryKeys(existingList); //Get existing id's
-        List<Integer> updateIds = this.getListOfPrimaryKeys(updateObjList); //Get update id's
-        List<Persistable> newObjList = new ArrayList<>();
+            IntIndex existingIds = this.getIndexOfPrimaryKeys(existingList); //Get existing id's
+            IntIndex updateIds = this.getIndexOfPrimaryKeys(updateObjList); //Get update id's
+            List<Persistable> newObjList = new ArrayList<>();
 
-        //Add updated objects to our new list
-        for (Persistable p : updateObjList) {
-            if (existingIds.contains(p.getKey())) newObjList.add(p);
-            else throw new EntryDoesNotExistException();
-        }
+            //Add updated objects to our new list
+            for (Persistable p : updateObjList) {
+                if (existingIds.containsKey(p.getKey())) newObjList.add(p);
+                else throw new EntryDoesNotExistException();
+            }
 
-        //Add unchanged objects to our new list
-        for (Persistable p : existingList) {
-            if (!updateIds.contains(p.getKey())) newObjList.add(p);
-        }
+            //Add unchanged objects to our new list
+            for (Persistable p : existingList) {
+                if (!updateIds.containsKey(p.getKey())) newObjList.add(p);
+            }
 
-        //Save our new list
-        this.write(newObjList, type.getName());
+            //Save our new list
+            this.save(newObjList, type);
+            this.logPut(updateObjList, type, false);
 
-        return true;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
 
     }
 
@@ -264,17 +444,43 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
 
-        List<Persistable> newObjList = new ArrayList<>();
-        List<Persistable> all = this.read(this.getFilePath(type.getName()));
-        for (Persistable p : all) {
-            if (!idList.contains(p.getKey())) newObjList.add(p);
-        }
-        if (all.size() != newObjList.size()) {
-            this.remove(type);
-            if (newObjList.size() != 0) this.write(newObjList, type.getName());
+        ReadWriteLock lock = this.lock(type);
+        lock.writeLock().lock();
+        try {
+            Unit unit = this.units.get();
+            Working working = unit == null ? null : this.working(unit, type);
+
+            //Rows this unit of work has already read are deleted in memory, as it will rewrite the file anyway
+            if (working != null && working.rows != null) {
+                List<Persistable> newObjList = new ArrayList<>();
+                List<Persistable> all = this.rows(working, type.getName());
+                IntIndex ids = new IntIndex(idList.size());
+                for (Integer id : idList) ids.add(id);
+                for (Persistable p : all) {
+                    if (!ids.containsKey(p.getKey())) newObjList.add(p);
+                    else this.logDelete(working, p.getKey());
+                }
+                if (all.size() == newObjList.size()) return false;
+                this.save(newObjList, type);
+                return true;
+            }
+
+            IntIndex live = this.live(type.getName());
+            IntIndex dead = new IntIndex(idList.size());
+            for (Integer id : idList) {
+                if (live.containsKey(id) && (working == null || !working.deleted.containsKey(id))) dead.add(id);
+            }
+            if (dead.size() == 0) return false;
+
+            if (working != null) {
+                for (int id : dead.keys()) working.deleted.add(id);
+            } else {
+                this.bury(type.getName(), dead.keys());
+            }
             return true;
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
 
     }
 
@@ -289,12 +495,94 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T> boolean remove(Class<T> type) {
 
-        File file = new File(this.getFilePath(type.getName()));
-        if (file.delete()) return true;
-        return false;
+        ReadWriteLock lock = this.lock(type);
+        lock.writeLock().lock();
+        try {
+            //Changes made to this type by the calling thread's unit of work are thrown away with the file
+            Unit unit = this.units.get();
+            if (unit != null) unit.working.remove(type.getName());
+
+            this.keys.reset(type.getName());
+            this.tombstones.remove(type.getName());
+            new File(this.getTombstonePath(type.getName())).delete();
+            File file = new File(this.getFilePath(type.getName()));
+            if (file.delete()) return true;
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work on the calling thread, or joins the one that is already open.
+     */
+    @Override
+    public void beginBatch() {
+
+        Unit unit = this.units.get();
+        if (unit != null) unit.depth++;
+        else this.units.set(new Unit());
 
     }
 
+
+    /**
+     * Writes and syncs every file changed by the outermost unit of work, once each, and ends the unit of work.
+     * The write locks of the changed types are taken in name order, and held until every file is written.
+     *
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws EntryExistsException       throws this exception if a row created by the unit of work was created by another thread since.
+     * @throws EntryDoesNotExistException throws this exception if a row updated by the unit of work was deleted by another thread since.
+     */
+    @Override
+    public void commit() throws IOException {
+
+        Unit unit = this.units.get();
+        if (unit == null) return;
+        if (--unit.depth > 0) return;
+
+        this.units.remove();
+        List<ReadWriteLock> taken = new ArrayList<>();
+        try {
+            //unit.working is sorted by name, so every commit takes the locks it needs in the same order
+            for (Map.Entry<String, Working> entry : unit.working.entrySet()) {
+                if (!entry.getValue().changed && entry.getValue().deleted.size() == 0) continue;
+                ReadWriteLock lock = this.locks.computeIfAbsent(entry.getKey(), name -> new ReentrantReadWriteLock());
+                lock.writeLock().lock();
+                taken.add(lock);
+            }
+
+            //Every file is checked before any is written, so a conflict in one leaves all of them as they were
+            Map<String, List<Persistable>> rewrites = new TreeMap<>();
+            for (Map.Entry<String, Working> entry : unit.working.entrySet()) {
+                Working working = entry.getValue();
+                if (!working.changed) continue;
+                if (working.generation == this.tombstones(entry.getKey()).generation) rewrites.put(entry.getKey(), working.rows);
+                else rewrites.put(entry.getKey(), this.replay(working, entry.getKey()));
+            }
+
+            for (Map.Entry<String, Working> entry : unit.working.entrySet()) {
+                Working working = entry.getValue();
+                if (working.changed) this.write(rewrites.get(entry.getKey()), entry.getKey());
+                else if (working.deleted.size() > 0) this.buryLive(entry.getKey(), working.deleted);
+            }
+        } finally {
+            for (ReadWriteLock lock : taken) lock.writeLock().unlock();
+        }
+
+    }
+
+
+    /**
+     * Throws away every change made by the calling thread's unit of work. None of them were written.
+     */
+    @Override
+    public void rollback() {
+        this.units.remove();
+    }
+
     /********************************************************************************************************
      *
      * Helper methods.
@@ -302,67 +590,365 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
      *********************************************************************************************************/
 
 
-    private <S extends Persistable, T extends Persistable> int getNextPrimaryKey(List<S> existingList, List<T> newObjList) {
+    private <S extends Persistable> int getLargestKey(List<S> existingList) {
 
-        int max = 1;
+        int max = 0;
         for (Persistable p : existingList) {
-            if (p.getKey() >= max) max = p.getKey() + 1;
-        }
-        for (Persistable p : newObjList) {
-            if (p.getKey() >= max) max = p.getKey() + 1;
+            if (p.getKey() > max) max = p.getKey();
         }
         return max;
 
     }
 
 
-    private List<Persistable> read(String filePath) throws IOException {
+    private <T> ReadWriteLock lock(Class<T> type) {
+        return this.locks.computeIfAbsent(type.getName(), name -> new ReentrantReadWriteLock());
+    }
+
+
+    /**
+     * The changes that one thread has made in a unit of work, keyed by class name, and how deeply its beginBatch
+     * calls are nested.
+     */
+    private static class Unit {
+
+        private final Map<String, Working> working = new TreeMap<>();
+        private int depth = 1;
+
+    }
+
+
+    /**
+     * The rows of one type as a unit of work sees them, and the generation of the file they were read from.
+     * The file exists as long as there are rows. What the unit of work did to get there is kept as well, so that it
+     * can be done again if the file is rewritten in the meantime: the rows it created or updated, keyed by primary
+     * key in the order it first put them, which of those it created, and the primary keys of the rows it deleted.
+     */
+    private static class Working {
+
+        private final IntIndex deleted = new IntIndex();
+        private final Map<Integer, Persistable> put = new LinkedHashMap<>();
+        private final IntIndex created = new IntIndex();
+        private List<Persistable> rows = null;
+        private long generation = 0;
+        private boolean changed = false;
+
+    }
+
+
+    /**
+     * The primary keys of the rows of a type that are deleted but still in its file, and of the ones that are not,
+     * and the generation of its file, which changes every time the file or its tombstones are written.
+     * All of them are only changed under the write lock of the type.
+     */
+    private static class Tombstones {
+
+        private IntIndex dead = null;
+        private volatile IntIndex live = null;
+        private volatile long generation;
+
+        private Tombstones(long generation) {
+            this.generation = generation;
+        }
+
+    }
+
+
+    /**
+     * Gets the rows of a type as the calling thread should see them.
+     * Throws a FileNotFoundException if the type has no file, exactly like reading the file would.
+     */
+    private <T> List<Persistable> load(Class<T> type) throws IOException {
+
+        Unit unit = this.units.get();
+        if (unit == null) return this.read(type.getName());
+
+        List<Persistable> rows = this.rows(this.working(unit, type), type.getName());
+        if (rows.isEmpty()) throw new FileNotFoundException(this.getFilePath(type.getName()));
+        return new ArrayList<>(rows);
+
+    }
+
+
+    /**
+     * Replaces the rows of a type, either in the calling thread's unit of work, or straight on disk.
+     */
+    private <T, S extends Persistable> void save(List<S> rows, Class<T> type) throws IOException {
 
-        ObjectInput input = null;
-        List<Persistable> obj = null;
+        Unit unit = this.units.get();
+        if (unit == null) {
+            this.write(rows, type.getName());
+            return;
+        }
+
+        Working working = this.working(unit, type);
+        working.rows = new ArrayList<>(rows);
+        working.changed = true;
+
+    }
+
+
+    /**
+     * Gets the state of a type in this unit of work.
+     */
+    private <T> Working working(Unit unit, Class<T> type) {
+        return unit.working.computeIfAbsent(type.getName(), name -> new Working());
+    }
+
+
+    /**
+     * Remembers rows that the calling thread's unit of work created or updated, if it has one open.
+     */
+    private <T, S extends Persistable> void logPut(List<S> rows, Class<T> type, boolean created) {
+
+        Unit unit = this.units.get();
+        if (unit == null) return;
+
+        Working working = this.working(unit, type);
+        for (Persistable p : rows) {
+            working.put.put(p.getKey(), p);
+            //A row deleted and created again in the same unit of work replaces the one in the file
+            if (created && working.deleted.remove(p.getKey()) == IntIndex.MISSING) working.created.add(p.getKey());
+        }
+
+    }
+
+
+    /**
+     * Remembers a row that the unit of work deleted, after reading the rows. A row it created itself is simply forgotten.
+     */
+    private void logDelete(Working working, int key) {
+
+        working.put.remove(key);
+        if (working.created.remove(key) == IntIndex.MISSING) working.deleted.add(key);
+
+    }
+
+
+    /**
+     * Gets the rows of a type in this unit of work, reading them the first time they are needed.
+     * The caller holds a lock of the type.
+     */
+    private List<Persistable> rows(Working working, String key) throws IOException {
+
+        if (working.rows != null) return working.rows;
+        working.generation = this.tombstones(key).generation;
         try {
-            InputStream file = new FileInputStream(filePath);
-            InputStream buffer = new BufferedInputStream(file);
-            input = new ObjectInputStream(buffer);
-            obj = (List<Persistable>) input.readObject(); //We need this unchecked cast due to the way ser saves.
-
-        } catch (ClassNotFoundException e) {
-            System.out.println("Class is not found. Cannot load the class in through string name. " +
-                    "Has the application changed since the data was last saved?");
-            throw new IOException();
-        } finally {
-            if (input != null) {
-                input.close();
+            working.rows = this.read(key);
+        } catch (FileNotFoundException e) {
+            working.rows = new ArrayList<>();
+        }
+        if (working.deleted.size() > 0) {
+            working.rows.removeIf(p -> working.deleted.containsKey(p.getKey()));
+            working.changed = true;
+        }
+        return working.rows;
+
+    }
+
+
+    /**
+     * Applies what a unit of work did to a type to the rows now in its file, which another thread has rewritten
+     * since the unit of work read it. The caller holds the write lock of the type.
+     */
+    private List<Persistable> replay(Working working, String key) throws IOException {
+
+        List<Persistable> current;
+        try {
+            current = this.read(key);
+        } catch (FileNotFoundException e) {
+            current = new ArrayList<>();
+        }
+
+        IntIndex existing = this.getIndexOfPrimaryKeys(current);
+        List<Persistable> rows = new ArrayList<>();
+        for (Persistable p : working.put.values()) {
+            boolean exists = existing.containsKey(p.getKey());
+            if (working.created.containsKey(p.getKey())) {
+                if (exists) throw new EntryExistsException();
+                rows.add(p);
+            } else if (!exists) {
+                throw new EntryDoesNotExistException();
             }
         }
+        for (Persistable p : current) {
+            if (working.deleted.containsKey(p.getKey())) continue;
+            Persistable put = working.put.get(p.getKey());
+            rows.add(put == null ? p : put);
+        }
+        return rows;
+
+    }
+
+
+    /**
+     * Buries the rows a unit of work deleted without reading the file, leaving out the ones that are already gone.
+     * The caller holds the write lock of the type.
+     */
+    private void buryLive(String key, IntIndex deleted) throws IOException {
+
+        IntIndex live = this.live(key);
+        IntIndex dead = new IntIndex(deleted.size());
+        for (int id : deleted.keys()) {
+            if (live.containsKey(id)) dead.add(id);
+        }
+        if (dead.size() > 0) this.bury(key, dead.keys());
 
-        return obj;
+    }
+
+
+    private List<Persistable> read(String key) throws IOException {
+
+        File file = new File(this.getFilePath(key));
+        List<Persistable> rows;
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            rows = this.codec.readAll(input);
+        }
+
+        if (this.metrics != null) {
+            this.metrics.read(key, file.length());
+            this.metrics.scanned(key, rows.size());
+        }
+
+        Tombstones tombstones = this.tombstones(key);
+        if (tombstones.dead.size() > 0) rows.removeIf(p -> tombstones.dead.containsKey(p.getKey()));
+        if (tombstones.live == null) tombstones.live = this.getIndexOfPrimaryKeys(rows);
+        return rows;
 
     }
 
 
+    /**
+     * Writes the rows of a type and syncs the file, or deletes the file if there are no rows left.
+     * The rows are all live, so the tombstones of the type are dropped once they are written.
+     */
     private <T extends Persistable> boolean write(List<T> obj, String key) throws IOException {
 
-        ObjectOutput output = null;
+        Tombstones tombstones = this.tombstones(key);
+        boolean written = true;
+        if (obj.isEmpty()) {
+            written = new File(this.getFilePath(key)).delete();
+        } else {
+            try (FileOutputStream file = new FileOutputStream(this.getFilePath(key));
+                 OutputStream output = new BufferedOutputStream(file)) {
+                this.codec.writeAll(obj, output);
+                output.flush();
+                file.getFD().sync();
+                if (this.metrics != null) this.metrics.written(key, file.getChannel().position());
+            }
+        }
 
+        tombstones.live = this.getIndexOfPrimaryKeys(obj);
+        tombstones.generation = this.generations.incrementAndGet();
+        if (tombstones.dead.size() > 0) {
+            tombstones.dead.clear();
+            new File(this.getTombstonePath(key)).delete();
+        }
+        return written;
+    }
+
+
+    /**
+     * Appends the primary keys of deleted rows to the tombstones of a type and syncs them, then has the file
+     * compacted if it now holds too many dead rows. The caller holds the write lock of the type.
+     */
+    private void bury(String key, int[] ids) throws IOException {
+
+        try (FileOutputStream file = new FileOutputStream(this.getTombstonePath(key), true);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (int id : ids) output.writeInt(id);
+            output.flush();
+            file.getFD().sync();
+        }
+        if (this.metrics != null) this.metrics.written(key, 4L * ids.length);
+
+        Tombstones tombstones = this.tombstones(key);
+        IntIndex live = this.live(key);
+        for (int id : ids) {
+            live.remove(id);
+            tombstones.dead.add(id);
+        }
+        tombstones.generation = this.generations.incrementAndGet();
+        if (tombstones.dead.size() >= this.compactThreshold) this.compactor.execute(() -> this.compact(key));
+
+    }
+
+
+    /**
+     * Rewrites the file of a type without its dead rows, unless that has happened in the meantime.
+     */
+    private void compact(String key) {
+
+        ReadWriteLock lock = this.locks.computeIfAbsent(key, name -> new ReentrantReadWriteLock());
+        lock.writeLock().lock();
         try {
-            String filePath = this.getFilePath(key);
-            OutputStream file = new FileOutputStream(filePath);
-            OutputStream buffer = new BufferedOutputStream(file);
-            output = new ObjectOutputStream(buffer);
-            output.writeObject(obj);
+            if (this.tombstones(key).dead.size() < this.compactThreshold) return;
+            List<Persistable> rows;
+            try {
+                rows = this.read(key);
+            } catch (FileNotFoundException e) {
+                rows = new ArrayList<>();
+            }
+            this.write(rows, key);
+        } catch (IOException e) {
+            e.printStackTrace();
         } finally {
-            if (output != null) {
-                output.close();
+            lock.writeLock().unlock();
+        }
+
+    }
+
+
+    /**
+     * Gets the tombstones of a type, reading them from disk the first time.
+     */
+    private Tombstones tombstones(String key) throws IOException {
+
+        Tombstones tombstones = this.tombstones.computeIfAbsent(key, name -> new Tombstones(this.generations.incrementAndGet()));
+        synchronized (tombstones) {
+            if (tombstones.dead != null) return tombstones;
+
+            IntIndex dead = new IntIndex();
+            File file = new File(this.getTombstonePath(key));
+            if (file.exists()) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    while (true) dead.add(input.readInt());
+                } catch (EOFException e) {
+                    //The end of the file, or an id that was only partly written before a crash, which was never deleted
+                }
             }
+            tombstones.dead = dead;
         }
+        return tombstones;
+
+    }
+
+
+    /**
+     * Gets the primary keys of the live rows of a type, reading its file the first time.
+     * The caller holds the write lock of the type.
+     */
+    private IntIndex live(String key) throws IOException {
+
+        Tombstones tombstones = this.tombstones(key);
+        if (tombstones.live != null) return tombstones.live;
+        try {
+            this.read(key);
+        } catch (FileNotFoundException e) {
+            tombstones.live = new IntIndex();
+        }
+        return tombstones.live;
 
-        return true;
     }
 
 
     private String getFilePath(String fileName) {
-        return "serfile" + fileName + ".ser";
+        return new File(this.directory, "serfile" + fileName + ".ser").getPath();
+    }
+
+
+    private String getTombstonePath(String fileName) {
+        return new File(this.directory, "serfile" + fileName + ".tombstones").getPath();
     }
 
 
@@ -391,10 +977,9 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
 
     private <T extends Persistable> boolean hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
 
-        List<Integer> newIds = this.getListOfPrimaryKeys(persistableList);
-        HashSet<Integer> s = new HashSet<Integer>();
-        for (Integer i : newIds) {
-            if (i != 0 && !s.add(i)) {
+        IntIndex s = new IntIndex(persistableList.size());
+        for (Persistable p : persistableList) {
+            if (p.getKey() != 0 && !s.add(p.getKey())) {
                 throw new EntryExistsException();
             }
         }
@@ -402,9 +987,9 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     }
 
 
-    private <T extends Persistable> List<Integer> getListOfPrimaryKeys(List<T> persistableList) {
+    private <T extends Persistable> IntIndex getIndexOfPrimaryKeys(List<T> persistableList) {
 
-        List<Integer> keys = new ArrayList<Integer>();
+        IntIndex keys = new IntIndex(persistableList.size());
         //We need to load the existing file, and loop to check that we don't override any entries
         for (Persistable p : persistableList) {
             keys.add(p.getKey());
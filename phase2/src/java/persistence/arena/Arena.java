@@ -0,0 +1,188 @@
+package persistence.arena;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Hands out room for bytes in large chunks that are allocated off the heap (as direct ByteBuffers), so that data
+ * which is kept for a long time, such as the rows held in memory by a cache, neither takes up heap nor has to be
+ * walked by the garbage collector.
+ * <p>
+ * Bytes are only ever appended, and each copy returns a Slice. Nothing is freed by hand: a chunk is freed once no
+ * slice into it is left, so a chunk whose bytes were mostly replaced stays until its last slice goes.
+ * Bytes that do not fit in a chunk get a chunk of their own.
+ * <p>
+ * As nothing is ever moved out of a chunk, rows that are replaced over and over leave chunks behind that are kept
+ * alive by a few slices each. The chunks off the heap are therefore capped: once the chunks that are still alive
+ * reach the cap, new chunks are allocated on the heap instead, until the garbage collector has freed enough of them.
+ */
+public class Arena {
+
+    /**
+     * The size of a chunk, unless given.
+     */
+    public static final int DEFAULT_CHUNK = 1 << 20;
+
+    /**
+     * The most bytes of chunks that are kept off the heap at once, unless given.
+     */
+    public static final long DEFAULT_MAX_DIRECT = 256L << 20;
+
+    private final boolean direct;
+    private final int chunkSize;
+    private final long maxDirect;
+
+    /**
+     * The chunks off the heap that may still be alive, and how many bytes they hold. Their references are queued
+     * once the chunks have been freed. Guarded by this.
+     */
+    private final Set<Chunk> chunks = new HashSet<>();
+    private final ReferenceQueue<ByteBuffer> freed = new ReferenceQueue<>();
+    private long directBytes;
+
+    /**
+     * The chunk that is being filled, and how much of it is used. Guarded by this.
+     */
+    private ByteBuffer chunk;
+    private int used;
+
+
+    /**
+     * Initializes an arena of 1 MiB chunks, off the heap up to 256 MiB.
+     */
+    public Arena() {
+        this(true, DEFAULT_CHUNK);
+    }
+
+
+    /**
+     * Initializes an arena.
+     *
+     * @param direct    Whether the chunks are allocated off the heap. If not, they are plain heap arrays.
+     * @param chunkSize The size of a chunk, in bytes.
+     */
+    public Arena(boolean direct, int chunkSize) {
+        this(direct, chunkSize, DEFAULT_MAX_DIRECT);
+    }
+
+
+    /**
+     * Initializes an arena.
+     *
+     * @param direct    Whether the chunks are allocated off the heap. If not, they are plain heap arrays.
+     * @param chunkSize The size of a chunk, in bytes.
+     * @param maxDirect The most bytes of chunks to keep off the heap at once. Chunks past it go on the heap.
+     */
+    public Arena(boolean direct, int chunkSize, long maxDirect) {
+        this.direct = direct;
+        this.chunkSize = chunkSize;
+        this.maxDirect = maxDirect;
+    }
+
+
+    /**
+     * Copies bytes into this arena.
+     *
+     * @param bytes The bytes to copy.
+     * @return A slice of the copy.
+     */
+    public Slice copy(byte[] bytes) {
+
+        if (bytes.length > this.chunkSize / 8) {
+            //Large rows get a chunk of their own, so that they do not leave a chunk mostly empty
+            ByteBuffer own = this.allocate(bytes.length);
+            own.put(bytes);
+            return new Slice(own, 0, bytes.length);
+        }
+
+        synchronized (this) {
+            if (this.chunk == null || this.used + bytes.length > this.chunkSize) {
+                this.chunk = this.allocate(this.chunkSize);
+                this.used = 0;
+            }
+            int offset = this.used;
+            this.chunk.position(offset);
+            this.chunk.put(bytes);
+            this.used += bytes.length;
+            return new Slice(this.chunk, offset, bytes.length);
+        }
+
+    }
+
+
+    /**
+     * Whether the chunks of this arena are off the heap.
+     *
+     * @return True iff the chunks are direct ByteBuffers.
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+
+    /**
+     * Gets how many bytes of chunks off the heap have not been freed yet, as far as this arena knows.
+     *
+     * @return The bytes, which are at most the cap.
+     */
+    public synchronized long getDirectBytes() {
+        this.reclaim();
+        return this.directBytes;
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * A chunk off the heap, which is queued once the garbage collector has freed it.
+     */
+    private static class Chunk extends PhantomReference<ByteBuffer> {
+
+        private final int size;
+
+        private Chunk(ByteBuffer chunk, ReferenceQueue<ByteBuffer> freed) {
+            super(chunk, freed);
+            this.size = chunk.capacity();
+        }
+
+    }
+
+
+    private synchronized ByteBuffer allocate(int size) {
+
+        if (!this.direct) return ByteBuffer.allocate(size);
+
+        this.reclaim();
+        if (this.directBytes + size > this.maxDirect) return ByteBuffer.allocate(size);
+
+        ByteBuffer chunk = ByteBuffer.allocateDirect(size);
+        this.chunks.add(new Chunk(chunk, this.freed));
+        this.directBytes += size;
+        return chunk;
+
+    }
+
+
+    /**
+     * Forgets the chunks off the heap that have been freed.
+     */
+    private void reclaim() {
+
+        for (Reference<? extends ByteBuffer> ref = this.freed.poll(); ref != null; ref = this.freed.poll()) {
+            Chunk chunk = (Chunk) ref;
+            if (this.chunks.remove(chunk)) this.directBytes -= chunk.size;
+        }
+
+    }
+
+
+}
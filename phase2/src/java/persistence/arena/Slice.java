@@ -0,0 +1,123 @@
+package persistence.arena;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A read-only run of bytes inside a larger buffer, which is usually a chunk of an Arena, held off the heap.
+ * <p>
+ * A slice is only a reference to its buffer, an offset and a length, so holding one costs a few bytes of heap however
+ * long the bytes are. The buffer is freed once no slice into it is left. The bytes of a slice are never changed.
+ */
+public final class Slice {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+
+    /**
+     * Initializes a slice of a buffer. The buffer must not be changed afterwards.
+     *
+     * @param buffer The buffer that holds the bytes.
+     * @param offset Where the bytes start in the buffer.
+     * @param length How many bytes there are.
+     */
+    Slice(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+
+    /**
+     * Returns a slice of these bytes, on the heap, without copying them. The array must not be changed afterwards.
+     *
+     * @param bytes The bytes.
+     * @return A slice of the whole array.
+     */
+    public static Slice wrap(byte[] bytes) {
+        return new Slice(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+
+    /**
+     * Returns the number of bytes in this slice.
+     *
+     * @return The length.
+     */
+    public int length() {
+        return this.length;
+    }
+
+
+    /**
+     * Returns one byte of this slice.
+     *
+     * @param index The position of the byte, from 0.
+     * @return The byte.
+     * @throws IndexOutOfBoundsException if index is not within this slice.
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= this.length) throw new IndexOutOfBoundsException();
+        return this.buffer.get(this.offset + index);
+    }
+
+
+    /**
+     * Returns a part of this slice, sharing its bytes.
+     *
+     * @param from   Where the part starts in this slice.
+     * @param length How many bytes the part has.
+     * @return The part.
+     * @throws IndexOutOfBoundsException if the part is not within this slice.
+     */
+    public Slice slice(int from, int length) {
+        if (from < 0 || length < 0 || from + length > this.length) throw new IndexOutOfBoundsException();
+        return new Slice(this.buffer, this.offset + from, length);
+    }
+
+
+    /**
+     * Copies part of this slice into an array.
+     *
+     * @param from        Where to start copying in this slice.
+     * @param destination The array to copy into.
+     * @param at          Where to start in the array.
+     * @param length      How many bytes to copy.
+     * @throws IndexOutOfBoundsException if the part is not within this slice.
+     */
+    public void copy(int from, byte[] destination, int at, int length) {
+        if (from < 0 || length < 0 || from + length > this.length) throw new IndexOutOfBoundsException();
+
+        //A duplicate has its own position, so slices can be read by any number of threads at once
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(this.offset + from);
+        view.get(destination, at, length);
+    }
+
+
+    /**
+     * Copies this slice onto the heap.
+     *
+     * @return A new array of the bytes.
+     */
+    public byte[] toArray() {
+        byte[] bytes = new byte[this.length];
+        this.copy(0, bytes, 0, this.length);
+        return bytes;
+    }
+
+
+    /**
+     * Decodes this slice as UTF-8 text.
+     *
+     * @return A new String.
+     */
+    public String utf8() {
+        return new String(this.toArray(), StandardCharsets.UTF_8);
+    }
+
+
+}
@@ -0,0 +1,255 @@
+package persistence.arena;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+
+/**
+ * Reads a Slice as a DataInput, from the front.
+ * <p>
+ * Besides what DataInput reads, it can hand out the next bytes as a slice of their own instead of copying them, which
+ * is how codecs leave large fields in the arena until they are needed.
+ */
+public class SliceInput implements DataInput {
+
+    private final Slice slice;
+    private int position = 0;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param slice The bytes to read.
+     */
+    public SliceInput(Slice slice) {
+        this.slice = slice;
+    }
+
+
+    /**
+     * Returns the next bytes as a slice, without copying them, and moves past them.
+     *
+     * @param length How many bytes to take.
+     * @return A slice of them.
+     * @throws IOException throws this exception if there are not that many bytes left.
+     */
+    public Slice readSlice(int length) throws IOException {
+        this.need(length);
+        Slice result = this.slice.slice(this.position, length);
+        this.position += length;
+        return result;
+    }
+
+
+    /**
+     * Returns every byte that has not been read yet as a slice, without copying them, and moves to the end.
+     *
+     * @return A slice of the rest.
+     */
+    public Slice readRest() {
+        Slice result = this.slice.slice(this.position, this.slice.length() - this.position);
+        this.position = this.slice.length();
+        return result;
+    }
+
+
+    /**
+     * Reads exactly enough bytes to fill an array.
+     *
+     * @param b the array to fill
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        this.readFully(b, 0, b.length);
+    }
+
+
+    /**
+     * Reads exactly len bytes into part of an array.
+     *
+     * @param b   the array to fill
+     * @param off where to start in the array
+     * @param len how many bytes to read
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        this.need(len);
+        this.slice.copy(this.position, b, off, len);
+        this.position += len;
+    }
+
+
+    /**
+     * Skips up to n bytes.
+     *
+     * @param n how many bytes to skip
+     * @return how many bytes were skipped, which is less than n at the end of the slice
+     */
+    @Override
+    public int skipBytes(int n) {
+        int skipped = Math.max(0, Math.min(n, this.slice.length() - this.position));
+        this.position += skipped;
+        return skipped;
+    }
+
+
+    /**
+     * Reads one byte as a boolean.
+     *
+     * @return true iff the byte is not 0
+     * @throws IOException throws this exception if there are no bytes left.
+     */
+    @Override
+    public boolean readBoolean() throws IOException {
+        return this.readByte() != 0;
+    }
+
+
+    /**
+     * Reads one byte.
+     *
+     * @return the byte
+     * @throws IOException throws this exception if there are no bytes left.
+     */
+    @Override
+    public byte readByte() throws IOException {
+        this.need(1);
+        return this.slice.get(this.position++);
+    }
+
+
+    /**
+     * Reads one byte, from 0 to 255.
+     *
+     * @return the byte
+     * @throws IOException throws this exception if there are no bytes left.
+     */
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return this.readByte() & 0xFF;
+    }
+
+
+    /**
+     * Reads two bytes, high byte first.
+     *
+     * @return the short
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public short readShort() throws IOException {
+        return (short) this.readUnsignedShort();
+    }
+
+
+    /**
+     * Reads two bytes, high byte first, from 0 to 65535.
+     *
+     * @return the value
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return this.readUnsignedByte() << 8 | this.readUnsignedByte();
+    }
+
+
+    /**
+     * Reads a char written as two bytes.
+     *
+     * @return the char
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public char readChar() throws IOException {
+        return (char) this.readUnsignedShort();
+    }
+
+
+    /**
+     * Reads four bytes, high byte first.
+     *
+     * @return the int
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public int readInt() throws IOException {
+        return this.readUnsignedShort() << 16 | this.readUnsignedShort();
+    }
+
+
+    /**
+     * Reads eight bytes, high byte first.
+     *
+     * @return the long
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public long readLong() throws IOException {
+        return (long) this.readInt() << 32 | (this.readInt() & 0xFFFFFFFFL);
+    }
+
+
+    /**
+     * Reads a float written as four bytes.
+     *
+     * @return the float
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(this.readInt());
+    }
+
+
+    /**
+     * Reads a double written as eight bytes.
+     *
+     * @return the double
+     * @throws IOException throws this exception if there are not enough bytes left.
+     */
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(this.readLong());
+    }
+
+
+    /**
+     * Not supported, since nothing is saved as lines.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Reads a string written by DataOutput.writeUTF.
+     *
+     * @return the string
+     * @throws IOException throws this exception if there are not enough bytes left, or they are not valid.
+     */
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    private void need(int length) throws EOFException {
+        if (length < 0 || this.position + length > this.slice.length()) throw new EOFException();
+    }
+
+
+}
@@ -0,0 +1,144 @@
+package persistence.changes;
+
+import persistence.Persistable;
+import persistence.codec.RowCodec;
+
+import java.io.IOException;
+
+
+/**
+ * One row that was created, updated or deleted by a commit, or a whole type that was removed, as published by a
+ * ChangeFeed. The row is held as it was before and after the change, encoded, and only decoded when asked for.
+ */
+public final class Change {
+
+    /**
+     * What happened to the row.
+     */
+    public enum Operation {
+        CREATE, UPDATE, DELETE, REMOVE
+    }
+
+    private final long sequence;
+    private final String type;
+    private final int id;
+    private final Operation operation;
+    private final byte[] before;
+    private final byte[] after;
+    private final RowCodec codec;
+
+
+    /**
+     * Initializes a change that has not been published yet.
+     *
+     * @param type      The class name of the type of the row.
+     * @param id        The primary key of the row, or 0 if a whole type was removed.
+     * @param operation What happened to the row.
+     * @param before    The row as it was before, encoded, or null if it did not exist or is not known.
+     * @param after     The row as it is after, encoded, or null if it no longer exists.
+     */
+    public Change(String type, int id, Operation operation, byte[] before, byte[] after) {
+        this(0, type, id, operation, before, after, null);
+    }
+
+
+    Change(long sequence, String type, int id, Operation operation, byte[] before, byte[] after, RowCodec codec) {
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+        this.operation = operation;
+        this.before = before;
+        this.after = after;
+        this.codec = codec;
+    }
+
+
+    /**
+     * Returns where this change is in the feed. Every change has a larger sequence than the ones published before it.
+     *
+     * @return The sequence, starting from 1.
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+
+    /**
+     * Returns the class name of the type of the row.
+     *
+     * @return The class name.
+     */
+    public String getType() {
+        return this.type;
+    }
+
+
+    /**
+     * Returns whether the row is of a type.
+     *
+     * @param type .class information about the type.
+     * @return true if the row is of exactly this type.
+     */
+    public boolean isOf(Class<?> type) {
+        return this.type.equals(type.getName());
+    }
+
+
+    /**
+     * Returns the primary key of the row.
+     *
+     * @return The primary key, or 0 if a whole type was removed.
+     */
+    public int getId() {
+        return this.id;
+    }
+
+
+    /**
+     * Returns what happened to the row.
+     *
+     * @return The operation.
+     */
+    public Operation getOperation() {
+        return this.operation;
+    }
+
+
+    /**
+     * Decodes the row as it was before the change.
+     *
+     * @return The row, or null for a create, a removal, or a row whose earlier version was not known.
+     * @throws IOException throws this exception if the row cannot be decoded.
+     */
+    public Persistable getBefore() throws IOException {
+        return this.before == null ? null : this.codec.decode(this.before);
+    }
+
+
+    /**
+     * Decodes the row as it is after the change.
+     *
+     * @return The row, or null for a delete or a removal.
+     * @throws IOException throws this exception if the row cannot be decoded.
+     */
+    public Persistable getAfter() throws IOException {
+        return this.after == null ? null : this.codec.decode(this.after);
+    }
+
+
+    byte[] before() {
+        return this.before;
+    }
+
+
+    byte[] after() {
+        return this.after;
+    }
+
+
+    Change sequenced(long sequence, RowCodec codec) {
+        return new Change(sequence, this.type, this.id, this.operation, this.before, this.after, codec);
+    }
+
+
+}
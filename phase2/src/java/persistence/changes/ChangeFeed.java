@@ -0,0 +1,380 @@
+package persistence.changes;
+
+import persistence.codec.RowCodec;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * An ordered feed of every change a gateway commits, so that caches, indexes and views can follow the rows instead
+ * of reading all of them again.
+ * <p>
+ * A gateway publishes the changes of each commit once they are visible, with the writer locks of their types still
+ * held, so the feed holds them in the order the commits happened. Each change gets the next sequence number.
+ * <p>
+ * There are two ways to listen:
+ * <ul>
+ * <li>subscribe(listener) calls the listener on the committing thread, before the commit returns, so that what it
+ * keeps is up to date as soon as the commit is. Such a listener must be quick and must not write to the gateway.</li>
+ * <li>subscribe(name, listener) calls the listener on the feed's own thread, after the changes are appended to the
+ * change log (serfile.changes). How far each name has got is kept on disk, so a subscription under the same name
+ * first hands over every change it missed since, even across restarts. This is at least once: after a crash, the
+ * last changes may be handed over again.</li>
+ * </ul>
+ * A feed can also be kept without a log, in which case only the first kind of listener can subscribe.
+ * The change log is never trimmed.
+ */
+public class ChangeFeed implements AutoCloseable {
+
+    /**
+     * Where the change log is kept unless another path is given.
+     */
+    private static final String LOG_PATH = "serfile.changes";
+
+    /**
+     * Decodes the rows of the changes for listeners.
+     */
+    private final RowCodec codec;
+
+    /**
+     * Where the change log is kept, or null if there is none. Cursors are kept next to it.
+     */
+    private final String path;
+
+    /**
+     * The sequence of the last change that was published.
+     */
+    private long sequence;
+
+    /**
+     * Listeners called on the committing thread.
+     */
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Listeners called on the feed's own thread. Only that thread uses this list, and the log.
+     */
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final DataOutputStream log;
+
+    /**
+     * Appends changes to the log and hands them to named subscriptions, in order.
+     */
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Initializes this feed with its log in serfile.changes.
+     *
+     * @param codec Decodes the rows of the changes for listeners. Use the codec of the gateway that publishes them.
+     * @throws IOException throws this exception if the log cannot be opened.
+     */
+    public ChangeFeed(RowCodec codec) throws IOException {
+        this(codec, LOG_PATH);
+    }
+
+
+    /**
+     * Initializes this feed, carrying on from the last change in its log.
+     *
+     * @param codec Decodes the rows of the changes for listeners. Use the codec of the gateway that publishes them.
+     * @param path  Where the change log is kept, or null to keep no log.
+     * @throws IOException throws this exception if the log cannot be opened.
+     */
+    public ChangeFeed(RowCodec codec, String path) throws IOException {
+        this.codec = codec;
+        this.path = path;
+        this.sequence = path == null ? 0 : this.recover();
+        this.log = path == null ? null : new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true)));
+    }
+
+
+    /**
+     * Publishes the changes of one commit. Called by the gateway once they are visible.
+     *
+     * @param changes The changes, in the order they were made.
+     */
+    public synchronized void publish(List<Change> changes) {
+
+        if (changes.isEmpty()) return;
+        List<Change> sequenced = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            sequenced.add(change.sequenced(++this.sequence, this.codec));
+        }
+
+        for (ChangeListener listener : this.listeners) {
+            for (Change change : sequenced) {
+                try {
+                    listener.changed(change);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (this.log != null) this.dispatcher.execute(() -> this.dispatch(sequenced));
+
+    }
+
+
+    /**
+     * Calls a listener on the committing thread for every change published from now on.
+     *
+     * @param listener The listener, which must be quick and must not write to the gateway.
+     */
+    public void subscribe(ChangeListener listener) {
+        this.listeners.add(listener);
+    }
+
+
+    /**
+     * Calls a listener on the feed's thread for every change this name has not been handed yet, starting with the
+     * ones in the log, then every change published from now on.
+     *
+     * @param name     The name under which how far the listener has got is kept, made of letters, digits, '-' and '_'.
+     * @param listener The listener.
+     * @throws IllegalStateException if this feed keeps no log.
+     */
+    public void subscribe(String name, ChangeListener listener) {
+        this.subscribe(name, -1, listener);
+    }
+
+
+    /**
+     * Calls a listener on the feed's thread for every change after a sequence, starting with the ones in the log,
+     * then every change published from now on. This is how a view is rebuilt from scratch (from 0).
+     *
+     * @param name     The name under which how far the listener has got is kept, made of letters, digits, '-' and '_'.
+     * @param after    The sequence to start after, or -1 to carry on from wherever this name got to last time.
+     * @param listener The listener.
+     * @throws IllegalStateException if this feed keeps no log.
+     */
+    public void subscribe(String name, long after, ChangeListener listener) {
+
+        if (this.log == null) throw new IllegalStateException("This change feed keeps no log to replay");
+        if (!name.matches("[A-Za-z0-9_-]+")) throw new IllegalArgumentException("Invalid subscription name " + name);
+        this.dispatcher.execute(() -> {
+            Subscription subscription = new Subscription(name, listener, after < 0 ? this.readCursor(name) : after);
+            try {
+                this.log.flush();
+                this.read(subscription::deliver);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            subscription.save();
+            this.subscriptions.add(subscription);
+        });
+
+    }
+
+
+    /**
+     * Returns whether anything is done with the changes published to this feed, so that a gateway can skip
+     * describing its changes when nothing is.
+     *
+     * @return true if the feed keeps a log, or has a listener.
+     */
+    public boolean isListened() {
+        return this.log != null || !this.listeners.isEmpty();
+    }
+
+
+    /**
+     * Returns the sequence of the last change that was published.
+     *
+     * @return The sequence, or 0 if nothing has been published yet.
+     */
+    public synchronized long lastSequence() {
+        return this.sequence;
+    }
+
+
+    /**
+     * Hands every change published so far to the named subscriptions, then closes the log.
+     */
+    @Override
+    public void close() {
+
+        this.dispatcher.shutdown();
+        try {
+            this.dispatcher.awaitTermination(10, TimeUnit.SECONDS);
+            if (this.log != null) this.log.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * A listener called on the feed's thread, and the sequence of the last change it was handed.
+     */
+    private class Subscription {
+
+        private final String name;
+        private final ChangeListener listener;
+        private long position;
+
+        private Subscription(String name, ChangeListener listener, long position) {
+            this.name = name;
+            this.listener = listener;
+            this.position = position;
+        }
+
+        private void deliver(Change change) {
+            if (change.getSequence() <= this.position) return;
+            try {
+                this.listener.changed(change);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            this.position = change.getSequence();
+        }
+
+        private void save() {
+            try (DataOutputStream output = new DataOutputStream(new FileOutputStream(ChangeFeed.this.getCursorPath(this.name)))) {
+                output.writeLong(this.position);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+
+    /**
+     * Runs on the feed's thread: appends changes to the log, then hands them to the named subscriptions.
+     */
+    private void dispatch(List<Change> changes) {
+
+        try {
+            for (Change change : changes) this.write(change);
+            this.log.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (Subscription subscription : this.subscriptions) {
+            for (Change change : changes) subscription.deliver(change);
+            subscription.save();
+        }
+
+    }
+
+
+    private void write(Change change) throws IOException {
+
+        this.log.writeLong(change.getSequence());
+        this.log.writeUTF(change.getType());
+        this.log.writeInt(change.getId());
+        this.log.writeByte(change.getOperation().ordinal());
+        this.writeRow(change.before());
+        this.writeRow(change.after());
+
+    }
+
+
+    private void writeRow(byte[] row) throws IOException {
+
+        this.log.writeInt(row == null ? -1 : row.length);
+        if (row != null) this.log.write(row);
+
+    }
+
+
+    /**
+     * Reads every whole change in the log, in order.
+     * Returns the length of the log up to the end of the last whole change, and the sequence of that change.
+     */
+    private long[] read(ChangeListener listener) throws IOException {
+
+        File file = new File(this.path);
+        long validLength = 0;
+        long last = 0;
+        if (!file.exists()) return new long[]{validLength, last};
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                long sequence = input.readLong();
+                String type = input.readUTF();
+                int id = input.readInt();
+                Change.Operation operation = Change.Operation.values()[input.readByte()];
+                byte[] before = this.readRow(input);
+                byte[] after = this.readRow(input);
+
+                validLength += 8 + 2 + type.getBytes("UTF-8").length + 4 + 1
+                        + 4 + (before == null ? 0 : before.length) + 4 + (after == null ? 0 : after.length);
+                last = sequence;
+                if (listener != null) listener.changed(new Change(sequence, type, id, operation, before, after, this.codec));
+            }
+        } catch (EOFException e) {
+            //The end of the log, or a change that was only partly written before a crash, which we ignore
+        }
+        return new long[]{validLength, last};
+
+    }
+
+
+    private byte[] readRow(DataInputStream input) throws IOException {
+
+        int length = input.readInt();
+        if (length < 0) return null;
+        byte[] row = new byte[length];
+        input.readFully(row);
+        return row;
+
+    }
+
+
+    /**
+     * Finds the last whole change in the log, and cuts off a torn one so new changes are not appended after it.
+     */
+    private long recover() throws IOException {
+
+        long[] end = this.read(null);
+        File file = new File(this.path);
+        if (file.exists() && end[0] < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(end[0]);
+            }
+        }
+        return end[1];
+
+    }
+
+
+    private long readCursor(String name) {
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(this.getCursorPath(name)))) {
+            return input.readLong();
+        } catch (IOException e) {
+            //A name that has never subscribed starts from the beginning of the log
+            return 0;
+        }
+
+    }
+
+
+    private String getCursorPath(String name) {
+        return this.path + "." + name + ".cursor";
+    }
+
+
+}
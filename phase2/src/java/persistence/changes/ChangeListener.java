@@ -0,0 +1,16 @@
+package persistence.changes;
+
+
+//Anything that keeps a copy of, or something derived from, persisted rows, and wants to hear when they change
+public interface ChangeListener {
+
+    /**
+     * Called once for each change, in the order of the feed.
+     * Applying a change again should be harmless, since a named subscription may be handed a change twice after a crash.
+     *
+     * @param change The change
+     */
+    void changed(Change change);
+
+
+}
@@ -0,0 +1,209 @@
+package persistence.codec;
+
+import persistence.Persistable;
+import persistence.arena.Slice;
+import persistence.arena.SliceInput;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Writes entities with hand-written entity codecs instead of Java serialization, which leaves out the class
+ * descriptors, boxed values and reflection that Java serialization needs for every row.
+ * <p>
+ * A row is: codec tag (byte), codec version (byte), then the fields written by that codec.
+ * A table is: magic (int), number of rows (int), then the length (int) and bytes of every row.
+ * <p>
+ * Anything written with Java serialization can still be read, both single rows and whole .ser files, so existing data
+ * is picked up as it is and converted to this format the next time it is written. Entity classes without a
+ * codec are written with Java serialization as well.
+ */
+public class BinaryRowCodec implements RowCodec {
+
+    private static final int MAGIC = 0x454E5442;
+    private static final int JAVA_MAGIC = 0xACED;
+    private static final int MAX_TAG = 127;
+
+    /**
+     * Reads and writes everything that has no codec of its own.
+     */
+    private final JavaRowCodec fallback = new JavaRowCodec();
+
+    /**
+     * The registered codecs, found by their tag or by the class they handle.
+     */
+    private final EntityCodec<?>[] codecs = new EntityCodec<?>[MAX_TAG + 1];
+    private final Map<Class<?>, Integer> tags = new HashMap<>();
+
+
+    /**
+     * Initializes this class with a codec for every entity.
+     * The tags are saved in every row, so they must never be changed or reused.
+     */
+    public BinaryRowCodec() {
+        this.register(1, new ItemCodec());
+        this.register(2, new UserCodec());
+        this.register(3, new TradeCodec());
+        this.register(4, new TransactionCodec());
+        this.register(5, new MeetingCodec());
+        this.register(6, new TagCodec());
+        this.register(7, new WishListCodec());
+        this.register(8, new HistoryCodec());
+        this.register(9, new ConfigCodec());
+    }
+
+
+    /**
+     * Registers the codec of an entity class.
+     *
+     * @param tag   the number saved in every row to find this codec again, from 1 to 127
+     * @param codec the codec
+     */
+    public void register(int tag, EntityCodec<?> codec) {
+
+        //Rows written by Java serialization start with 0xAC, so tags have to stay below that
+        if (tag < 1 || tag > MAX_TAG) throw new IllegalArgumentException("Codec tags go from 1 to " + MAX_TAG);
+        this.codecs[tag] = codec;
+        this.tags.put(codec.getType(), tag);
+
+    }
+
+
+    /**
+     * Encodes one entity.
+     *
+     * @param row the entity to encode
+     * @return the encoded entity
+     * @throws IOException throws this exception if the entity cannot be encoded.
+     */
+    @Override
+    public byte[] encode(Persistable row) throws IOException {
+
+        Integer tag = this.tags.get(row.getClass());
+        if (tag == null) return this.fallback.encode(row);
+
+        EntityCodec<?> codec = this.codecs[tag];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(tag);
+        output.writeByte(codec.getVersion());
+        write(codec, row, output);
+        return bytes.toByteArray();
+
+    }
+
+
+    /**
+     * Decodes one entity, whether it was written by this codec or by Java serialization.
+     *
+     * @param row the encoded entity
+     * @return a new instance of the entity
+     * @throws IOException throws this exception if the bytes cannot be decoded.
+     */
+    @Override
+    public Persistable decode(byte[] row) throws IOException {
+
+        if (row.length < 2) throw new UnknownFormatException();
+        if (((row[0] & 0xFF) << 8 | (row[1] & 0xFF)) == JAVA_MAGIC) return this.fallback.decode(row);
+
+        int tag = row[0];
+        if (tag < 1 || this.codecs[tag] == null) throw new UnknownFormatException();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(row, 2, row.length - 2));
+        return this.codecs[tag].read(input, row[1] & 0xFF);
+
+    }
+
+
+    /**
+     * Decodes one entity from a slice. Entities with a codec of their own are read straight from the slice, and may
+     * keep parts of it (such as long text) to decode when they are first read. Rows written by Java serialization are
+     * copied and decoded as usual.
+     *
+     * @param row the encoded entity, which must never be changed afterwards
+     * @return a new instance of the entity
+     * @throws IOException throws this exception if the bytes cannot be decoded.
+     */
+    @Override
+    public Persistable decode(Slice row) throws IOException {
+
+        if (row.length() < 2) throw new UnknownFormatException();
+        if (((row.get(0) & 0xFF) << 8 | (row.get(1) & 0xFF)) == JAVA_MAGIC) return this.fallback.decode(row.toArray());
+
+        int tag = row.get(0);
+        if (tag < 1 || this.codecs[tag] == null) throw new UnknownFormatException();
+        return this.codecs[tag].read(new SliceInput(row.slice(2, row.length() - 2)), row.get(1) & 0xFF);
+
+    }
+
+
+    /**
+     * Writes a whole table to a stream. The stream is not closed.
+     *
+     * @param rows   the entities to write
+     * @param output where to write them
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void writeAll(List<? extends Persistable> rows, OutputStream output) throws IOException {
+
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeInt(rows.size());
+        for (Persistable p : rows) {
+            byte[] row = this.encode(p);
+            data.writeInt(row.length);
+            data.write(row);
+        }
+        data.flush();
+
+    }
+
+
+    /**
+     * Reads a whole table, whether it was written by this codec or is a .ser file written by Java serialization.
+     * The stream is not closed.
+     *
+     * @param input where to read the table from
+     * @return a new List of every entity in the table
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public List<Persistable> readAll(InputStream input) throws IOException {
+
+        PushbackInputStream stream = new PushbackInputStream(input, 4);
+        DataInputStream data = new DataInputStream(stream);
+        byte[] head = new byte[4];
+        data.readFully(head);
+
+        if (((head[0] & 0xFF) << 8 | (head[1] & 0xFF)) == JAVA_MAGIC) {
+            stream.unread(head);
+            return this.fallback.readAll(stream);
+        }
+        if (new DataInputStream(new ByteArrayInputStream(head)).readInt() != MAGIC) throw new UnknownFormatException();
+
+        int size = data.readInt();
+        List<Persistable> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] row = new byte[data.readInt()];
+            data.readFully(row);
+            rows.add(this.decode(row));
+        }
+        return rows;
+
+    }
+
+
+    /**
+     * Writes an entity with the codec registered for its class, which getType checks it is.
+     */
+    private static <T extends Persistable> void write(EntityCodec<T> codec, Persistable row, DataOutput output) throws IOException {
+        codec.write(codec.getType().cast(row), output);
+    }
+
+
+}
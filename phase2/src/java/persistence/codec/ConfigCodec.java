@@ -0,0 +1,79 @@
+package persistence.codec;
+
+import entities.Config;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Writes the fields of a Config by hand.
+ */
+public class ConfigCodec implements EntityCodec<Config> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return Config.class
+     */
+    @Override
+    public Class<Config> getType() {
+        return Config.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a config, including its primary key.
+     *
+     * @param config the config to write
+     * @param output where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(Config config, DataOutput output) throws IOException {
+
+        output.writeInt(config.getKey());
+        Fields.writeString(output, config.getConfigName());
+        Fields.writeString(output, config.getConfigValue());
+
+    }
+
+
+    /**
+     * Reads a config written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the config was written with
+     * @return a new instance of the config
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public Config read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+        String configName = Fields.readString(input);
+        String configValue = Fields.readString(input);
+
+        Config config = new Config().setConfigName(configName).setConfigValue(configValue);
+        config.setKey(id);
+        return config;
+
+    }
+
+
+}
@@ -0,0 +1,57 @@
+package persistence.codec;
+
+import persistence.Persistable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Writes the fields of one entity class by hand, and reads them back.
+ * <p>
+ * Every row is saved with the version of the codec that wrote it. Whenever the fields of an entity change,
+ * the version must go up, and read must keep handling every older version so that existing files stay readable.
+ *
+ * @param <T> the entity class this codec handles
+ */
+public interface EntityCodec<T extends Persistable> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return .class information about class T
+     */
+    Class<T> getType();
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version, from 1 to 255
+     */
+    int getVersion();
+
+
+    /**
+     * Writes every field of an entity, including its primary key.
+     *
+     * @param entity the entity to write
+     * @param output where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    void write(T entity, DataOutput output) throws IOException;
+
+
+    /**
+     * Reads an entity written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the entity was written with
+     * @return a new instance of the entity
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    T read(DataInput input, int version) throws IOException;
+
+
+}
@@ -0,0 +1,122 @@
+package persistence.codec;
+
+import persistence.arena.Slice;
+import persistence.arena.SliceInput;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Reads and writes the field types that the entity codecs have in common.
+ * Strings and lists are written with their length first, as a variable-length number of length + 1,
+ * so that null can be written as 0 and short lengths only take one byte.
+ */
+final class Fields {
+
+    private Fields() {
+    }
+
+
+    static void writeString(DataOutput output, String value) throws IOException {
+
+        if (value == null) {
+            writeLength(output, -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLength(output, bytes.length);
+        output.write(bytes);
+
+    }
+
+
+    static String readString(DataInput input) throws IOException {
+
+        int length = readLength(input);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+
+    }
+
+
+    //Reads a string written by writeString without decoding it. Text read from a slice stays where it is
+    static Slice readText(DataInput input) throws IOException {
+
+        int length = readLength(input);
+        if (length < 0) return null;
+        if (input instanceof SliceInput) return ((SliceInput) input).readSlice(length);
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return Slice.wrap(bytes);
+
+    }
+
+
+    static void writeIntList(DataOutput output, List<Integer> values) throws IOException {
+
+        if (values == null) {
+            writeLength(output, -1);
+            return;
+        }
+        writeLength(output, values.size());
+        for (int value : values) output.writeInt(value);
+
+    }
+
+
+    static List<Integer> readIntList(DataInput input) throws IOException {
+
+        int size = readLength(input);
+        if (size < 0) return null;
+        List<Integer> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) values.add(input.readInt());
+        return values;
+
+    }
+
+
+    static void writeLength(DataOutput output, int length) throws IOException {
+
+        //Seven bits per byte, the high bit says whether another byte follows
+        int value = length + 1;
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+
+    }
+
+
+    static int readLength(DataInput input) throws IOException {
+
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value - 1;
+        }
+
+    }
+
+
+    static void writeDate(DataOutput output, LocalDate value) throws IOException {
+        output.writeLong(value == null ? Long.MIN_VALUE : value.toEpochDay());
+    }
+
+
+    static LocalDate readDate(DataInput input) throws IOException {
+        long day = input.readLong();
+        return day == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(day);
+    }
+
+
+}
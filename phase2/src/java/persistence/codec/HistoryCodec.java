@@ -0,0 +1,196 @@
+package persistence.codec;
+
+import entities.History;
+import persistence.arena.Slice;
+import persistence.arena.SliceInput;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Writes the fields of a History by hand.
+ * The values in its data map are written with a tag for their type. The types that the actions store
+ * (Integer, String, Boolean, Long and LocalDate) are written by hand, anything else falls back to Java serialization.
+ */
+public class HistoryCodec implements EntityCodec<History> {
+
+    private static final byte NULL = 0;
+    private static final byte INTEGER = 1;
+    private static final byte STRING = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte LONG = 4;
+    private static final byte DATE = 5;
+    private static final byte SERIALIZED = 6;
+
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return History.class
+     */
+    @Override
+    public Class<History> getType() {
+        return History.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a history, including its primary key.
+     *
+     * @param history the history to write
+     * @param output  where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(History history, DataOutput output) throws IOException {
+
+        output.writeInt(history.getKey());
+        Fields.writeString(output, history.getActionName());
+        Fields.writeString(output, history.getDisplayString());
+        output.writeBoolean(history.isUndone());
+
+        Fields.writeLength(output, history.getData().size());
+        for (Map.Entry<String, Serializable> entry : history.getData().entrySet()) {
+            Fields.writeString(output, entry.getKey());
+            this.writeValue(output, entry.getValue());
+        }
+
+    }
+
+
+    /**
+     * Reads a history written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the history was written with
+     * @return a new instance of the history
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public History read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        History history = new History();
+        history.setKey(input.readInt());
+        history.setActionName(Fields.readString(input));
+        history.setEncodedDisplayString(Fields.readText(input));
+        history.setUndone(input.readBoolean());
+
+        if (input instanceof SliceInput) {
+            //The data comes last, so it can be left in the slice and only decoded if it is read
+            Slice data = ((SliceInput) input).readRest();
+            history.setDataReader(() -> {
+                try {
+                    return this.readData(new SliceInput(data));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } else {
+            history.getData().putAll(this.readData(input));
+        }
+        return history;
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    private Map<String, Serializable> readData(DataInput input) throws IOException {
+
+        Map<String, Serializable> data = new HashMap<>();
+        for (int i = Fields.readLength(input); i > 0; i--) {
+            String key = Fields.readString(input);
+            data.put(key, this.readValue(input));
+        }
+        return data;
+
+    }
+
+
+    private void writeValue(DataOutput output, Serializable value) throws IOException {
+
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            Fields.writeString(output, (String) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof LocalDate) {
+            output.writeByte(DATE);
+            Fields.writeDate(output, (LocalDate) value);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+                objects.writeObject(value);
+            }
+            output.writeByte(SERIALIZED);
+            Fields.writeLength(output, bytes.size());
+            output.write(bytes.toByteArray());
+        }
+
+    }
+
+
+    private Serializable readValue(DataInput input) throws IOException {
+
+        byte tag = input.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INTEGER:
+                return input.readInt();
+            case STRING:
+                return Fields.readString(input);
+            case BOOLEAN:
+                return input.readBoolean();
+            case LONG:
+                return input.readLong();
+            case DATE:
+                return Fields.readDate(input);
+            case SERIALIZED:
+                byte[] bytes = new byte[Fields.readLength(input)];
+                input.readFully(bytes);
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (Serializable) objects.readObject();
+                } catch (ClassNotFoundException e) {
+                    System.out.println("Class is not found. Cannot load the class in through string name. " +
+                            "Has the application changed since the data was last saved?");
+                    throw new IOException();
+                }
+            default:
+                throw new UnknownFormatException();
+        }
+
+    }
+
+
+}
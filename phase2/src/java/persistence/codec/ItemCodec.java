@@ -0,0 +1,101 @@
+package persistence.codec;
+
+import entities.Item;
+import persistence.arena.Slice;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Writes the fields of an Item by hand.
+ */
+public class ItemCodec implements EntityCodec<Item> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return Item.class
+     */
+    @Override
+    public Class<Item> getType() {
+        return Item.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of an item, including its primary key.
+     *
+     * @param item   the item to write
+     * @param output where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(Item item, DataOutput output) throws IOException {
+
+        output.writeInt(item.getKey());
+        Fields.writeString(output, item.getName());
+        Fields.writeString(output, item.getDescription());
+        output.writeInt(item.getOwnerId());
+        output.writeInt(item.getHolderId());
+        output.writeInt(item.getPrice());
+        output.writeBoolean(item.isVisible());
+        output.writeBoolean(item.isSoftDeleted());
+        output.writeBoolean(item.isReserved());
+        output.writeBoolean(item.isForSale());
+
+    }
+
+
+    /**
+     * Reads an item written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the item was written with
+     * @return a new instance of the item
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public Item read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        //The name and description are only decoded if they are read
+        int id = input.readInt();
+        Slice name = Fields.readText(input);
+        Slice description = Fields.readText(input);
+        int ownerId = input.readInt();
+        int holderId = input.readInt();
+        int price = input.readInt();
+        boolean visible = input.readBoolean();
+        boolean softDeleted = input.readBoolean();
+        boolean reserved = input.readBoolean();
+        boolean forSale = input.readBoolean();
+
+        Item item = new Item(null, null, ownerId, price, forSale);
+        item.setEncodedName(name);
+        item.setEncodedDescription(description);
+        item.setKey(id);
+        item.setHolderId(holderId);
+        item.setVisibility(visible);
+        item.setSoftDelete(softDeleted);
+        item.setReserved(reserved);
+        return item;
+
+    }
+
+
+}
@@ -0,0 +1,101 @@
+package persistence.codec;
+
+import persistence.Persistable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Uses Java serialization, which is the format every gateway has always saved in.
+ * A table is saved as one serialized List, exactly as SerPersistenceGateway wrote it.
+ */
+public class JavaRowCodec implements RowCodec {
+
+    /**
+     * Encodes one entity.
+     *
+     * @param row the entity to encode
+     * @return the encoded entity
+     * @throws IOException throws this exception if the entity cannot be encoded.
+     */
+    @Override
+    public byte[] encode(Persistable row) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(row);
+        }
+        return bytes.toByteArray();
+
+    }
+
+
+    /**
+     * Decodes one entity that was encoded by this codec.
+     *
+     * @param row the encoded entity
+     * @return a new instance of the entity
+     * @throws IOException throws this exception if the bytes cannot be decoded.
+     */
+    @Override
+    public Persistable decode(byte[] row) throws IOException {
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(row))) {
+            return (Persistable) input.readObject();
+        } catch (ClassNotFoundException e) {
+            System.out.println("Class is not found. Cannot load the class in through string name. " +
+                    "Has the application changed since the data was last saved?");
+            throw new IOException();
+        }
+
+    }
+
+
+    /**
+     * Writes a whole table to a stream as one serialized List. The stream is not closed.
+     *
+     * @param rows   the entities to write
+     * @param output where to write them
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void writeAll(List<? extends Persistable> rows, OutputStream output) throws IOException {
+
+        ObjectOutputStream objects = new ObjectOutputStream(output);
+        objects.writeObject(rows);
+        objects.flush();
+
+    }
+
+
+    /**
+     * Reads a whole table that was written as one serialized List. The stream is not closed.
+     *
+     * @param input where to read the table from
+     * @return a new List of every entity in the table
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public List<Persistable> readAll(InputStream input) throws IOException {
+
+        try {
+            Object table = new ObjectInputStream(input).readObject();
+            if (!(table instanceof List)) throw new IOException("Expected a serialized List of rows");
+            List<Persistable> rows = new ArrayList<>();
+            for (Object row : (List<?>) table) {
+                if (!(row instanceof Persistable)) throw new IOException("Expected only Persistable rows");
+                rows.add((Persistable) row);
+            }
+            return rows;
+        } catch (ClassNotFoundException e) {
+            System.out.println("Class is not found. Cannot load the class in through string name. " +
+                    "Has the application changed since the data was last saved?");
+            throw new IOException();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,105 @@
+package persistence.codec;
+
+import entities.Meeting;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Writes the fields of a Meeting by hand.
+ */
+public class MeetingCodec implements EntityCodec<Meeting> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return Meeting.class
+     */
+    @Override
+    public Class<Meeting> getType() {
+        return Meeting.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a meeting, including its primary key.
+     *
+     * @param meeting the meeting to write
+     * @param output  where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(Meeting meeting, DataOutput output) throws IOException {
+
+        output.writeInt(meeting.getKey());
+
+        Fields.writeLength(output, meeting.getTimes().size());
+        for (LocalDate time : meeting.getTimes()) Fields.writeDate(output, time);
+        Fields.writeLength(output, meeting.getLocations().size());
+        for (String location : meeting.getLocations()) Fields.writeString(output, location);
+        Fields.writeIntList(output, meeting.getEditorIds());
+        Fields.writeIntList(output, new ArrayList<>(meeting.getConfirmedBy()));
+
+        output.writeBoolean(meeting.isAgreedTo());
+        output.writeBoolean(meeting.hasSecondMeeting());
+
+    }
+
+
+    /**
+     * Reads a meeting written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the meeting was written with
+     * @return a new instance of the meeting
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public Meeting read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+
+        List<LocalDate> times = new ArrayList<>();
+        for (int i = Fields.readLength(input); i > 0; i--) times.add(Fields.readDate(input));
+        List<String> locations = new ArrayList<>();
+        for (int i = Fields.readLength(input); i > 0; i--) locations.add(Fields.readString(input));
+        List<Integer> editorIds = Fields.readIntList(input);
+        List<Integer> confirmedBy = Fields.readIntList(input);
+
+        boolean agreedTo = input.readBoolean();
+        boolean hasSecondMeeting = input.readBoolean();
+
+        //The constructor takes the first suggestion, every later one is replayed as an edit
+        Meeting meeting = new Meeting(times.get(0), locations.get(0), editorIds.get(0));
+        for (int i = 1; i < times.size(); i++) meeting.editTime(times.get(i));
+        for (int i = 1; i < locations.size(); i++) meeting.editLocation(locations.get(i));
+        for (int i = 1; i < editorIds.size(); i++) meeting.setLastEditor(editorIds.get(i));
+        for (int userId : confirmedBy) meeting.markConfirmed(userId);
+        if (agreedTo) meeting.markAgreed();
+        meeting.setSecondMeeting(hasSecondMeeting);
+        meeting.setKey(id);
+        return meeting;
+
+    }
+
+
+}
@@ -0,0 +1,72 @@
+package persistence.codec;
+
+import persistence.Persistable;
+import persistence.arena.Slice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+
+/**
+ * Turns entities into bytes and back. The gateways use this for single rows, and for whole tables saved to one file.
+ */
+public interface RowCodec {
+
+    /**
+     * Encodes one entity.
+     *
+     * @param row the entity to encode
+     * @return the encoded entity
+     * @throws IOException throws this exception if the entity cannot be encoded.
+     */
+    byte[] encode(Persistable row) throws IOException;
+
+
+    /**
+     * Decodes one entity that was encoded by this codec.
+     *
+     * @param row the encoded entity
+     * @return a new instance of the entity
+     * @throws IOException throws this exception if the bytes cannot be decoded.
+     */
+    Persistable decode(byte[] row) throws IOException;
+
+
+    /**
+     * Decodes one entity that was encoded by this codec, from a slice that is never changed afterwards.
+     * Codecs that can do so leave large fields in the slice until they are read, so that decoding an entity only to
+     * look at a few of its fields does not copy the rest. Other codecs copy the slice and decode that,
+     * which is what this default does.
+     *
+     * @param row the encoded entity
+     * @return a new instance of the entity
+     * @throws IOException throws this exception if the bytes cannot be decoded.
+     */
+    default Persistable decode(Slice row) throws IOException {
+        return this.decode(row.toArray());
+    }
+
+
+    /**
+     * Writes a whole table to a stream. The stream is not closed.
+     *
+     * @param rows   the entities to write
+     * @param output where to write them
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    void writeAll(List<? extends Persistable> rows, OutputStream output) throws IOException;
+
+
+    /**
+     * Reads a whole table that was written by writeAll. The stream is not closed.
+     *
+     * @param input where to read the table from
+     * @return a new List of every entity in the table
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    List<Persistable> readAll(InputStream input) throws IOException;
+
+
+}
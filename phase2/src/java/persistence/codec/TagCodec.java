@@ -0,0 +1,81 @@
+package persistence.codec;
+
+import entities.Tag;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Writes the fields of a Tag by hand.
+ */
+public class TagCodec implements EntityCodec<Tag> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return Tag.class
+     */
+    @Override
+    public Class<Tag> getType() {
+        return Tag.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a tag, including its primary key.
+     *
+     * @param tag    the tag to write
+     * @param output where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(Tag tag, DataOutput output) throws IOException {
+
+        output.writeInt(tag.getKey());
+        Fields.writeString(output, tag.getTagName());
+        Fields.writeIntList(output, tag.getDefinedRelations().get("items"));
+
+    }
+
+
+    /**
+     * Reads a tag written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the tag was written with
+     * @return a new instance of the tag
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public Tag read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+        String tagName = Fields.readString(input);
+        List<Integer> itemIds = Fields.readIntList(input);
+
+        Tag tag = new Tag(tagName);
+        tag.setKey(id);
+        for (int itemId : itemIds) tag.associateItem(itemId);
+        return tag;
+
+    }
+
+
+}
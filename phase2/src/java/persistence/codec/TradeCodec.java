@@ -0,0 +1,88 @@
+package persistence.codec;
+
+import entities.Trade;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Writes the fields of a Trade by hand.
+ */
+public class TradeCodec implements EntityCodec<Trade> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return Trade.class
+     */
+    @Override
+    public Class<Trade> getType() {
+        return Trade.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a trade, including its primary key.
+     *
+     * @param trade  the trade to write
+     * @param output where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(Trade trade, DataOutput output) throws IOException {
+
+        output.writeInt(trade.getKey());
+        output.writeInt(trade.getLenderId());
+        output.writeInt(trade.getBorrowerId());
+        Fields.writeIntList(output, trade.getItemList());
+        output.writeBoolean(trade.isComplete());
+        output.writeBoolean(trade.getSell());
+
+    }
+
+
+    /**
+     * Reads a trade written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the trade was written with
+     * @return a new instance of the trade
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public Trade read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+        int lenderId = input.readInt();
+        int borrowerId = input.readInt();
+        List<Integer> itemList = Fields.readIntList(input);
+        boolean complete = input.readBoolean();
+        boolean sell = input.readBoolean();
+
+        Trade trade = new Trade(lenderId, borrowerId, itemList);
+        trade.setKey(id);
+        trade.setComplete(complete);
+        trade.setSell(sell);
+        return trade;
+
+    }
+
+
+}
@@ -0,0 +1,81 @@
+package persistence.codec;
+
+import entities.Transaction;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Writes the fields of a Transaction by hand.
+ */
+public class TransactionCodec implements EntityCodec<Transaction> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return Transaction.class
+     */
+    @Override
+    public Class<Transaction> getType() {
+        return Transaction.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a transaction, including its primary key.
+     *
+     * @param transaction the transaction to write
+     * @param output      where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(Transaction transaction, DataOutput output) throws IOException {
+
+        output.writeInt(transaction.getKey());
+        Fields.writeIntList(output, transaction.getTradeList());
+        Fields.writeIntList(output, transaction.getMeetingList());
+
+    }
+
+
+    /**
+     * Reads a transaction written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the transaction was written with
+     * @return a new instance of the transaction
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public Transaction read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+        List<Integer> tradeList = Fields.readIntList(input);
+        List<Integer> meetingList = Fields.readIntList(input);
+
+        //Whether the transaction is one way follows from its trades, so the constructor sets it for us
+        Transaction transaction = new Transaction(tradeList, meetingList);
+        transaction.setKey(id);
+        return transaction;
+
+    }
+
+
+}
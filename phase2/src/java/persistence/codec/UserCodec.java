@@ -0,0 +1,86 @@
+package persistence.codec;
+
+import entities.User;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Writes the fields of a User by hand.
+ */
+public class UserCodec implements EntityCodec<User> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return User.class
+     */
+    @Override
+    public Class<User> getType() {
+        return User.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a user, including its primary key.
+     *
+     * @param user   the user to write
+     * @param output where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(User user, DataOutput output) throws IOException {
+
+        output.writeInt(user.getKey());
+        Fields.writeString(output, user.getName());
+        Fields.writeString(output, user.getPassword());
+        Fields.writeString(output, user.getHomeCity());
+        Fields.writeString(output, user.getStatus());
+        output.writeInt(user.getCredit());
+
+    }
+
+
+    /**
+     * Reads a user written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the user was written with
+     * @return a new instance of the user
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public User read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+        String name = Fields.readString(input);
+        String password = Fields.readString(input);
+        String homeCity = Fields.readString(input);
+        String status = Fields.readString(input);
+        int credit = input.readInt();
+
+        User user = new User(name, password, homeCity, status);
+        user.setKey(id);
+        user.setCredit(credit);
+        return user;
+
+    }
+
+
+}
@@ -0,0 +1,81 @@
+package persistence.codec;
+
+import entities.WishList;
+import persistence.exceptions.UnknownFormatException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Writes the fields of a WishList by hand.
+ */
+public class WishListCodec implements EntityCodec<WishList> {
+
+    /**
+     * Returns the entity class this codec handles.
+     *
+     * @return WishList.class
+     */
+    @Override
+    public Class<WishList> getType() {
+        return WishList.class;
+    }
+
+
+    /**
+     * Returns the version that write produces.
+     *
+     * @return the current version
+     */
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+
+    /**
+     * Writes every field of a wish list, including its primary key.
+     *
+     * @param wishList the wish list to write
+     * @param output   where to write it
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void write(WishList wishList, DataOutput output) throws IOException {
+
+        output.writeInt(wishList.getKey());
+        output.writeInt(wishList.getOwnerId());
+        Fields.writeIntList(output, wishList.getWishList());
+
+    }
+
+
+    /**
+     * Reads a wish list written by write.
+     *
+     * @param input   where to read it from
+     * @param version the version the wish list was written with
+     * @return a new instance of the wish list
+     * @throws IOException throws this exception if there is a IO error, or if the version is not known.
+     */
+    @Override
+    public WishList read(DataInput input, int version) throws IOException {
+
+        if (version != 1) throw new UnknownFormatException();
+
+        int id = input.readInt();
+        int ownerId = input.readInt();
+        List<Integer> itemIds = Fields.readIntList(input);
+
+        WishList wishList = new WishList(ownerId);
+        wishList.setKey(id);
+        for (int itemId : itemIds) wishList.addWishList(itemId);
+        return wishList;
+
+    }
+
+
+}
@@ -0,0 +1,4 @@
+package persistence.exceptions;
+
+public class UnknownFormatException extends PersistenceException {
+}
@@ -0,0 +1,89 @@
+package persistence.index;
+
+import java.util.ArrayList;
+import java.util.function.UnaryOperator;
+
+/**
+ * A list of chunks that a copy shares with the list it was made from.
+ * <p>
+ * Each list owns the chunks it made or copied itself, and copies any other chunk the first time it changes it, so a
+ * copy only costs a reference per chunk, and a change only copies the chunk it is in. The copy starts out owning
+ * nothing, and the list it was made from is left as it was: its chunks are still its own, so it must not be changed
+ * once it has been copied.
+ *
+ * @param <C> the type of each chunk
+ */
+final class Chunks<C> {
+
+    /**
+     * Marks the chunks this list owns. No other list ever has it.
+     */
+    private final Object owner = new Object();
+
+    private final UnaryOperator<C> copier;
+    private final ArrayList<C> chunks;
+    private final ArrayList<Object> owners;
+
+
+    /**
+     * Initializes a list with no chunks.
+     *
+     * @param copier Copies a chunk, so that the copy can be changed without changing the original.
+     */
+    Chunks(UnaryOperator<C> copier) {
+        this.copier = copier;
+        this.chunks = new ArrayList<>();
+        this.owners = new ArrayList<>();
+    }
+
+
+    /**
+     * Initializes a list sharing every chunk of another one.
+     *
+     * @param other The list to copy, which is not changed.
+     */
+    Chunks(Chunks<C> other) {
+        this.copier = other.copier;
+        this.chunks = new ArrayList<>(other.chunks);
+        this.owners = new ArrayList<>(other.owners);
+    }
+
+
+    /**
+     * Returns the number of chunks.
+     */
+    int size() {
+        return this.chunks.size();
+    }
+
+
+    /**
+     * Returns a chunk, for reading only.
+     */
+    C get(int i) {
+        return this.chunks.get(i);
+    }
+
+
+    /**
+     * Returns a chunk that this list owns and can change, copying it first if it is shared.
+     */
+    C writable(int i) {
+        if (this.owners.get(i) != this.owner) {
+            this.chunks.set(i, this.copier.apply(this.chunks.get(i)));
+            this.owners.set(i, this.owner);
+        }
+        return this.chunks.get(i);
+    }
+
+
+    /**
+     * Adds a chunk at the end, owned by this list.
+     */
+    void add(C chunk) {
+        this.chunks.add(chunk);
+        this.owners.add(this.owner);
+    }
+
+
+}
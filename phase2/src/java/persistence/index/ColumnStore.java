@@ -0,0 +1,150 @@
+package persistence.index;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the columns (see HasColumns) of the rows of one type, as one int array per column, indexed by slot.
+ * <p>
+ * The slots are chosen by whoever holds the rows, usually the position of the row in its own packed array, so that
+ * a scan can walk the rows and their columns side by side. Booleans are held as 1 and 0.
+ * <p>
+ * A copy shares the columns of the store it was made from (see SharedIntArray), and only copies the chunks it changes.
+ */
+public class ColumnStore {
+
+    /**
+     * Every column, keyed by name.
+     */
+    private final Map<String, SharedIntArray> columns = new HashMap<>();
+
+
+    /**
+     * Initializes an empty store.
+     */
+    public ColumnStore() {
+    }
+
+
+    /**
+     * Initializes a store holding the same columns as another one. Changing the copy does not change the other one,
+     * which must not be changed afterwards.
+     *
+     * @param other The store to copy.
+     */
+    public ColumnStore(ColumnStore other) {
+        for (Map.Entry<String, SharedIntArray> entry : other.columns.entrySet()) {
+            this.columns.put(entry.getKey(), new SharedIntArray(entry.getValue()));
+        }
+    }
+
+
+    /**
+     * Stores the columns of the row in a slot, replacing whatever was there.
+     *
+     * @param slot   The slot of the row.
+     * @param values The columns of the row and their values, or null if the row has none.
+     */
+    public void set(int slot, Map<String, Object> values) {
+
+        if (values == null) return;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            this.columns.computeIfAbsent(entry.getKey(), name -> new SharedIntArray()).set(slot, toInt(entry.getValue()));
+        }
+
+    }
+
+
+    /**
+     * Copies the columns of one slot into another, when a row is moved.
+     *
+     * @param from The slot the row was in.
+     * @param to   The slot the row is moved to.
+     */
+    public void move(int from, int to) {
+
+        for (SharedIntArray column : this.columns.values()) {
+            column.set(to, column.get(from));
+        }
+
+    }
+
+
+    /**
+     * Returns a view of these columns that can be moved from slot to slot, for scanning.
+     *
+     * @return A new cursor, on no row yet.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+
+    /**
+     * Turns the value of a column into the int it is held as.
+     *
+     * @param value An Integer, or a Boolean.
+     * @return The value, with true as 1 and false as 0.
+     * @throws IllegalArgumentException if the value is neither.
+     */
+    static int toInt(Object value) {
+
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+        throw new IllegalArgumentException("Columns must be an Integer or a Boolean");
+
+    }
+
+
+    /**
+     * Reads the columns of the slot it was last moved to.
+     */
+    public class Cursor implements Columns {
+
+        private int key;
+        private int slot;
+
+        private Cursor() {
+        }
+
+        /**
+         * Moves this cursor to a row.
+         *
+         * @param key  The primary key of the row.
+         * @param slot The slot of the row.
+         * @return This cursor.
+         */
+        public Cursor move(int key, int slot) {
+            this.key = key;
+            this.slot = slot;
+            return this;
+        }
+
+        /**
+         * Returns the primary key of the row.
+         *
+         * @return The primary key.
+         */
+        @Override
+        public int getKey() {
+            return this.key;
+        }
+
+        /**
+         * Returns the value of an int column. Boolean columns are read as 1 or 0.
+         *
+         * @param column The name of the column.
+         * @return The value.
+         * @throws IllegalArgumentException if there is no such column.
+         */
+        @Override
+        public int getInt(String column) {
+            SharedIntArray values = ColumnStore.this.columns.get(column);
+            if (values == null) throw new IllegalArgumentException("No column " + column);
+            return values.get(this.slot);
+        }
+
+    }
+
+
+}
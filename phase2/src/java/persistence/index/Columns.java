@@ -0,0 +1,80 @@
+package persistence.index;
+
+import java.util.Map;
+
+
+/**
+ * The columns of one row (see HasColumns), as a condition passed to findKeys reads them.
+ * <p>
+ * A gateway may hand the same instance to a condition for every row it scans, moving it from row to row,
+ * so a condition must not keep it.
+ */
+public interface Columns {
+
+    /**
+     * Returns the primary key of the row.
+     *
+     * @return The primary key.
+     */
+    int getKey();
+
+
+    /**
+     * Returns the value of an int column. Boolean columns are read as 1 or 0.
+     *
+     * @param column The name of the column.
+     * @return The value.
+     * @throws IllegalArgumentException if the row has no such column.
+     */
+    int getInt(String column);
+
+
+    /**
+     * Returns the value of a boolean column.
+     *
+     * @param column The name of the column.
+     * @return The value.
+     * @throws IllegalArgumentException if the row has no such column.
+     */
+    default boolean getBoolean(String column) {
+        return this.getInt(column) != 0;
+    }
+
+
+    /**
+     * Returns the columns of an entity, read from the map it returns.
+     *
+     * @param row The entity.
+     * @return Its columns.
+     */
+    static Columns of(HasColumns row) {
+        return of(row.getKey(), row.getColumns());
+    }
+
+
+    /**
+     * Returns the columns of a row, read from a map as returned by HasColumns.
+     *
+     * @param key    The primary key of the row.
+     * @param values The columns of the row and their values.
+     * @return Its columns.
+     */
+    static Columns of(int key, Map<String, Object> values) {
+        return new Columns() {
+
+            @Override
+            public int getKey() {
+                return key;
+            }
+
+            @Override
+            public int getInt(String column) {
+                if (!values.containsKey(column)) throw new IllegalArgumentException("No column " + column);
+                return ColumnStore.toInt(values.get(column));
+            }
+
+        };
+    }
+
+
+}
@@ -0,0 +1,24 @@
+package persistence.index;
+
+import persistence.Persistable;
+
+import java.util.Map;
+
+
+//Declares the int and boolean fields of a persistable that queries can read without decoding the whole row
+public interface HasColumns extends Persistable {
+
+    /**
+     * Each string should be the name of a column, mapped to the value that field has in this particular entity.
+     * Values must be an Integer or a Boolean, and every entity of a type should return the same columns.
+     * Gateways that keep a column store copy these values into one array per column on every create and update,
+     * and findKeys hands them to its condition as Columns, by the same names.
+     * <p>
+     * For example {"ownerId", 5}, {"visibility", true}
+     *
+     * @return Map of columns and their values
+     */
+    Map<String, Object> getColumns();
+
+
+}
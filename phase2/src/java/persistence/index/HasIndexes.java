@@ -0,0 +1,26 @@
+package persistence.index;
+
+import persistence.Persistable;
+
+import java.util.Map;
+
+
+//Declares the fields of a persistable that can be looked up without scanning every row
+public interface HasIndexes extends Persistable {
+
+    /**
+     * Each string should be the name of an indexed field, mapped to the value that field has in this particular entity.
+     * Gateways that keep secondary indexes update them from this map on every create, update and delete,
+     * and findBy looks rows up by the same names.
+     * <p>
+     * For example {"ownerId", 5}
+     * <p>
+     * This means that findBy("ownerId", 5, ...) should find this entity.
+     * Values are compared with equals, so an int field should be looked up with an int (or Integer) value.
+     *
+     * @return Map of indexed fields and their values
+     */
+    Map<String, Object> getIndexedFields();
+
+
+}
@@ -0,0 +1,228 @@
+package persistence.index;
+
+/**
+ * Maps int keys to int values without boxing, using open addressing with linear probing.
+ * <p>
+ * This is used to find rows by their primary key (key = primary key, value = position of the row),
+ * and as a plain set of primary keys when the value does not matter.
+ * Removing a key shifts the following entries back, so the table never fills up with deleted markers.
+ */
+public class IntIndex {
+
+    /**
+     * Returned by get and remove if there is no such key.
+     */
+    public static final int MISSING = -1;
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+
+    /**
+     * Initializes an empty index.
+     */
+    public IntIndex() {
+        this(16);
+    }
+
+
+    /**
+     * Initializes an empty index that can hold the given number of keys before it needs to grow.
+     *
+     * @param expectedSize The number of keys we expect to hold.
+     */
+    public IntIndex(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) capacity <<= 1;
+        this.allocate(capacity);
+    }
+
+
+    /**
+     * Initializes an index holding the same keys and values as another one.
+     *
+     * @param other The index to copy.
+     */
+    public IntIndex(IntIndex other) {
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.used = other.used.clone();
+        this.size = other.size;
+        this.mask = other.mask;
+    }
+
+
+    /**
+     * Returns the value stored for this key.
+     *
+     * @param key The key to look up.
+     * @return The value, or MISSING if the key is not in this index.
+     */
+    public int get(int key) {
+        int slot = this.find(key);
+        return slot < 0 ? MISSING : this.values[slot];
+    }
+
+
+    /**
+     * Checks whether this key is in the index.
+     *
+     * @param key The key to look up.
+     * @return True iff the key is in this index.
+     */
+    public boolean containsKey(int key) {
+        return this.find(key) >= 0;
+    }
+
+
+    /**
+     * Stores a value for a key, replacing the previous value if there was one.
+     *
+     * @param key   The key.
+     * @param value The value.
+     */
+    public void put(int key, int value) {
+        if (this.size >= (this.mask + 1) * 3 / 4) this.grow();
+
+        int slot = this.hash(key);
+        while (this.used[slot]) {
+            if (this.keys[slot] == key) {
+                this.values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.used[slot] = true;
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        this.size++;
+    }
+
+
+    /**
+     * Adds a key to this index, when it is used as a set.
+     *
+     * @param key The key.
+     * @return True iff the key was not in the index before.
+     */
+    public boolean add(int key) {
+        if (this.containsKey(key)) return false;
+        this.put(key, 0);
+        return true;
+    }
+
+
+    /**
+     * Removes a key from this index.
+     *
+     * @param key The key to remove.
+     * @return The value that was stored for this key, or MISSING if there was none.
+     */
+    public int remove(int key) {
+        int slot = this.find(key);
+        if (slot < 0) return MISSING;
+
+        int removed = this.values[slot];
+        this.used[slot] = false;
+        this.size--;
+
+        //Shift back every entry that would no longer be reachable through the gap we just made
+        int gap = slot;
+        int next = (slot + 1) & this.mask;
+        while (this.used[next]) {
+            int home = this.hash(this.keys[next]);
+            boolean reachable = gap <= next ? (home <= gap || home > next) : (home <= gap && home > next);
+            if (reachable) {
+                this.keys[gap] = this.keys[next];
+                this.values[gap] = this.values[next];
+                this.used[gap] = true;
+                this.used[next] = false;
+                gap = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+
+        return removed;
+    }
+
+
+    /**
+     * Returns the number of keys in this index.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return this.size;
+    }
+
+
+    /**
+     * Returns every key in this index, in no particular order.
+     *
+     * @return A new array of the keys.
+     */
+    public int[] keys() {
+        int[] keys = new int[this.size];
+        int count = 0;
+        for (int slot = 0; slot < this.used.length; slot++) {
+            if (this.used[slot]) keys[count++] = this.keys[slot];
+        }
+        return keys;
+    }
+
+
+    /**
+     * Removes every key from this index.
+     */
+    public void clear() {
+        this.allocate(16);
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    private int find(int key) {
+        int slot = this.hash(key);
+        while (this.used[slot]) {
+            if (this.keys[slot] == key) return slot;
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+
+    private int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.used = new boolean[capacity];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+
+    private void grow() {
+        int[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        boolean[] oldUsed = this.used;
+
+        this.allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) this.put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+
+}
@@ -0,0 +1,136 @@
+package persistence.index;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the values of indexed fields to the primary keys of the rows that have them, for the rows of one type.
+ * <p>
+ * The indexed values of each row are remembered as well, so that an update or a delete can take the row out of the
+ * entries for its old values without the old row being read again.
+ * <p>
+ * A copy shares the maps and primary key sets of the index it was made from, and copies a shard of a map (see
+ * SharedMap) or a set the first time it changes it, so that a copy is cheap and never sees the changes made to the
+ * other index. The index that was copied is left as it was, and must not be changed afterwards.
+ */
+public class SecondaryIndex {
+
+    /**
+     * For each indexed field, the primary keys of the rows with each value.
+     */
+    private final Map<String, SharedMap<Object, SharedIntIndex>> fields = new HashMap<>();
+
+    /**
+     * The indexed values of each row, keyed by primary key.
+     */
+    private final SharedMap<Integer, Map<String, Object>> rows;
+
+    /**
+     * The primary key sets that this index made itself, and can change in place. A copy starts out owning none.
+     */
+    private final Set<SharedIntIndex> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+
+    /**
+     * Initializes an empty index.
+     */
+    public SecondaryIndex() {
+        this.rows = new SharedMap<>();
+    }
+
+
+    /**
+     * Initializes an index holding the same rows as another one. The other index is not changed, and must not be
+     * changed afterwards, since it still owns the sets it shares with this one.
+     *
+     * @param other The index to copy.
+     */
+    public SecondaryIndex(SecondaryIndex other) {
+        for (Map.Entry<String, SharedMap<Object, SharedIntIndex>> entry : other.fields.entrySet()) {
+            this.fields.put(entry.getKey(), new SharedMap<>(entry.getValue()));
+        }
+        this.rows = new SharedMap<>(other.rows);
+    }
+
+
+    /**
+     * Indexes a row, replacing whatever was indexed for its primary key before.
+     *
+     * @param key    the primary key of the row
+     * @param values the indexed fields of the row and their values, or null if the row has none
+     */
+    public void put(int key, Map<String, Object> values) {
+
+        this.remove(key);
+        if (values == null) return;
+
+        Map<String, Object> copy = new HashMap<>(values);
+        for (Map.Entry<String, Object> entry : copy.entrySet()) {
+            SharedMap<Object, SharedIntIndex> entries = this.fields.computeIfAbsent(entry.getKey(), field -> new SharedMap<>());
+            this.keysOf(entries, entry.getValue()).add(key);
+        }
+        this.rows.put(key, copy);
+
+    }
+
+
+    /**
+     * Takes a row out of the index.
+     *
+     * @param key the primary key of the row
+     */
+    public void remove(int key) {
+
+        Map<String, Object> values = this.rows.remove(key);
+        if (values == null) return;
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            SharedMap<Object, SharedIntIndex> entries = this.fields.get(entry.getKey());
+            SharedIntIndex keys = this.keysOf(entries, entry.getValue());
+            keys.remove(key);
+            if (keys.size() == 0) {
+                entries.remove(entry.getValue());
+                this.owned.remove(keys);
+            }
+        }
+
+    }
+
+
+    /**
+     * Finds the rows with this value in this field.
+     *
+     * @param field the name of the indexed field
+     * @param value the value to look for
+     * @return the primary keys of the matching rows, or null if no row has ever been indexed on this field
+     */
+    public int[] find(String field, Object value) {
+
+        SharedMap<Object, SharedIntIndex> entries = this.fields.get(field);
+        if (entries == null) return null;
+        SharedIntIndex keys = entries.get(value);
+        return keys == null ? new int[0] : keys.keys();
+
+    }
+
+
+    /**
+     * Gets the primary keys of the rows with this value, as a set that this index owns and can change.
+     */
+    private SharedIntIndex keysOf(SharedMap<Object, SharedIntIndex> entries, Object value) {
+
+        SharedIntIndex keys = entries.get(value);
+        if (keys == null || !this.owned.contains(keys)) {
+            keys = keys == null ? new SharedIntIndex() : new SharedIntIndex(keys);
+            entries.put(value, keys);
+            this.owned.add(keys);
+        }
+        return keys;
+
+    }
+
+
+}
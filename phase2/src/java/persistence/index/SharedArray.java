@@ -0,0 +1,60 @@
+package persistence.index;
+
+/**
+ * An array of references that grows as it is written, held in chunks that a copy shares (see Chunks), so that copying
+ * a large array and then changing a few entries only copies the chunks those entries are in.
+ * Entries that were never written read as null.
+ *
+ * @param <T> the type of each entry
+ */
+public class SharedArray<T> {
+
+    private final Chunks<Object[]> chunks;
+
+
+    /**
+     * Initializes an empty array.
+     */
+    public SharedArray() {
+        this.chunks = new Chunks<>(Object[]::clone);
+    }
+
+
+    /**
+     * Initializes an array holding the same entries as another one. Changing the copy does not change the other one,
+     * which must not be changed afterwards.
+     *
+     * @param other The array to copy.
+     */
+    public SharedArray(SharedArray<T> other) {
+        this.chunks = new Chunks<>(other.chunks);
+    }
+
+
+    /**
+     * Returns an entry.
+     *
+     * @param i The position of the entry.
+     * @return The entry, or null if it was never written.
+     */
+    @SuppressWarnings("unchecked") //Only set writes to the chunks, and it only takes a T
+    public T get(int i) {
+        int chunk = i >>> SharedIntArray.CHUNK_BITS;
+        return chunk < this.chunks.size() ? (T) this.chunks.get(chunk)[i & (SharedIntArray.CHUNK - 1)] : null;
+    }
+
+
+    /**
+     * Writes an entry, growing the array if needed.
+     *
+     * @param i     The position of the entry.
+     * @param value The new value.
+     */
+    public void set(int i, T value) {
+        int chunk = i >>> SharedIntArray.CHUNK_BITS;
+        while (this.chunks.size() <= chunk) this.chunks.add(new Object[SharedIntArray.CHUNK]);
+        this.chunks.writable(chunk)[i & (SharedIntArray.CHUNK - 1)] = value;
+    }
+
+
+}
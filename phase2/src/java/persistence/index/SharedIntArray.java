@@ -0,0 +1,60 @@
+package persistence.index;
+
+/**
+ * An int array that grows as it is written, held in chunks that a copy shares (see Chunks), so that copying a large
+ * array and then changing a few entries only copies the chunks those entries are in.
+ * Entries that were never written read as 0.
+ */
+public class SharedIntArray {
+
+    static final int CHUNK_BITS = 10;
+    static final int CHUNK = 1 << CHUNK_BITS;
+
+    private final Chunks<int[]> chunks;
+
+
+    /**
+     * Initializes an empty array.
+     */
+    public SharedIntArray() {
+        this.chunks = new Chunks<>(int[]::clone);
+    }
+
+
+    /**
+     * Initializes an array holding the same entries as another one. Changing the copy does not change the other one,
+     * which must not be changed afterwards.
+     *
+     * @param other The array to copy.
+     */
+    public SharedIntArray(SharedIntArray other) {
+        this.chunks = new Chunks<>(other.chunks);
+    }
+
+
+    /**
+     * Returns an entry.
+     *
+     * @param i The position of the entry.
+     * @return The entry, or 0 if it was never written.
+     */
+    public int get(int i) {
+        int chunk = i >>> CHUNK_BITS;
+        return chunk < this.chunks.size() ? this.chunks.get(chunk)[i & (CHUNK - 1)] : 0;
+    }
+
+
+    /**
+     * Writes an entry, growing the array if needed.
+     *
+     * @param i     The position of the entry.
+     * @param value The new value.
+     */
+    public void set(int i, int value) {
+        int chunk = i >>> CHUNK_BITS;
+        while (this.chunks.size() <= chunk) this.chunks.add(new int[CHUNK]);
+        this.chunks.writable(chunk)[i & (CHUNK - 1)] = value;
+    }
+
+
+}
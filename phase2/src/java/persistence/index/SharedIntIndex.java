@@ -0,0 +1,178 @@
+package persistence.index;
+
+/**
+ * An IntIndex split by key into shards that a copy shares (see Chunks), so that copying a large index and then
+ * changing a few keys only copies the shards those keys are in.
+ * <p>
+ * The number of shards doubles whenever the shards hold SHARD_SIZE keys each on average, so a change copies about
+ * SHARD_SIZE keys however large the index gets.
+ */
+public class SharedIntIndex {
+
+    static final int SHARD_SIZE = 1024;
+
+    private Chunks<IntIndex> shards;
+    private int bits;
+    private int size;
+
+
+    /**
+     * Initializes an empty index.
+     */
+    public SharedIntIndex() {
+        this.shards = shards(0);
+    }
+
+
+    /**
+     * Initializes an index holding the same keys and values as another one. Changing the copy does not change the
+     * other one, which must not be changed afterwards.
+     *
+     * @param other The index to copy.
+     */
+    public SharedIntIndex(SharedIntIndex other) {
+        this.shards = new Chunks<>(other.shards);
+        this.bits = other.bits;
+        this.size = other.size;
+    }
+
+
+    /**
+     * Returns the value stored for this key.
+     *
+     * @param key The key to look up.
+     * @return The value, or IntIndex.MISSING if the key is not in this index.
+     */
+    public int get(int key) {
+        return this.shards.get(this.shard(key)).get(key);
+    }
+
+
+    /**
+     * Checks whether this key is in the index.
+     *
+     * @param key The key to look up.
+     * @return True iff the key is in this index.
+     */
+    public boolean containsKey(int key) {
+        return this.shards.get(this.shard(key)).containsKey(key);
+    }
+
+
+    /**
+     * Stores a value for a key, replacing the previous value if there was one.
+     *
+     * @param key   The key.
+     * @param value The value.
+     */
+    public void put(int key, int value) {
+
+        IntIndex shard = this.shards.writable(this.shard(key));
+        int before = shard.size();
+        shard.put(key, value);
+        this.size += shard.size() - before;
+        if (this.size > SHARD_SIZE << this.bits) this.reshard(this.bits + 1);
+
+    }
+
+
+    /**
+     * Adds a key to this index, when it is used as a set.
+     *
+     * @param key The key.
+     * @return True iff the key was not in the index before.
+     */
+    public boolean add(int key) {
+
+        if (this.containsKey(key)) return false;
+        this.put(key, 0);
+        return true;
+
+    }
+
+
+    /**
+     * Removes a key from this index. A shard is only copied if the key is in it.
+     *
+     * @param key The key to remove.
+     * @return The value that was stored for this key, or IntIndex.MISSING if there was none.
+     */
+    public int remove(int key) {
+
+        int shard = this.shard(key);
+        if (!this.shards.get(shard).containsKey(key)) return IntIndex.MISSING;
+        this.size--;
+        return this.shards.writable(shard).remove(key);
+
+    }
+
+
+    /**
+     * Returns the number of keys in this index.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return this.size;
+    }
+
+
+    /**
+     * Returns every key in this index, in no particular order.
+     *
+     * @return A new array of the keys.
+     */
+    public int[] keys() {
+
+        int[] keys = new int[this.size];
+        int count = 0;
+        for (int i = 0; i < this.shards.size(); i++) {
+            int[] shard = this.shards.get(i).keys();
+            System.arraycopy(shard, 0, keys, count, shard.length);
+            count += shard.length;
+        }
+        return keys;
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Picks the shard of a key from the high bits of its hash, since IntIndex picks slots from the low bits.
+     */
+    private int shard(int key) {
+        return this.bits == 0 ? 0 : (key * 0x9E3779B9) >>> (32 - this.bits);
+    }
+
+
+    private static Chunks<IntIndex> shards(int bits) {
+
+        Chunks<IntIndex> shards = new Chunks<>(IntIndex::new);
+        for (int i = 0; i < 1 << bits; i++) shards.add(new IntIndex());
+        return shards;
+
+    }
+
+
+    /**
+     * Moves every key into a new set of shards, which this index owns.
+     */
+    private void reshard(int bits) {
+
+        Chunks<IntIndex> old = this.shards;
+        this.shards = shards(bits);
+        this.bits = bits;
+        for (int i = 0; i < old.size(); i++) {
+            IntIndex shard = old.get(i);
+            for (int key : shard.keys()) this.shards.get(this.shard(key)).put(key, shard.get(key));
+        }
+
+    }
+
+
+}
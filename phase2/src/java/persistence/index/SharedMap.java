@@ -0,0 +1,135 @@
+package persistence.index;
+
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * A map split by key into HashMap shards that a copy shares (see Chunks), so that copying a large map and then
+ * changing a few keys only copies the shards those keys are in.
+ * <p>
+ * The number of shards doubles whenever the shards hold SharedIntIndex.SHARD_SIZE keys each on average, so a change
+ * copies about that many entries however large the map gets. Null values are not supported.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class SharedMap<K, V> {
+
+    private Chunks<HashMap<K, V>> shards;
+    private int bits;
+    private int size;
+
+
+    /**
+     * Initializes an empty map.
+     */
+    public SharedMap() {
+        this.shards = shards(0);
+    }
+
+
+    /**
+     * Initializes a map holding the same entries as another one. Changing the copy does not change the other one,
+     * which must not be changed afterwards.
+     *
+     * @param other The map to copy.
+     */
+    public SharedMap(SharedMap<K, V> other) {
+        this.shards = new Chunks<>(other.shards);
+        this.bits = other.bits;
+        this.size = other.size;
+    }
+
+
+    /**
+     * Returns the value stored for this key.
+     *
+     * @param key The key to look up.
+     * @return The value, or null if the key is not in this map.
+     */
+    public V get(Object key) {
+        return this.shards.get(this.shard(key)).get(key);
+    }
+
+
+    /**
+     * Stores a value for a key, replacing the previous value if there was one.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return The previous value, or null if there was none.
+     */
+    public V put(K key, V value) {
+
+        V previous = this.shards.writable(this.shard(key)).put(key, value);
+        if (previous == null && ++this.size > SharedIntIndex.SHARD_SIZE << this.bits) this.reshard(this.bits + 1);
+        return previous;
+
+    }
+
+
+    /**
+     * Removes a key from this map. A shard is only copied if the key is in it.
+     *
+     * @param key The key to remove.
+     * @return The value that was stored for this key, or null if there was none.
+     */
+    public V remove(Object key) {
+
+        int shard = this.shard(key);
+        if (!this.shards.get(shard).containsKey(key)) return null;
+        this.size--;
+        return this.shards.writable(shard).remove(key);
+
+    }
+
+
+    /**
+     * Returns the number of entries in this map.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Picks the shard of a key from the high bits of its hash, since HashMap picks buckets from the low bits.
+     */
+    private int shard(Object key) {
+        return this.bits == 0 ? 0 : (Objects.hashCode(key) * 0x9E3779B9) >>> (32 - this.bits);
+    }
+
+
+    private static <K, V> Chunks<HashMap<K, V>> shards(int bits) {
+
+        Chunks<HashMap<K, V>> shards = new Chunks<>(HashMap::new);
+        for (int i = 0; i < 1 << bits; i++) shards.add(new HashMap<>());
+        return shards;
+
+    }
+
+
+    /**
+     * Moves every entry into a new set of shards, which this map owns.
+     */
+    private void reshard(int bits) {
+
+        Chunks<HashMap<K, V>> old = this.shards;
+        this.shards = shards(bits);
+        this.bits = bits;
+        for (int i = 0; i < old.size(); i++) {
+            old.get(i).forEach((key, value) -> this.shards.get(this.shard(key)).put(key, value));
+        }
+
+    }
+
+
+}
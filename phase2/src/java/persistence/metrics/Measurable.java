@@ -0,0 +1,16 @@
+package persistence.metrics;
+
+
+//A gateway that can count what only it can see, such as the bytes it reads and writes or the rows it scans
+public interface Measurable {
+
+    /**
+     * Starts recording into these metrics. Until this is called, nothing is recorded.
+     * This should be called once, before the gateway is used.
+     *
+     * @param metrics Where to record
+     */
+    void setMetrics(PersistenceMetrics.Recorder metrics);
+
+
+}
@@ -0,0 +1,292 @@
+package persistence.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counts what the persistence gateways do: how many calls each operation gets and how long they take, per gateway
+ * and entity type, how many rows they return and scan, and how many bytes they read and write.
+ * <p>
+ * Everything is counted with LongAdders in maps that are only added to, so recording never takes a lock and threads
+ * recording at the same time do not slow each other down. toText writes every count in the Prometheus text format.
+ * <p>
+ * Each gateway records through its own Recorder, which adds a gateway label (such as "cache" or "storage") to
+ * everything it records, so that the time spent in a cache and in the storage behind it can be told apart.
+ */
+public class PersistenceMetrics {
+
+    /**
+     * The upper bounds of the latency buckets, in nanoseconds. Anything slower falls in the last bucket.
+     */
+    private static final long[] BOUNDS = {
+            10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000,
+            100_000_000, 250_000_000, 500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    /**
+     * The recorder of each gateway, keyed by its label.
+     */
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+
+    /**
+     * Returns the recorder that a gateway records through, creating it the first time.
+     *
+     * @param gateway The label of the gateway, for example "cache".
+     * @return The recorder.
+     */
+    public Recorder recorder(String gateway) {
+        return this.recorders.computeIfAbsent(gateway, Recorder::new);
+    }
+
+
+    /**
+     * Writes every count in the Prometheus text format (version 0.0.4), sorted by gateway, type and operation.
+     *
+     * @return The counts, one sample per line.
+     */
+    public String toText() {
+
+        Map<String, Recorder> recorders = new TreeMap<>(this.recorders);
+        StringBuilder text = new StringBuilder();
+
+        this.header(text, "persistence_operation_seconds", "histogram",
+                "Time taken by each call, by gateway, entity type and operation. _count is the number of calls.");
+        for (Recorder recorder : recorders.values()) {
+            for (Map.Entry<String, TypeStats> type : new TreeMap<>(recorder.types).entrySet()) {
+                for (Map.Entry<String, Operation> operation : new TreeMap<>(type.getValue().operations).entrySet()) {
+                    String labels = this.labels(recorder.gateway, type.getKey(), operation.getKey());
+                    Operation stats = operation.getValue();
+                    long count = 0;
+                    for (int i = 0; i < BOUNDS.length; i++) {
+                        count += stats.buckets[i].sum();
+                        text.append("persistence_operation_seconds_bucket{").append(labels)
+                                .append(",le=\"").append(this.seconds(BOUNDS[i])).append("\"} ").append(count).append('\n');
+                    }
+                    count += stats.buckets[BOUNDS.length].sum();
+                    text.append("persistence_operation_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                            .append(count).append('\n');
+                    text.append("persistence_operation_seconds_sum{").append(labels).append("} ")
+                            .append(this.seconds(stats.nanos.sum())).append('\n');
+                    text.append("persistence_operation_seconds_count{").append(labels).append("} ")
+                            .append(count).append('\n');
+                }
+            }
+        }
+
+        this.header(text, "persistence_operation_errors_total", "counter",
+                "Calls that threw, by gateway, entity type and operation.");
+        for (Recorder recorder : recorders.values()) {
+            for (Map.Entry<String, TypeStats> type : new TreeMap<>(recorder.types).entrySet()) {
+                for (Map.Entry<String, Operation> operation : new TreeMap<>(type.getValue().operations).entrySet()) {
+                    this.sample(text, "persistence_operation_errors_total",
+                            this.labels(recorder.gateway, type.getKey(), operation.getKey()), operation.getValue().errors);
+                }
+            }
+        }
+
+        this.header(text, "persistence_rows_returned_total", "counter",
+                "Rows handed back to callers, by gateway, entity type and operation.");
+        for (Recorder recorder : recorders.values()) {
+            for (Map.Entry<String, TypeStats> type : new TreeMap<>(recorder.types).entrySet()) {
+                for (Map.Entry<String, Operation> operation : new TreeMap<>(type.getValue().operations).entrySet()) {
+                    this.sample(text, "persistence_rows_returned_total",
+                            this.labels(recorder.gateway, type.getKey(), operation.getKey()), operation.getValue().rows);
+                }
+            }
+        }
+
+        this.typeCounter(text, recorders, "persistence_rows_scanned_total",
+                "Rows looked at to answer reads, by gateway and entity type.", stats -> stats.scanned);
+        this.typeCounter(text, recorders, "persistence_bytes_read_total",
+                "Bytes read from files, by gateway and entity type.", stats -> stats.read);
+        this.typeCounter(text, recorders, "persistence_bytes_written_total",
+                "Bytes written to files, by gateway and entity type.", stats -> stats.written);
+
+        return text.toString();
+
+    }
+
+
+    /**
+     * Records what one gateway does. Entity types are given by their class name.
+     */
+    public class Recorder {
+
+        private final String gateway;
+        private final Map<String, TypeStats> types = new ConcurrentHashMap<>();
+
+        private Recorder(String gateway) {
+            this.gateway = gateway;
+        }
+
+        /**
+         * Records one call.
+         *
+         * @param type      The class name of the entity type, or "" if the operation is not about one type.
+         * @param operation The name of the operation, for example "all".
+         * @param nanos     How long the call took, in nanoseconds.
+         * @param rows      How many rows it returned.
+         * @param failed    Whether it threw.
+         */
+        public void call(String type, String operation, long nanos, long rows, boolean failed) {
+            Operation stats = this.type(type).operation(operation);
+            stats.buckets[bucket(nanos)].increment();
+            stats.nanos.add(nanos);
+            if (rows > 0) stats.rows.add(rows);
+            if (failed) stats.errors.increment();
+        }
+
+        /**
+         * Records rows returned by an operation after the call itself has returned, such as rows read from a stream.
+         *
+         * @param type      The class name of the entity type.
+         * @param operation The name of the operation.
+         * @param rows      How many more rows it returned.
+         */
+        public void returned(String type, String operation, long rows) {
+            this.type(type).operation(operation).rows.add(rows);
+        }
+
+        /**
+         * Records rows that were looked at to answer a read, whether or not they were returned.
+         *
+         * @param type The class name of the entity type.
+         * @param rows How many rows.
+         */
+        public void scanned(String type, long rows) {
+            this.type(type).scanned.add(rows);
+        }
+
+        /**
+         * Records bytes read from a file.
+         *
+         * @param type  The class name of the entity type, or "" if the file is not about one type.
+         * @param bytes How many bytes.
+         */
+        public void read(String type, long bytes) {
+            this.type(type).read.add(bytes);
+        }
+
+        /**
+         * Records bytes written to a file.
+         *
+         * @param type  The class name of the entity type, or "" if the file is not about one type.
+         * @param bytes How many bytes.
+         */
+        public void written(String type, long bytes) {
+            this.type(type).written.add(bytes);
+        }
+
+        private TypeStats type(String type) {
+            TypeStats stats = this.types.get(type);
+            return stats != null ? stats : this.types.computeIfAbsent(type, name -> new TypeStats());
+        }
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * The counts of one entity type in one gateway.
+     */
+    private static class TypeStats {
+
+        private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder read = new LongAdder();
+        private final LongAdder written = new LongAdder();
+
+        private Operation operation(String operation) {
+            Operation stats = this.operations.get(operation);
+            return stats != null ? stats : this.operations.computeIfAbsent(operation, name -> new Operation());
+        }
+
+    }
+
+
+    /**
+     * The counts of one operation on one entity type. The buckets are not cumulative until they are written out.
+     */
+    private static class Operation {
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+
+        private Operation() {
+            for (int i = 0; i < this.buckets.length; i++) this.buckets[i] = new LongAdder();
+        }
+
+    }
+
+
+    private interface Counter {
+        LongAdder of(TypeStats stats);
+    }
+
+
+    private static int bucket(long nanos) {
+
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (nanos <= BOUNDS[i]) return i;
+        }
+        return BOUNDS.length;
+
+    }
+
+
+    private void typeCounter(StringBuilder text, Map<String, Recorder> recorders, String name, String help, Counter counter) {
+
+        this.header(text, name, "counter", help);
+        for (Recorder recorder : recorders.values()) {
+            for (Map.Entry<String, TypeStats> type : new TreeMap<>(recorder.types).entrySet()) {
+                LongAdder value = counter.of(type.getValue());
+                if (value.sum() == 0) continue;
+                this.sample(text, name, this.labels(recorder.gateway, type.getKey(), null), value);
+            }
+        }
+
+    }
+
+
+    private void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+
+    private void sample(StringBuilder text, String name, String labels, LongAdder value) {
+        text.append(name).append('{').append(labels).append("} ").append(value.sum()).append('\n');
+    }
+
+
+    /**
+     * Writes the labels of a sample. Types are shown by their simple name.
+     */
+    private String labels(String gateway, String type, String operation) {
+
+        String simple = type.substring(type.lastIndexOf('.') + 1);
+        String labels = "gateway=\"" + gateway + "\",type=\"" + simple + "\"";
+        return operation == null ? labels : labels + ",operation=\"" + operation + "\"";
+
+    }
+
+
+    private String seconds(long nanos) {
+        return Double.toString((double) nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+
+}
@@ -2,6 +2,7 @@ package persistence.relations;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface MapsRelations {
 
@@ -18,4 +19,20 @@ public interface MapsRelations {
     <T extends HasRelations> List<T> get(String relationName, HasRelations requestingEntity,
                                          Class<T> subjectEntity) throws IOException;
 
+
+    /**
+     * Retrieves the same relation of many entities at once, reading every associated entity in one go instead of
+     * once per requesting entity.
+     *
+     * @param requestingEntities The entities whose associates we are looking for
+     * @param relationName       The name of the relation we are looking for
+     * @param subjectEntity      The associated entities
+     * @param <T>                A class that extends HasRelations
+     * @return A map with the id of each requesting entity as key and its associated subject entities as value,
+     * in the order of requestingEntities
+     * @throws IOException An IOException
+     */
+    <T extends HasRelations> Map<Integer, List<T>> relationAll(List<? extends HasRelations> requestingEntities,
+                                                          String relationName, Class<T> subjectEntity) throws IOException;
+
 }
@@ -5,12 +5,16 @@ import entities.Meeting;
 import entities.Tag;
 import entities.Transaction;
 import persistence.PersistenceInterface;
+import persistence.changes.Change;
+import persistence.changes.ChangeFeed;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class maps the relations between one entity to another entity.
@@ -22,6 +26,13 @@ import java.util.Map;
  * Once registered, an entity that implements HasRelations will able to use this following syntax to fetch all the tags associated with it.
  * itemEntity.relation(relationMapper, "tags", Tag.class)  will provide an ArrayList of Tags associated with this Item
  * tagEntity.relation(relationMapper, "items", Item.class) will provide an ArrayList of Items associated with the Tag
+ * <p>
+ * Only one side of a relation holds the ids (a tag holds the ids of its items), so looking a relation up from the
+ * other side (the tags of an item) is a reverse lookup. Given a change feed, every registered relation keeps an
+ * inverted index (item id to tag ids) for this, built with one scan the first time it is needed and kept up to date
+ * from the feed as rows are committed, so a reverse lookup only reads the rows it returns. Reverse lookups reflect
+ * the latest commits, so a row that the calling thread changed in a unit of work that is not committed yet is only
+ * seen from the side that holds the ids. Without a change feed, every reverse lookup scans the other side.
  */
 public class RelationMapper implements MapsRelations {
 
@@ -36,13 +47,46 @@ public class RelationMapper implements MapsRelations {
     public Map<String, Map<String, String>> reciprocalRelations = new HashMap<>();
 
     /**
-     * Instanates an instance of this class.
+     * Holds the inverted index of each relation, keyed by "Class Name,Relation Name" of the side that holds the ids.
+     * Empty if there is no change feed to keep them up to date.
+     */
+    private final Map<String, ReverseIndex> reverseIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Builds the inverted indexes, on a thread that has no snapshot pinned, so that they are built from the latest rows.
+     */
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "relation-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Instanates an instance of this class, which scans for every reverse lookup.
      *
      * @param persistence A concrete class that persists data.
      */
     public RelationMapper(PersistenceInterface persistence) {
+        this(persistence, null);
+    }
+
+    /**
+     * Instanates an instance of this class, which keeps an inverted index of every relation up to date from a feed.
+     *
+     * @param persistence A concrete class that persists data.
+     * @param changes     The feed that persistence publishes every committed change to, or null to scan instead.
+     */
+    public RelationMapper(PersistenceInterface persistence, ChangeFeed changes) {
         this.persistence = persistence;
         this.build();
+        if (changes != null) {
+            for (Map.Entry<String, Map<String, String>> relations : this.reciprocalRelations.entrySet()) {
+                for (String reverse : relations.getValue().values()) {
+                    this.reverseIndexes.put(reverse, new ReverseIndex(reverse.split(",")[1]));
+                }
+            }
+            changes.subscribe(this::changed);
+        }
     }
 
     /**
@@ -74,14 +118,44 @@ public class RelationMapper implements MapsRelations {
     public <T extends HasRelations> List<T> get(String relationName, HasRelations requestingEntity,
                                                 Class<T> subjectEntity) throws IOException {
 
-        boolean requestingEntityHasRelation = requestingEntity.getDefinedRelations().containsKey(relationName);
+        return this.relationAll(Collections.singletonList(requestingEntity), relationName, subjectEntity)
+                .get(requestingEntity.getKey());
 
-        //Check if there are any maps in the calling class
-        if (requestingEntityHasRelation)
-            return this.getForwardRelation(requestingEntity, relationName, subjectEntity);
+    }
+
+    /**
+     * Retrieves the same relation of many entities at once.
+     * Every associated entity is read in one go: by id if the requesting entities hold the ids, otherwise from one
+     * look up of the inverted index (or one scan, without a change feed) shared by all of them.
+     *
+     * @param requestingEntities The entities whose associates we are looking for
+     * @param relationName       The name of the relation we are looking for
+     * @param subjectEntity      The associated entities
+     * @param <T>                A class that extends HasRelations
+     * @return A map with the id of each requesting entity as key and its associated subject entities as value,
+     * in the order of requestingEntities
+     * @throws IOException An IOException
+     */
+    public <T extends HasRelations> Map<Integer, List<T>> relationAll(List<? extends HasRelations> requestingEntities,
+                                                                 String relationName, Class<T> subjectEntity) throws IOException {
+
+        Map<Integer, List<T>> relations = new LinkedHashMap<>();
+        List<HasRelations> holdingIds = new ArrayList<>();
+        Map<String, List<HasRelations>> heldByOthers = new LinkedHashMap<>();
+
+        //Check if there are any maps in the calling class, if not, we check if there are any relations in the subject class
+        for (HasRelations requestingEntity : requestingEntities) {
+            if (relations.containsKey(requestingEntity.getKey())) continue;
+            relations.put(requestingEntity.getKey(), new ArrayList<>());
+            if (requestingEntity.getDefinedRelations().containsKey(relationName)) holdingIds.add(requestingEntity);
+            else heldByOthers.computeIfAbsent(requestingEntity.getClass().getName(), name -> new ArrayList<>()).add(requestingEntity);
+        }
 
-            //If not, we check if there are any relations in the subject class
-        else return this.getReverseRelation(requestingEntity, relationName, subjectEntity);
+        if (!holdingIds.isEmpty()) this.getForwardRelations(holdingIds, relationName, subjectEntity, relations);
+        for (Map.Entry<String, List<HasRelations>> entities : heldByOthers.entrySet()) {
+            this.getReverseRelations(entities.getKey(), entities.getValue(), relationName, subjectEntity, relations);
+        }
+        return relations;
 
     }
 
@@ -100,31 +174,52 @@ public class RelationMapper implements MapsRelations {
     }
 
 
-    private <T extends HasRelations> List<T> getForwardRelation(HasRelations requestingEntity, String relationName,
-                                                                Class<T> subjectEntity) throws IOException {
-        List<Integer> ids = requestingEntity.getDefinedRelations().get(relationName);
-        return this.persistence.get(ids, subjectEntity);
+    private <T extends HasRelations> void getForwardRelations(List<HasRelations> requestingEntities, String relationName,
+                                                              Class<T> subjectEntity, Map<Integer, List<T>> relations) throws IOException {
+
+        //Read every id held by any of the requesting entities at once
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (HasRelations requestingEntity : requestingEntities) {
+            ids.addAll(requestingEntity.getDefinedRelations().get(relationName));
+        }
+        Map<Integer, T> subjects = new HashMap<>();
+        for (T subject : this.persistence.get(new ArrayList<>(ids), subjectEntity)) {
+            subjects.put(subject.getKey(), subject);
+        }
+
+        //Then hand each requesting entity the ones it holds, in its own order, as reading them one by one would
+        for (HasRelations requestingEntity : requestingEntities) {
+            List<T> related = relations.get(requestingEntity.getKey());
+            for (Integer id : new LinkedHashSet<>(requestingEntity.getDefinedRelations().get(relationName))) {
+                T subject = subjects.get(id);
+                if (subject != null) related.add(subject);
+            }
+        }
+
     }
 
 
-    private <T extends HasRelations> List<T> getReverseRelation(HasRelations requestingEntity, String relationName,
-                                                                Class<T> subjectEntity) throws IOException {
+    private <T extends HasRelations> void getReverseRelations(String requestingName, List<HasRelations> requestingEntities,
+                                                              String relationName, Class<T> subjectEntity,
+                                                              Map<Integer, List<T>> relations) throws IOException {
 
         //We get the reverse relation name
-        String requestingName = requestingEntity.getClass().getName();
         String reverseRelationKey = this.getReverseRelationKey(requestingName, relationName);
+        Set<Integer> requestingIds = new HashSet<>();
+        for (HasRelations requestingEntity : requestingEntities) requestingIds.add(requestingEntity.getKey());
 
-        //Get all the subject entities
-        List<T> candidates = this.persistence.all(subjectEntity);
+        //Get the subject entities that may be related, which is all of them unless they are indexed
+        ReverseIndex index = this.reverseIndexes.get(subjectEntity.getName() + "," + reverseRelationKey);
+        List<T> candidates = index == null ? this.persistence.all(subjectEntity)
+                : this.persistence.get(this.lookUp(index, subjectEntity, requestingIds), subjectEntity);
 
-        //We filter through all the instances of the subject entity to get the ones with the relations
-        List<T> relations = new ArrayList<>();
+        //We go through the candidates once, and hand each to the requesting entities it is related to
         for (T candidate : candidates) {
-            boolean isRelated = candidate.getDefinedRelations().get(reverseRelationKey).contains(requestingEntity.getKey());
-            if (isRelated) relations.add(subjectEntity.cast(candidate));
+            for (Integer id : new LinkedHashSet<>(candidate.getDefinedRelations().get(reverseRelationKey))) {
+                if (requestingIds.contains(id)) relations.get(id).add(subjectEntity.cast(candidate));
+            }
         }
 
-        return relations;
     }
 
 
@@ -137,9 +232,146 @@ public class RelationMapper implements MapsRelations {
     private void buildReciprocalRelation(Class<? extends HasRelations> firstClass, String firstRelationName,
                                          Class<? extends HasRelations> secondClass, String secondRelationName) {
 
-        Map<String, String> reverseMaps1 = new HashMap<>();
+        Map<String, String> reverseMaps1 = this.reciprocalRelations.computeIfAbsent(secondClass.getName(), name -> new HashMap<>());
         reverseMaps1.put(secondRelationName, firstClass.getName() + "," + firstRelationName);
-        this.reciprocalRelations.put(secondClass.getName(), reverseMaps1);
+
+    }
+
+
+    /**
+     * The inverted index of one relation: for each id on the other side, the ids of the rows whose relation holds it.
+     * Until it is built, changes are ignored, and while it is being built they are held back, to be applied on top.
+     */
+    private static class ReverseIndex {
+
+        private final String relationName;
+        private final Object builder = new Object();
+        private final Map<Integer, SortedSet<Integer>> reverse = new HashMap<>();
+        private final Map<Integer, List<Integer>> forward = new HashMap<>();
+        private List<Change> heldBack = null;
+        private volatile boolean built = false;
+
+        private ReverseIndex(String relationName) {
+            this.relationName = relationName;
+        }
+
+        private void set(int id, List<Integer> related) {
+            this.remove(id);
+            if (related == null || related.isEmpty()) return;
+            List<Integer> copy = new ArrayList<>(related);
+            this.forward.put(id, copy);
+            for (Integer other : copy) this.reverse.computeIfAbsent(other, key -> new TreeSet<>()).add(id);
+        }
+
+        private void remove(int id) {
+            List<Integer> related = this.forward.remove(id);
+            if (related == null) return;
+            for (Integer other : related) {
+                SortedSet<Integer> ids = this.reverse.get(other);
+                if (ids == null) continue;
+                ids.remove(id);
+                if (ids.isEmpty()) this.reverse.remove(other);
+            }
+        }
+
+        private void clear() {
+            this.reverse.clear();
+            this.forward.clear();
+        }
+
+    }
+
+
+    /**
+     * Gets the ids of the rows whose relation holds any of these ids, building the index the first time.
+     */
+    private List<Integer> lookUp(ReverseIndex index, Class<? extends HasRelations> subjectEntity, Collection<Integer> ids) throws IOException {
+
+        synchronized (index.builder) {
+            if (!index.built) {
+                try {
+                    CompletableFuture.runAsync(() -> this.buildIndex(index, subjectEntity), this.indexer).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw e;
+                }
+            }
+        }
+        SortedSet<Integer> found = new TreeSet<>();
+        synchronized (index) {
+            for (Integer id : ids) {
+                SortedSet<Integer> related = index.reverse.get(id);
+                if (related != null) found.addAll(related);
+            }
+        }
+        return new ArrayList<>(found);
+
+    }
+
+
+    /**
+     * Runs on the indexer: scans every row of the side that holds the ids, then applies the changes committed since.
+     */
+    private void buildIndex(ReverseIndex index, Class<? extends HasRelations> subjectEntity) {
+
+        synchronized (index) {
+            index.heldBack = new ArrayList<>();
+        }
+        try {
+            List<? extends HasRelations> rows = this.persistence.all(subjectEntity);
+            synchronized (index) {
+                index.clear();
+                for (HasRelations row : rows) index.set(row.getKey(), row.getDefinedRelations().get(index.relationName));
+                for (Change change : index.heldBack) this.apply(index, change);
+                index.built = true;
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } finally {
+            synchronized (index) {
+                index.heldBack = null;
+            }
+        }
+
+    }
+
+
+    /**
+     * Keeps the inverted indexes of the type that changed up to date. Runs on the committing thread.
+     */
+    private void changed(Change change) {
+
+        for (Map.Entry<String, ReverseIndex> entry : this.reverseIndexes.entrySet()) {
+            if (!entry.getKey().startsWith(change.getType() + ",")) continue;
+            ReverseIndex index = entry.getValue();
+            synchronized (index) {
+                if (index.heldBack != null) {
+                    index.heldBack.add(change);
+                    continue;
+                }
+                if (!index.built) continue;
+                try {
+                    this.apply(index, change);
+                } catch (IOException e) {
+                    //The index can no longer be trusted, so it is built again on its next use
+                    e.printStackTrace();
+                    index.built = false;
+                }
+            }
+        }
+
+    }
+
+
+    private void apply(ReverseIndex index, Change change) throws IOException {
+
+        if (change.getOperation() == Change.Operation.REMOVE) {
+            index.clear();
+            return;
+        }
+        Object after = change.getAfter();
+        if (after instanceof HasRelations) index.set(change.getId(), ((HasRelations) after).getDefinedRelations().get(index.relationName));
+        else index.remove(change.getId());
 
     }
 
@@ -0,0 +1,196 @@
+package persistence.sequence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Hands out increasing primary keys for each type, without looking at the rows that already exist.
+ * <p>
+ * The next key of each type is an AtomicInteger in memory. Keys are reserved on disk a block at a time:
+ * serfile[Class].seq holds the highest key that may have been handed out, and is only rewritten (and synced) when a
+ * block runs out. After a restart the count carries on from the end of the last reserved block, so a key is never
+ * handed out twice, at the cost of skipping whatever was left of that block.
+ * <p>
+ * The first time a type is used, the count also starts after the largest key given by the caller,
+ * so rows saved before the counter file existed (or after it was deleted) are never clashed with.
+ */
+public class SequenceAllocator {
+
+    private static final int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * Holds the sequence of each type, keyed by class name.
+     */
+    private final Map<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    /**
+     * How many keys are reserved on disk at a time.
+     */
+    private final int blockSize;
+
+    /**
+     * The directory the counter files are kept in, or null for the working directory.
+     */
+    private final File directory;
+
+
+    /**
+     * Initializes this class, reserving 64 keys at a time.
+     */
+    public SequenceAllocator() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param blockSize How many keys are reserved on disk at a time.
+     */
+    public SequenceAllocator(int blockSize) {
+        this(blockSize, null);
+    }
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param blockSize How many keys are reserved on disk at a time.
+     * @param directory The directory the counter files are kept in, or null for the working directory.
+     */
+    public SequenceAllocator(int blockSize, File directory) {
+        this.blockSize = blockSize;
+        this.directory = directory;
+    }
+
+
+    /**
+     * Hands out the next primary key of this type.
+     *
+     * @param name  the class name of the type
+     * @param floor gives the largest primary key that already exists, only called the first time this type is used
+     * @return a primary key that has never been handed out before
+     * @throws IOException throws this exception if the counter file cannot be read or written.
+     */
+    public int next(String name, IntSupplier floor) throws IOException {
+
+        Sequence sequence = this.sequence(name, floor);
+        int key = sequence.next.incrementAndGet();
+        if (key > sequence.limit) this.reserve(sequence, key);
+        return key;
+
+    }
+
+
+    /**
+     * Records that a primary key was chosen by the caller, so that it is never handed out later.
+     *
+     * @param name  the class name of the type
+     * @param key   the primary key that was chosen
+     * @param floor gives the largest primary key that already exists, only called the first time this type is used
+     * @throws IOException throws this exception if the counter file cannot be read or written.
+     */
+    public void claim(String name, int key, IntSupplier floor) throws IOException {
+
+        Sequence sequence = this.sequence(name, floor);
+        sequence.next.accumulateAndGet(key, Math::max);
+        if (key > sequence.limit) this.reserve(sequence, key);
+
+    }
+
+
+    /**
+     * Forgets every key handed out for this type, so that it starts counting from 1 again.
+     * This is only meant for when every row of the type has been removed.
+     *
+     * @param name the class name of the type
+     */
+    public void reset(String name) {
+
+        Sequence sequence = this.sequences.remove(name);
+        if (sequence != null) {
+            synchronized (sequence) {
+                try {
+                    sequence.file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        new File(this.getFilePath(name)).delete();
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * The keys of one type: the last key handed out, and the highest key reserved on disk.
+     */
+    private static class Sequence {
+
+        private final AtomicInteger next;
+        private final RandomAccessFile file;
+        private volatile int limit;
+
+        private Sequence(int start, RandomAccessFile file) {
+            this.next = new AtomicInteger(start);
+            this.file = file;
+            this.limit = start;
+        }
+
+    }
+
+
+    private Sequence sequence(String name, IntSupplier floor) throws IOException {
+
+        Sequence sequence = this.sequences.get(name);
+        if (sequence != null) return sequence;
+
+        synchronized (this.sequences) {
+            sequence = this.sequences.get(name);
+            if (sequence == null) {
+                RandomAccessFile file = new RandomAccessFile(this.getFilePath(name), "rw");
+                int reserved = file.length() >= 4 ? file.readInt() : 0;
+                sequence = new Sequence(Math.max(reserved, floor.getAsInt()), file);
+                this.sequences.put(name, sequence);
+            }
+        }
+        return sequence;
+
+    }
+
+
+    /**
+     * Reserves a new block on disk that covers this key. Only returns once the block is synced,
+     * so a key is never used before it is safe from being handed out again after a crash.
+     */
+    private void reserve(Sequence sequence, int key) throws IOException {
+
+        synchronized (sequence) {
+            if (key <= sequence.limit) return;
+            int limit = key + this.blockSize - 1;
+            sequence.file.seek(0);
+            sequence.file.writeInt(limit);
+            sequence.file.getFD().sync();
+            sequence.limit = limit;
+        }
+
+    }
+
+
+    private String getFilePath(String name) {
+        return new File(this.directory, "serfile" + name + ".seq").getPath();
+    }
+
+
+}
@@ -6,7 +6,7 @@ import org.springframework.ui.Model;
 import usecases.SystemFacade;
 import usecases.TradingFacade;
 import usecases.items.exceptions.ItemNotFoundException;
-import usecases.trade.TransactionQueryBuilder;
+import usecases.trade.TransactionGraph;
 
 import java.io.IOException;
 import java.util.List;
@@ -129,15 +129,16 @@ public class TransactionPresenter {
      * @throws IOException An IOException
      */
     public String transHistoryPresenter(Model model, int userId) throws IOException {
-        TransactionQueryBuilder query = tradingFacade.fetchTransactions().query().involvesUser(userId);
+        TransactionGraph graph = tradingFacade.fetchTransactions().query().involvesUser(userId)
+                .with("trades", "trades.items", "meetings", "borrower", "lender").getGraph();
 
         //Retrieves the transactions, trades, items, meetings, and users related to this user's transactions.
-        List<Transaction> transactions = query.getTransactions();
-        Map<Integer, List<Trade>> trades = query.getTrades();
-        Map<Integer, List<Item>> items = query.getItems();
-        Map<Integer, List<Meeting>> meetings = query.getMeetings();
-        Map<Integer, User> borrowers = query.getBorrowers();
-        Map<Integer, User> lenders = query.getLenders();
+        List<Transaction> transactions = graph.getTransactions();
+        Map<Integer, List<Trade>> trades = graph.getTrades();
+        Map<Integer, List<Item>> items = graph.getItems();
+        Map<Integer, List<Meeting>> meetings = graph.getMeetings();
+        Map<Integer, User> borrowers = graph.getBorrowers();
+        Map<Integer, User> lenders = graph.getLenders();
 
         //Bind our dynamic variables to the model, for HTML display
         model.addAttribute("transactions", transactions);
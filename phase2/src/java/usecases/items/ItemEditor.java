@@ -139,7 +139,7 @@ public class ItemEditor {
      */
     public boolean addItemToWishlist(int itemId, int userId) throws IOException, PersistenceException {
 
-        List<WishList> wishLists = gateway.all(WishList.class);
+        List<WishList> wishLists = gateway.findBy("ownerId", userId, WishList.class);
         List<WishList> updateWishlist = new ArrayList<>();
         for (WishList w : wishLists) {
             if (w.getOwnerId() == userId) {
@@ -165,7 +165,7 @@ public class ItemEditor {
      */
     public void removeItemFromWishlist(int itemId, int userId) throws IOException, PersistenceException {
 
-        List<WishList> wishLists = gateway.all(WishList.class);
+        List<WishList> wishLists = gateway.findBy("ownerId", userId, WishList.class);
         List<WishList> updateWishlist = new ArrayList<>();
         for (WishList w : wishLists) {
             if (w.getOwnerId() == userId) {
@@ -8,42 +8,75 @@ import persistence.PersistenceInterface;
 import persistence.relations.MapsRelations;
 import usecases.items.exceptions.ItemNotFoundException;
 import usecases.query.AbstractFetcher;
+import usecases.query.QueryCache;
+import usecases.query.Scan;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.function.ToIntFunction;
 
 
 /**
  * Executes a ItemQuery and returns the results in the specified format of the query.
  * Can execute a number of pre-defined filters, such as whether the item is approve or not etc.
  * Can return a list of ids, a list of item names, or a list of Item objects.
+ * Every filter except the tag filters only reads the int and boolean columns of an item (see Item.getColumns),
+ * so ids are found without decoding any item, and names only decode the items that match.
  */
-public class ItemFetcher extends AbstractFetcher {
+public class ItemFetcher extends AbstractFetcher<Item> {
 
     /**
      * Class dependencies
      */
-    PersistenceInterface gateway;
-    MapsRelations mapsRelation;
+    private final PersistenceInterface gateway;
+    private final MapsRelations mapsRelation;
 
     /**
-     * Initializes this class.
+     * Initializes this class, which runs every query it is given.
      *
-     * @param gateway PersistenceInterface
+     * @param gateway      PersistenceInterface
+     * @param mapsRelation MapsRelations
      */
     public ItemFetcher(PersistenceInterface gateway, MapsRelations mapsRelation) {
-        this.gateway = gateway;
-        this.mapsRelation = mapsRelation;
+        this(gateway, mapsRelation, null);
     }
 
     /**
-     * Stores the result of the current fetch.
+     * Initializes this class, which keeps the ids each query finds until the items, users or wishlists it read change.
+     *
+     * @param gateway      PersistenceInterface
+     * @param mapsRelation MapsRelations
+     * @param cache        where to keep the ids each query finds, or null to run every query
      */
-    private List<Item> allItems = new ArrayList<Item>();
-    private List<Item> currentList = new ArrayList<Item>();
-    private List<WishList> wishList = new ArrayList<WishList>();
+    public ItemFetcher(PersistenceInterface gateway, MapsRelations mapsRelation, QueryCache cache) {
+        super(cache);
+        this.gateway = gateway;
+        this.mapsRelation = mapsRelation;
+
+        this.booleanFilter("heldByOwner", this::heldByOwner);
+        this.booleanFilter("onlyApproved", this::onlyApproved);
+        this.booleanFilter("exceptApproved", this::exceptApproved);
+        this.booleanFilter("ownedByUnfrozenUser", this::ownedByUnfrozenUser, User.class);
+        this.booleanFilter("ownedByUnVacationUser", this::ownedByUnVacationUser, User.class);
+        this.booleanFilter("onlyDeleted", this::onlyDeleted);
+        this.booleanFilter("notDeleted", this::notDeleted);
+        this.booleanFilter("forSell", this::forSell);
+        this.booleanFilter("unreserved", this::unreserved);
+
+        this.integerFilter("findById", this::findById);
+        this.integerFilter("findByHomeCity", this::findByHomeCity, User.class);
+        this.integerFilter("exceptOwnedBy", this::exceptOwnedBy);
+        this.integerFilter("onlyOwnedBy", this::onlyOwnedBy);
+        this.integerFilter("exceptHeldBy", this::exceptHeldBy);
+        this.integerFilter("onlyHeldBy", this::onlyHeldBy);
+        this.integerFilter("sellBy", this::sellBy);
+        this.integerFilter("inWishlistOf", this::inWishlistOf, WishList.class);
+        this.integerFilter("notInWishlistOf", this::notInWishlistOf, WishList.class);
+
+        this.listFilter("isTaggedWithAll", this::isTaggedWithAll, Tag.class);
+        //The tags of an item are a reverse relation
+        this.neverCache("isTaggedWithAll");
+    }
 
 
 /********************************************************************************************************
@@ -84,9 +117,11 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Integer> fetchIds(ItemQueryBuilder query) throws IOException {
-        this.fetchObjects(query);
+        Scan<Item> scan = this.fetch(query).getScan();
+        //Only the columns of each item are needed, unless a filter needs the whole item
+        if (scan.isColumnar()) return scan.keys();
         List<Integer> ids = new ArrayList<Integer>();
-        for (Item item : this.currentList) {
+        for (Item item : this.fetchObjects(query)) {
             ids.add(item.getKey());
         }
         return ids;
@@ -101,9 +136,11 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<String> fetchNames(ItemQueryBuilder query) throws IOException {
-        this.fetchObjects(query);
+        Scan<Item> scan = this.fetch(query).getScan();
+        //The items are found through their columns, and only the ones that match are decoded
+        List<Item> items = scan.isColumnar() ? gateway.get(scan.keys(), Item.class) : this.fetchObjects(query);
         List<String> names = new ArrayList<String>();
-        for (Item item : this.currentList) {
+        for (Item item : items) {
             names.add(item.getName());
         }
         return names;
@@ -118,8 +155,50 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Item> fetchObjects(ItemQueryBuilder query) throws IOException {
-        this.fetch(query);
-        return this.currentList;
+        return this.fetch(query).results().all();
+    }
+
+
+    /**
+     * Returns the first item object satisfying the query.
+     * Stops reading items as soon as one passes every filter.
+     *
+     * @param query ItemQueryBuilder
+     * @return Returns the first item object, or null if there is none.
+     * @throws IOException IOException
+     */
+    public Item fetchFirst(ItemQueryBuilder query) throws IOException {
+        return this.fetch(query).results().first();
+    }
+
+
+    /**
+     * Returns the item objects satisfying the query, together with the relations the query asks for.
+     * Each relation is read for every item at once, and owners and holders are read together.
+     *
+     * @param query ItemQueryBuilder
+     * @return Returns the items and their relations.
+     * @throws IOException IOException
+     */
+    public ItemGraph fetchGraph(ItemQueryBuilder query) throws IOException {
+        Set<String> with = query.getEagerRelations();
+        List<Item> items = this.fetchObjects(query);
+
+        Map<Integer, List<Tag>> tags = with.contains("tags") ? mapsRelation.relationAll(items, "tags", Tag.class) : null;
+
+        Set<Integer> userIds = new LinkedHashSet<>();
+        for (Item item : items) {
+            if (with.contains("owner")) userIds.add(item.getOwnerId());
+            if (with.contains("holder")) userIds.add(item.getHolderId());
+        }
+        Map<Integer, User> users = new HashMap<>();
+        if (!userIds.isEmpty()) {
+            for (User user : gateway.get(new ArrayList<>(userIds), User.class)) users.put(user.getKey(), user);
+        }
+
+        return new ItemGraph(items, tags,
+                with.contains("owner") ? this.usersOf(items, Item::getOwnerId, users) : null,
+                with.contains("holder") ? this.usersOf(items, Item::getHolderId, users) : null);
     }
 
 
@@ -196,32 +275,32 @@ public class ItemFetcher extends AbstractFetcher {
     /**
      * Filter the list of items and leave the items with the Tags associated with them
      *
+     * @param scan     The scan of the fetch
      * @param tagNames A list of tag names.
      * @throws IOException An IOException
      */
-    public void isTaggedWithAll(List<String> tagNames) throws IOException {
+    public void isTaggedWithAll(Scan<Item> scan, List<String> tagNames) throws IOException {
         for (String tagName : tagNames) {
-            this.isTaggedWith(tagName);
+            this.isTaggedWith(scan, tagName);
         }
     }
 
     /**
      * Filters based on one tag.
      *
+     * @param scan    The scan of the fetch
      * @param tagName The string representation of a tag
      * @throws IOException An IOException
      */
-    public void isTaggedWith(String tagName) throws IOException {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
+    public void isTaggedWith(Scan<Item> scan, String tagName) throws IOException {
+        scan.filter(unchecked(item -> {
             List<Tag> tags = item.relation(this.mapsRelation, "tags", Tag.class);
             boolean include = false;
             for (Tag tag : tags) {
                 if (tag.getTagName().equals(tagName)) include = true;
             }
-            if (include) filtered.add(item);
-        }
-        this.currentList = filtered;
+            return include;
+        }));
     }
 
 
@@ -233,128 +312,105 @@ public class ItemFetcher extends AbstractFetcher {
     /**
      * Get the item by item id
      *
+     * @param scan   The scan of the fetch
      * @param itemId The unique id of the item
      */
-    public void findById(Integer itemId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getKey() == itemId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void findById(Scan<Item> scan, Integer itemId) {
+        scan.where(row -> row.getKey() == itemId);
     }
 
     /**
      * Get the item that belongs to user from the same home city
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
      * @throws IOException An IOException
      */
-    public void findByHomeCity(Integer userId) throws IOException {
-        List<Item> filtered = new ArrayList<>();
+    public void findByHomeCity(Scan<Item> scan, Integer userId) throws IOException {
         String homeCiy = getOwner(userId).getHomeCity();
-        for (Item item : this.currentList) {
-            if (getOwner(item.getOwnerId()).getHomeCity().equals(homeCiy)) {
-                filtered.add(item);
-            }
-        }
-        this.currentList = filtered;
+        scan.where(unchecked(row -> getOwner(row.getInt("ownerId")).getHomeCity().equals(homeCiy)));
     }
 
     /**
      * Get the item not owned by the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
      */
-    public void exceptOwnedBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() != userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void exceptOwnedBy(Scan<Item> scan, Integer userId) {
+        scan.where(row -> row.getInt("ownerId") != userId);
     }
 
     /**
      * Get the item only owned by the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
      */
-    public void onlyOwnedBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() == userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void onlyOwnedBy(Scan<Item> scan, Integer userId) {
+        scan.where(row -> row.getInt("ownerId") == userId);
+        scan.narrow("ownerId", userId);
     }
 
     /**
      * Get the item that are not held by the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
      */
-    public void exceptHeldBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getHolderId() != userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void exceptHeldBy(Scan<Item> scan, Integer userId) {
+        scan.where(row -> row.getInt("holderId") != userId);
     }
 
     /**
      * Get the item held by the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
      */
-    public void onlyHeldBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getHolderId() == userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void onlyHeldBy(Scan<Item> scan, Integer userId) {
+        scan.where(row -> row.getInt("holderId") == userId);
+        scan.narrow("holderId", userId);
     }
 
     /**
      * Get the item sold by the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
      */
-    public void sellBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() == userId && item.getHolderId() == userId && item.isForSale()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void sellBy(Scan<Item> scan, Integer userId) {
+        scan.where(row -> row.getInt("ownerId") == userId && row.getInt("holderId") == userId && row.getBoolean("forSale"));
     }
 
     /**
      * Get the items in the wishlist of the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
+     * @throws IOException An IOException
      */
-    public void inWishlistOf(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
+    public void inWishlistOf(Scan<Item> scan, Integer userId) throws IOException {
         WishList wishList = this.getWishlistOf(userId);
         if (wishList != null) {
-            for (Item item : this.currentList) {
-                if (wishList.getWishList().contains(item.getKey())) filtered.add(item);
-            }
+            scan.where(row -> wishList.getWishList().contains(row.getKey()));
+        } else {
+            scan.where(row -> false);
         }
-        this.currentList = filtered;
     }
 
     /**
      * Get the item that are not in the wishlist of the user
      *
+     * @param scan   The scan of the fetch
      * @param userId The unique id of the user
+     * @throws IOException An IOException
      */
-    public void notInWishlistOf(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
+    public void notInWishlistOf(Scan<Item> scan, Integer userId) throws IOException {
         WishList wishList = this.getWishlistOf(userId);
         //If there is a wishlist, we must only add items not in the wishlist
         if (wishList != null) {
-            for (Item item : this.currentList) {
-                if (!wishList.getWishList().contains(item.getKey())) filtered.add(item);
-            }
-            this.currentList = filtered;
+            scan.where(row -> !wishList.getWishList().contains(row.getKey()));
         }
         //Otherwise, we do nothing and no filtering has taken place
     }
@@ -368,108 +424,92 @@ public class ItemFetcher extends AbstractFetcher {
 
     /**
      * Get the items that are held by their owner
+     *
+     * @param scan The scan of the fetch
      */
-    public void heldByOwner() {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() == item.getHolderId()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void heldByOwner(Scan<Item> scan) {
+        scan.where(row -> row.getInt("ownerId") == row.getInt("holderId"));
     }
 
     /**
      * Get only the items that are approved
+     *
+     * @param scan The scan of the fetch
      */
-    public void onlyApproved() {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.isVisible()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void onlyApproved(Scan<Item> scan) {
+        scan.where(row -> row.getBoolean("visibility"));
     }
 
     /**
      * Get only the items that are not visible to users
+     *
+     * @param scan The scan of the fetch
      */
-    public void exceptApproved() {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (!item.isVisible()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void exceptApproved(Scan<Item> scan) {
+        scan.where(row -> !row.getBoolean("visibility"));
     }
 
     /**
      * Get only the items that are owned by unfrozen user
      *
+     * @param scan The scan of the fetch
      * @throws IOException An IOException
      */
-    public void ownedByUnfrozenUser() throws IOException {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            User user = this.getOwner(item.getOwnerId());
-            if (user != null && !user.getStatus().equals("frozen")) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void ownedByUnfrozenUser(Scan<Item> scan) throws IOException {
+        scan.where(unchecked(row -> {
+            User user = this.getOwner(row.getInt("ownerId"));
+            return user != null && !user.getStatus().equals("frozen");
+        }));
     }
 
     /**
      * Get only the items that are owned by user not on vacation
      *
+     * @param scan The scan of the fetch
      * @throws IOException An IOException
      */
-    public void ownedByUnVacationUser() throws IOException {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            User user = this.getOwner(item.getOwnerId());
-            if (user != null && !user.getStatus().equals("vacation")) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void ownedByUnVacationUser(Scan<Item> scan) throws IOException {
+        scan.where(unchecked(row -> {
+            User user = this.getOwner(row.getInt("ownerId"));
+            return user != null && !user.getStatus().equals("vacation");
+        }));
     }
 
     /**
      * Get only the items that are deleted
+     *
+     * @param scan The scan of the fetch
      */
-    public void onlyDeleted() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (item.isSoftDeleted()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void onlyDeleted(Scan<Item> scan) {
+        scan.where(row -> row.getBoolean("softDelete"));
     }
 
     /**
      * Get only the items that are not deleted
+     *
+     * @param scan The scan of the fetch
      */
-    public void notDeleted() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (!item.isSoftDeleted()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void notDeleted(Scan<Item> scan) {
+        scan.where(row -> !row.getBoolean("softDelete"));
     }
 
     /**
      * Get only the items that are for sale
+     *
+     * @param scan The scan of the fetch
      */
-    public void forSell() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (item.isForSale()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void forSell(Scan<Item> scan) {
+        scan.where(row -> row.getBoolean("forSale"));
     }
 
 
     /**
      * Get only the items that are not reserved
+     *
+     * @param scan The scan of the fetch
      */
-    public void unreserved() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (!item.isReserved()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    public void unreserved(Scan<Item> scan) {
+        scan.where(row -> !row.getBoolean("isReserved"));
     }
 
 
@@ -480,21 +520,10 @@ public class ItemFetcher extends AbstractFetcher {
  *********************************************************************************************************/
 
     /**
-     * reset the all lists this class saved
+     * Start a scan over all Item Objects
      */
-    protected void reset() {
-        this.allItems = new ArrayList<Item>();
-        this.currentList = new ArrayList<Item>();
-        this.wishList = new ArrayList<WishList>();
-    }
-
-    /**
-     * Get all Item Objects and save them into the lists this class had
-     */
-    protected void all() throws IOException {
-        this.allItems = gateway.all(Item.class);
-        this.currentList.addAll(this.allItems);
-        this.wishList = gateway.all(WishList.class);
+    protected Scan<Item> all() {
+        return new Scan<>(this.gateway, Item.class);
     }
 
     /**
@@ -510,16 +539,32 @@ public class ItemFetcher extends AbstractFetcher {
         return null;
     }
 
+    /**
+     * Get the user each item refers to, out of the users already read
+     *
+     * @param items  the items
+     * @param userId which user of an item to get (its owner or holder)
+     * @param users  the users already read, by id
+     * @return a map with the item id as key and the user as value
+     */
+    private Map<Integer, User> usersOf(List<Item> items, ToIntFunction<Item> userId, Map<Integer, User> users) {
+        Map<Integer, User> usersOf = new HashMap<>();
+        for (Item item : items) {
+            usersOf.put(item.getKey(), users.get(userId.applyAsInt(item)));
+        }
+        return usersOf;
+    }
+
     /**
      * Get the wishlist by inputting userId
      *
      * @param userId id of user
      * @return Wishlist Object whose userId is userId
+     * @throws IOException An IOException
      */
-    private WishList getWishlistOf(Integer userId) {
-        for (WishList wishList : this.wishList) {
-            if (wishList.getOwnerId() == userId) return wishList;
-        }
+    private WishList getWishlistOf(Integer userId) throws IOException {
+        List<WishList> wishLists = gateway.findBy("ownerId", userId, WishList.class);
+        if (!wishLists.isEmpty()) return wishLists.get(0);
         return null;
     }
 
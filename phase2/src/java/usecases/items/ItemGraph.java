@@ -0,0 +1,92 @@
+package usecases.items;
+
+import entities.Item;
+import entities.Tag;
+import entities.User;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The items of a query together with the relations asked for with ItemQueryBuilder.with,
+ * all loaded in one pass: each relation is read for every item at once, rather than once per item.
+ */
+public class ItemGraph {
+
+    /**
+     * The items, and their relations, or null for the relations that were not asked for.
+     */
+    private final List<Item> items;
+    private final Map<Integer, List<Tag>> tags;
+    private final Map<Integer, User> owners;
+    private final Map<Integer, User> holders;
+
+    /**
+     * Initializes this class.
+     *
+     * @param items   The items
+     * @param tags    A map with the item id as key and its tags as value
+     * @param owners  A map with the item id as key and its owner as value
+     * @param holders A map with the item id as key and the user holding it as value
+     */
+    ItemGraph(List<Item> items, Map<Integer, List<Tag>> tags, Map<Integer, User> owners, Map<Integer, User> holders) {
+        this.items = items;
+        this.tags = tags;
+        this.owners = owners;
+        this.holders = holders;
+    }
+
+
+    /**
+     * Get the items
+     *
+     * @return list of items
+     */
+    public List<Item> getItems() {
+        return this.items;
+    }
+
+    /**
+     * Get a map with item id as key and its list of tags as value
+     *
+     * @return a map with item id as key and list of tags as value
+     * @throws IllegalStateException if "tags" was not asked for.
+     */
+    public Map<Integer, List<Tag>> getTags() {
+        return this.loaded(this.tags, "tags");
+    }
+
+    /**
+     * Get a map with item id as key and its owner as value
+     *
+     * @return a map with item id as key and owner as value
+     * @throws IllegalStateException if "owner" was not asked for.
+     */
+    public Map<Integer, User> getOwners() {
+        return this.loaded(this.owners, "owner");
+    }
+
+    /**
+     * Get a map with item id as key and the user holding it as value
+     *
+     * @return a map with item id as key and holder as value
+     * @throws IllegalStateException if "holder" was not asked for.
+     */
+    public Map<Integer, User> getHolders() {
+        return this.loaded(this.holders, "holder");
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper Methods
+ *
+ *********************************************************************************************************/
+
+    private <T> T loaded(T relation, String relationName) {
+        if (relation == null) throw new IllegalStateException("Add with(\"" + relationName + "\") to the query to load " + relationName);
+        return relation;
+    }
+
+
+}
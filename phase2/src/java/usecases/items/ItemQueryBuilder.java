@@ -15,7 +15,7 @@ import java.util.Map;
  * query().onlyApproved().onlyOwnedBy(5).heldByOwner().getNames();
  * This will return the names of items that have been approved, owned by user id 5 and held by user id 5.
  */
-public class ItemQueryBuilder extends AbstractQueryBuilder {
+public class ItemQueryBuilder extends AbstractQueryBuilder<Item> {
 
 
     /**
@@ -47,6 +47,10 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
 
         this.listFilters.put("fetchByTag", null);
 
+        this.relations.add("tags");
+        this.relations.add("owner");
+        this.relations.add("holder");
+
     }
 
     private final ItemFetcher fetcher;
@@ -57,11 +61,6 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
 
     private final Map<String, List<String>> listFilters = new HashMap<>();
 
-    /**
-     * Holds whether this ItemQuery has been fetched or not.
-     */
-    private boolean fetched = false;
-
 
 /********************************************************************************************************
  *
@@ -96,24 +95,6 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
         return this.listFilters;
     }
 
-    /**
-     * Checks if this query has been fetched already. Each query can only be fetched once.
-     *
-     * @return True iff this query has been fetched already.
-     */
-    public boolean hasBeenFetched() {
-        return this.fetched;
-    }
-
-    /**
-     * Sets this query's fetched status.
-     *
-     * @param fetched Whether this query has been fetched.
-     */
-    public void setFetched(boolean fetched) {
-        this.fetched = fetched;
-    }
-
 
 /********************************************************************************************************
  *
@@ -339,6 +320,25 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
         return this;
     }
 
+/********************************************************************************************************
+ *
+ * Eager loading
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Loads these relations along with the items, see getGraph.
+     * The relations are the "tags", the "owner" and the "holder" of each item.
+     *
+     * @param relations the names of the relations
+     * @return An instance of this class.
+     * @throws IllegalArgumentException if a relation is not one of these.
+     */
+    public ItemQueryBuilder with(String... relations) {
+        this.addEagerRelations(relations);
+        return this;
+    }
+
 /********************************************************************************************************
  *
  * All the ways we can retrieve the results
@@ -384,8 +384,8 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
      * @throws IOException IOException
      */
     public String getName() throws IOException {
-        List<String> result = this.fetcher.fetchNames(this);
-        if (!result.isEmpty()) return result.get(0);
+        Item result = this.fetcher.fetchFirst(this);
+        if (result != null) return result.getName();
         return null;
     }
 
@@ -397,8 +397,8 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
      * @throws IOException IOException
      */
     public Integer getId() throws IOException {
-        List<Integer> result = this.fetcher.fetchIds(this);
-        if (!result.isEmpty()) return result.get(0);
+        Item result = this.fetcher.fetchFirst(this);
+        if (result != null) return result.getKey();
         return null;
     }
 
@@ -410,9 +410,19 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
      * @throws IOException IOException
      */
     public Item getObject() throws IOException {
-        List<Item> result = this.fetcher.fetchObjects(this);
-        if (!result.isEmpty()) return result.get(0);
-        return null;
+        return this.fetcher.fetchFirst(this);
+    }
+
+
+    /**
+     * Retrieves the Item objects satisfying the query conditions, together with every relation asked for with with,
+     * each read for all of them at once.
+     *
+     * @return The items and their relations.
+     * @throws IOException IOException
+     */
+    public ItemGraph getGraph() throws IOException {
+        return this.fetcher.fetchGraph(this);
     }
 
 
@@ -1,54 +1,206 @@
 package usecases.query;
 
+import persistence.Persistable;
+
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.util.List;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * Abstract Class of Fetcher: executes a Abstract Query and returns the results in the specified format of the query.
  * Can execute a number of pre-defined filters, such as whether the item is approve or not etc.
  * Can return a list of objects.
+ * <p>
+ * Each fetcher registers its filters once, by name, as typed method references. The filters a query switches on are
+ * looked up the first time that combination of filters is fetched, and the steps found are kept for the next query
+ * with the same combination. Running them adds each condition onto the scan, which tests every row against all of
+ * them in a single pass.
+ * <p>
+ * A fetcher keeps nothing about the queries it runs: the scan of each fetch is kept by the query, in a
+ * QueryExecution. So a single fetcher can run queries from any number of threads at once, as long as each query is
+ * only used by the thread that built it.
+ * <p>
+ * Given a QueryCache, a fetcher keeps the primary keys each query found, keyed by its filters and their values, and a
+ * query with the same filters gets a scan pinned to those keys instead of one that tests every row. For this, each
+ * filter is registered with the other types it reads, and a filter whose result can change without a row of any
+ * type being committed is registered as one that is never cached.
+ *
+ * @param <T> the class type being fetched
  */
-abstract public class AbstractFetcher {
+abstract public class AbstractFetcher<T> {
+
+    /**
+     * Every filter this fetcher can run, by name, for each kind of value a query can set a filter to.
+     */
+    private final Map<String, Filter<T, Boolean>> booleanFilters = new HashMap<>();
+    private final Map<String, Filter<T, Integer>> integerFilters = new HashMap<>();
+    private final Map<String, Filter<T, List<String>>> listFilters = new HashMap<>();
+
+    /**
+     * The types other than the one being fetched that each filter reads, by kind and name, and the names of the filters
+     * that are never cached.
+     */
+    private final Map<String, List<Class<?>>> reads = new HashMap<>();
+    private final Set<String> uncached = new HashSet<>();
+
+    /**
+     * The steps that run the filters of each combination of filters fetched so far, keyed by the names of the filters.
+     */
+    private final Map<String, Plan<T>> plans = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps the primary keys found by the queries run so far, or null if nothing is kept.
+     */
+    private final QueryCache cache;
+
+    /**
+     * Initializes this class, which runs every query it is given.
+     */
+    protected AbstractFetcher() {
+        this(null);
+    }
+
+    /**
+     * Initializes this class, which keeps what the queries it runs find.
+     *
+     * @param cache where to keep the primary keys each query finds, or null to run every query
+     */
+    protected AbstractFetcher(QueryCache cache) {
+        this.cache = cache;
+    }
 
     /**
      * Run the fetcher.
+     * A query that is kept in the cache is read in full the first time it runs, even if only its first result is
+     * asked for, and after that only reads the rows it returns.
      *
      * @param query An AbstractQueryBuilder class that holds the query
+     * @return What fetching the query made, which the query keeps.
      * @throws IOException An IOException
+     * @throws IllegalArgumentException if the query switches on a filter this fetcher does not have.
      */
-    protected void fetch(AbstractQueryBuilder query) throws IOException {
+    protected QueryExecution<T> fetch(AbstractQueryBuilder<T> query) throws IOException {
         //Only fetch once
-        if (!query.hasBeenFetched()) {
-            this.reset();
-            this.all();
+        if (query.getExecution() == null) {
+            Scan<T> scan = this.all();
+            Plan<T> plan = this.plan(query, scan.getType());
+
+            //The same filters, read from the same versions of every type they read, find the same rows
+            Object filters = null;
+            long[] versions = null;
+            if (this.cache != null && plan.reads != null) {
+                filters = this.filtersOf(query);
+                versions = this.cache.versions(plan.reads);
+            }
+            List<Integer> found = versions == null ? null : this.cache.get(filters, versions);
+            if (found != null) {
+                scan.pin(found);
+                query.setExecution(new QueryExecution<>(scan));
+                return query.getExecution();
+            }
+
             //Then we run filter methods
-            try {
-                this.filterBoolean(query);
-                this.filterInteger(query);
-                this.filterList(query);
-            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                e.printStackTrace();
-                //We do nothing if there's no such filter.
+            for (Filter<T, AbstractQueryBuilder<T>> step : plan.steps) {
+                step.apply(scan, query);
+            }
+            query.setExecution(new QueryExecution<>(scan));
+            if (versions != null) {
+                List<Integer> keys = this.keysOf(query.getExecution());
+                //A commit while the rows were read may have given them a mix of versions, which is not kept
+                if (Arrays.equals(versions, this.cache.versions(plan.reads))) this.cache.put(filters, versions, keys);
             }
-            query.setFetched(true);
         }
+        return query.getExecution();
     }
 
     /**
-     * A method that resets the filter and the query.
+     * A method that starts a scan over all of the instances of the type that we are fetching.
+     * Filters are added onto this scan, and nothing is read until the results are asked for.
      *
-     * @throws IOException An IOException
+     * @return A new scan over every instance
      */
-    abstract protected void reset();
+    abstract protected Scan<T> all();
+
 
     /**
-     * A method that returns all of the instances of the type that we are fetching
+     * A filter condition that may need to read from persistence, such as following a relation.
      *
-     * @throws IOException An IOException
+     * @param <T> the class type being filtered
      */
-    abstract protected void all() throws IOException;
+    @FunctionalInterface
+    protected interface IOPredicate<T> {
+
+        /**
+         * Checks whether this object passes the filter.
+         *
+         * @param t the object to check
+         * @return True iff the object passes the filter
+         * @throws IOException An IOException
+         */
+        boolean test(T t) throws IOException;
+
+    }
+
+
+    /**
+     * A filter that adds its condition onto the scan of a fetch, given the value the query set it to.
+     *
+     * @param <T> the class type being filtered
+     * @param <V> the class type of the value
+     */
+    @FunctionalInterface
+    protected interface Filter<T, V> {
+
+        /**
+         * Adds this filter's condition onto the scan.
+         *
+         * @param scan  the scan of the fetch
+         * @param value the value the query set this filter to
+         * @throws IOException An IOException
+         */
+        void apply(Scan<T> scan, V value) throws IOException;
+
+    }
+
+
+    /**
+     * A filter that is either switched on or not, and adds its condition onto the scan of a fetch.
+     *
+     * @param <T> the class type being filtered
+     */
+    @FunctionalInterface
+    protected interface Switch<T> {
+
+        /**
+         * Adds this filter's condition onto the scan.
+         *
+         * @param scan the scan of the fetch
+         * @throws IOException An IOException
+         */
+        void apply(Scan<T> scan) throws IOException;
+
+    }
+
+
+    /**
+     * Turns a filter condition that may read from persistence into one that can be added onto a stream.
+     * An IOException is rethrown as an UncheckedIOException, which LazyResults turns back into an IOException.
+     *
+     * @param condition the filter condition
+     * @param <T>       the class type being filtered
+     * @return the same filter condition as a Predicate
+     */
+    protected static <T> Predicate<T> unchecked(IOPredicate<T> condition) {
+        return t -> {
+            try {
+                return condition.test(t);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
 
 
 /********************************************************************************************************
@@ -58,63 +210,193 @@ abstract public class AbstractFetcher {
  *********************************************************************************************************/
 
     /**
-     * Runs boolean filters.
+     * Registers a boolean filter, which runs if the query sets it.
      *
-     * @param query AbstractQueryBuilder
-     * @throws NoSuchMethodException     If there isn't a method with the name
-     * @throws IllegalAccessException    If there's an illegal access exception during the invocation of the filter.
-     * @throws InvocationTargetException If there's an exception thrown during invocation of the method.
+     * @param name   the name the query builder knows this filter by
+     * @param filter the filter
+     * @param reads  the types other than the one being fetched that the filter reads rows of
      */
-    protected void filterBoolean(AbstractQueryBuilder query)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    protected void booleanFilter(String name, Switch<T> filter, Class<?>... reads) {
+        this.booleanFilters.put(name, (scan, value) -> filter.apply(scan));
+        this.reads.put("boolean " + name, Arrays.asList(reads));
+    }
 
-        for (Map.Entry<String, Boolean> entry : query.getBooleanFilters().entrySet()) {
-            if (entry.getValue() != null) {
-                this.getClass().getDeclaredMethod(entry.getKey()).invoke(this);
-            }
-        }
 
+    /**
+     * Registers an integer filter, which runs with the value the query sets it to.
+     *
+     * @param name   the name the query builder knows this filter by
+     * @param filter the filter
+     * @param reads  the types other than the one being fetched that the filter reads rows of
+     */
+    protected void integerFilter(String name, Filter<T, Integer> filter, Class<?>... reads) {
+        this.integerFilters.put(name, filter);
+        this.reads.put("integer " + name, Arrays.asList(reads));
     }
 
 
     /**
-     * Runs integer filters.
+     * Registers a list filter, which runs with the list the query sets it to.
      *
-     * @param query AbstractQueryBuilder
-     * @throws NoSuchMethodException     If there isn't a method with the name
-     * @throws IllegalAccessException    If there's an illegal access exception during the invocation of the filter.
-     * @throws InvocationTargetException If there's an exception thrown during invocation of the method.
+     * @param name   the name the query builder knows this filter by
+     * @param filter the filter
+     * @param reads  the types other than the one being fetched that the filter reads rows of
      */
-    protected void filterInteger(AbstractQueryBuilder query)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    protected void listFilter(String name, Filter<T, List<String>> filter, Class<?>... reads) {
+        this.listFilters.put(name, filter);
+        this.reads.put("list " + name, Arrays.asList(reads));
+    }
 
-        for (Map.Entry<String, Integer> entry : query.getIntegerFilters().entrySet()) {
-            if (entry.getValue() != null) {
-                this.getClass().getDeclaredMethod(entry.getKey(), Integer.class).invoke(this, entry.getValue());
-            }
-        }
 
+    /**
+     * Never keeps the results of a query that sets this filter, because what the filter finds can change without a
+     * row of any type being committed, such as when it depends on the time, or on the reverse relations of a
+     * MapsRelations (which follow the change feed, not the versions a thread reads).
+     *
+     * @param name the name the query builder knows this filter by
+     */
+    protected void neverCache(String name) {
+        this.uncached.add(name);
     }
 
 
     /**
-     * Runs list filters.
+     * Finds the steps that run every filter the query has switched on: the boolean filters, then the integer filters,
+     * then the list filters, each in the order of their names, and the types they read.
+     * The plan of each combination is only worked out once.
      *
      * @param query AbstractQueryBuilder
-     * @throws NoSuchMethodException     If there isn't a method with the name
-     * @throws IllegalAccessException    If there's an illegal access exception during the invocation of the filter.
-     * @throws InvocationTargetException If there's an exception thrown during invocation of the method.
+     * @param type  .class information about the type being fetched
+     * @return the plan of the query
+     * @throws IllegalArgumentException if the query switches on a filter this fetcher does not have.
      */
-    protected void filterList(AbstractQueryBuilder query)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    private Plan<T> plan(AbstractQueryBuilder<T> query, Class<T> type) {
 
-        for (Map.Entry<String, List<String>> entry : query.getListFilters().entrySet()) {
-            if (entry.getValue() != null) {
-                this.getClass().getDeclaredMethod(entry.getKey(), List.class).invoke(this, entry.getValue());
-            }
+        SortedSet<String> booleans = this.switchedOn(query.getBooleanFilters());
+        SortedSet<String> integers = this.switchedOn(query.getIntegerFilters());
+        SortedSet<String> lists = this.switchedOn(query.getListFilters());
+        String combination = booleans + ";" + integers + ";" + lists;
+
+        Plan<T> plan = this.plans.get(combination);
+        if (plan != null) return plan;
+
+        List<Filter<T, AbstractQueryBuilder<T>>> steps = new ArrayList<>();
+        Set<Class<?>> reads = new LinkedHashSet<>();
+        reads.add(type);
+        boolean cached = true;
+        for (String name : booleans) {
+            Filter<T, Boolean> filter = this.registered(this.booleanFilters, "boolean", name);
+            steps.add((scan, q) -> filter.apply(scan, q.getBooleanFilters().get(name)));
+            reads.addAll(this.reads.get("boolean " + name));
+            cached &= !this.uncached.contains(name);
+        }
+        for (String name : integers) {
+            Filter<T, Integer> filter = this.registered(this.integerFilters, "integer", name);
+            steps.add((scan, q) -> filter.apply(scan, q.getIntegerFilters().get(name)));
+            reads.addAll(this.reads.get("integer " + name));
+            cached &= !this.uncached.contains(name);
+        }
+        for (String name : lists) {
+            Filter<T, List<String>> filter = this.registered(this.listFilters, "list", name);
+            steps.add((scan, q) -> filter.apply(scan, q.getListFilters().get(name)));
+            reads.addAll(this.reads.get("list " + name));
+            cached &= !this.uncached.contains(name);
+        }
+        plan = new Plan<>(Collections.unmodifiableList(steps), cached ? new ArrayList<>(reads) : null);
+        this.plans.put(combination, plan);
+        return plan;
+
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper methods.
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Gets the names of the filters a query has set, in order.
+     */
+    private SortedSet<String> switchedOn(Map<String, ?> filters) {
+
+        SortedSet<String> names = new TreeSet<>();
+        for (Map.Entry<String, ?> entry : filters.entrySet()) {
+            if (entry.getValue() != null) names.add(entry.getKey());
+        }
+        return names;
+
+    }
+
+
+    /**
+     * The steps that run the filters of one combination of filters, and the types they read, in a fixed order,
+     * or null if a query with these filters is never cached.
+     */
+    private static class Plan<T> {
+
+        private final List<Filter<T, AbstractQueryBuilder<T>>> steps;
+        private final List<Class<?>> reads;
+
+        private Plan(List<Filter<T, AbstractQueryBuilder<T>>> steps, List<Class<?>> reads) {
+            this.steps = steps;
+            this.reads = reads;
         }
 
     }
 
 
+    /**
+     * Gets the filters a query has set and their values, by kind and in name order, as a key that equals the key of
+     * any other query with the same filters set to the same values.
+     */
+    private Object filtersOf(AbstractQueryBuilder<T> query) {
+        return Arrays.asList(this.setTo(query.getBooleanFilters()), this.setTo(query.getIntegerFilters()),
+                this.setTo(query.getListFilters()), this.setTo(query.getDateFilters()));
+    }
+
+
+    private SortedMap<String, Object> setTo(Map<String, ?> filters) {
+
+        SortedMap<String, Object> values = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : filters.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof List) value = new ArrayList<>((List<?>) value);
+            if (value != null) values.put(entry.getKey(), value);
+        }
+        return values;
+
+    }
+
+
+    /**
+     * Gets the primary keys of every row a fetch found, in order. A fetch with only filters on columns finds them
+     * without reading a row, and is pinned to them so that they are not found twice.
+     */
+    private List<Integer> keysOf(QueryExecution<T> execution) throws IOException {
+
+        Scan<T> scan = execution.getScan();
+        if (scan.isColumnar()) {
+            List<Integer> keys = scan.keys();
+            scan.pin(keys);
+            return keys;
+        }
+        List<Integer> keys = new ArrayList<>();
+        for (T row : execution.results().all()) {
+            keys.add(((Persistable) row).getKey());
+        }
+        return keys;
+
+    }
+
+
+    private <V> Filter<T, V> registered(Map<String, Filter<T, V>> filters, String kind, String name) {
+
+        Filter<T, V> filter = filters.get(name);
+        if (filter == null) throw new IllegalArgumentException(this.getClass().getSimpleName() + " has no " + kind + " filter " + name);
+        return filter;
+
+    }
+
+
 }
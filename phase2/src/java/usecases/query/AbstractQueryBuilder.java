@@ -1,11 +1,14 @@
 package usecases.query;
 
 import java.time.LocalDate;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
-abstract public class AbstractQueryBuilder {
+/**
+ * Holds the filters and relations of one query, and what fetching it made.
+ *
+ * @param <T> the class type being queried
+ */
+abstract public class AbstractQueryBuilder<T> {
 
     /**
      * Holds boolean filters
@@ -28,9 +31,19 @@ abstract public class AbstractQueryBuilder {
     protected final Map<String, LocalDate> dateFilters = new HashMap<String, LocalDate>();
 
     /**
-     * Holds whether this ItemQuery has been fetched or not.
+     * Holds the relations that can be loaded along with the results, such as "trades" or "trades.items"
+     */
+    protected final Set<String> relations = new HashSet<String>();
+
+    /**
+     * Holds the relations to load along with the results
+     */
+    protected final Set<String> eagerRelations = new LinkedHashSet<String>();
+
+    /**
+     * Holds what fetching this query made, or null if it has not been fetched yet.
      */
-    protected boolean fetched = false;
+    private QueryExecution<T> execution = null;
 
 /********************************************************************************************************
  *
@@ -66,21 +79,58 @@ abstract public class AbstractQueryBuilder {
     }
 
     /**
-     * Checks if this query has been fetched already. Each query can only be fetched once.
+     * Returns the set of available date filters.
+     *
+     * @return The set of available date filters.
+     */
+    protected Map<String, LocalDate> getDateFilters() {
+        return this.dateFilters;
+    }
+
+    /**
+     * Returns the relations to load along with the results.
+     * A nested relation such as "trades.items" comes with every relation it goes through, such as "trades".
+     *
+     * @return The relations to load along with the results.
+     */
+    public Set<String> getEagerRelations() {
+        return Collections.unmodifiableSet(this.eagerRelations);
+    }
+
+    /**
+     * Asks for relations to be loaded along with the results.
+     *
+     * @param relations The names of the relations, such as "trades" or "trades.items".
+     * @throws IllegalArgumentException if a relation cannot be loaded along with the results of this query.
+     */
+    protected void addEagerRelations(String... relations) {
+
+        for (String relation : relations) {
+            if (!this.relations.contains(relation)) throw new IllegalArgumentException("Unknown relation " + relation);
+            for (int dot = relation.indexOf('.'); dot >= 0; dot = relation.indexOf('.', dot + 1)) {
+                this.eagerRelations.add(relation.substring(0, dot));
+            }
+            this.eagerRelations.add(relation);
+        }
+
+    }
+
+    /**
+     * Returns what fetching this query made. Each query can only be fetched once.
      *
-     * @return True iff this query has been fetched already.
+     * @return What fetching this query made, or null if it has not been fetched yet.
      */
-    protected boolean hasBeenFetched() {
-        return this.fetched;
+    protected QueryExecution<T> getExecution() {
+        return this.execution;
     }
 
     /**
-     * Sets this query's fetched status.
+     * Keeps what fetching this query made.
      *
-     * @param fetched Whether this query has been fetched.
+     * @param execution What fetching this query made.
      */
-    protected void setFetched(boolean fetched) {
-        this.fetched = fetched;
+    protected void setExecution(QueryExecution<T> execution) {
+        this.execution = execution;
     }
 
 }
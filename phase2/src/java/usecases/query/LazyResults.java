@@ -0,0 +1,93 @@
+package usecases.query;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Holds the results of a fetch as a stream of filtered rows, and only pulls rows out of it when they are asked for.
+ * Asking for the first result stops the scan at the first row that passes every filter,
+ * asking for all of them drains the rest of the stream.
+ * Rows already pulled are kept, so the results can be read any number of times.
+ *
+ * @param <T> the class type of each result
+ */
+public class LazyResults<T> {
+
+    /**
+     * The rows that have not been pulled yet.
+     */
+    private final Iterator<T> remaining;
+
+    /**
+     * The rows pulled so far, in order.
+     */
+    private final List<T> pulled = new ArrayList<>();
+
+    /**
+     * Wraps a stream of filtered rows. The stream is not read until a result is asked for.
+     *
+     * @param rows the filtered rows
+     */
+    public LazyResults(Stream<T> rows) {
+        this.remaining = rows.iterator();
+    }
+
+
+    /**
+     * Gets the first result, reading no further into the stream than needed.
+     *
+     * @return the first result, or null if there are none
+     * @throws IOException throws this exception if there is a IO error while reading a row.
+     */
+    public T first() throws IOException {
+
+        this.pull(1);
+        return this.pulled.isEmpty() ? null : this.pulled.get(0);
+
+    }
+
+
+    /**
+     * Gets every result, reading the rest of the stream.
+     *
+     * @return A List of all results
+     * @throws IOException throws this exception if there is a IO error while reading a row.
+     */
+    public List<T> all() throws IOException {
+
+        this.pull(Integer.MAX_VALUE);
+        return this.pulled;
+
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper methods.
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Pulls rows out of the stream until count rows have been pulled in total, or the stream runs out.
+     *
+     * @param count the number of rows wanted
+     * @throws IOException the IO error a gateway or a filter ran into while the stream was being read.
+     */
+    private void pull(int count) throws IOException {
+
+        try {
+            while (this.pulled.size() < count && this.remaining.hasNext()) {
+                this.pulled.add(this.remaining.next());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,150 @@
+package usecases.query;
+
+import persistence.PersistenceInterface;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps the results of the queries a fetcher runs, so that a query that runs again with the same filters is answered
+ * without testing a single row.
+ * <p>
+ * Each entry is keyed by the filters a query set and the values it set them to, in name order, so the order the
+ * filters were added in makes no difference. It holds the primary keys of the rows that matched, never the rows, so
+ * each query still gets rows of its own to change.
+ * <p>
+ * An entry also holds the version (see PersistenceInterface.version) of every type its query read: the type being
+ * fetched and every type its filters read. It is only used while the calling thread reads those same versions, so it
+ * stops being used as soon as a row of any of these types is committed, and a thread that reads from an older
+ * snapshot never gets a newer result than it would have found itself. A lookup on other versions leaves the entry
+ * as it is, for the threads that still read its versions. An entry is only replaced by a result of the same query
+ * on newer versions, or dropped, least recently used first, once the cache is full.
+ */
+public class QueryCache {
+
+    /**
+     * Class dependencies
+     */
+    private final PersistenceInterface gateway;
+
+    /**
+     * The most entries this cache holds.
+     */
+    private final int capacity;
+
+    /**
+     * Holds the entries, least recently used first. Guarded by this.
+     */
+    private final LinkedHashMap<Object, Entry> entries;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param gateway  the gateway the queries read from, which must be able to tell versions for anything to be kept
+     * @param capacity the most entries to hold
+     */
+    public QueryCache(PersistenceInterface gateway, int capacity) {
+        this.gateway = gateway;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                return this.size() > QueryCache.this.capacity;
+            }
+        };
+    }
+
+
+    /**
+     * Gets the versions of these types that the calling thread reads, to look a query up with, and to keep its
+     * result under. They must be taken before the query runs, and only kept if they are the same after it has read
+     * its rows.
+     *
+     * @param types the types the query reads, always in the same order for the same query
+     * @return the version of each type, or null if any of them cannot be told, in which case nothing is kept
+     * @throws IOException An IOException
+     */
+    long[] versions(List<Class<?>> types) throws IOException {
+
+        long[] versions = new long[types.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = this.gateway.version(types.get(i));
+            if (versions[i] < 0) return null;
+        }
+        return versions;
+
+    }
+
+
+    /**
+     * Gets the primary keys that a query with these filters found, if it was run on these versions.
+     *
+     * @param filters  the filters of the query, and their values
+     * @param versions the versions of the types the query reads
+     * @return the primary keys of the rows that matched, in order, or null if there are none to use
+     */
+    synchronized List<Integer> get(Object filters, long[] versions) {
+
+        Entry entry = this.entries.get(filters);
+        if (entry == null || !Arrays.equals(entry.versions, versions)) return null;
+        return entry.keys;
+
+    }
+
+
+    /**
+     * Keeps the primary keys that a query with these filters found, on these versions, unless the entry already kept
+     * for these filters was found on newer versions.
+     *
+     * @param filters  the filters of the query, and their values
+     * @param versions the versions of the types the query read, the same before and after it ran
+     * @param keys     the primary keys of the rows that matched, in order
+     */
+    synchronized void put(Object filters, long[] versions, List<Integer> keys) {
+
+        Entry entry = this.entries.get(filters);
+        if (entry != null) {
+            //Versions only go up, so an entry with any newer version was found on a newer state
+            for (int i = 0; i < versions.length; i++) {
+                if (entry.versions[i] > versions[i]) return;
+            }
+        }
+        this.entries.put(filters, new Entry(versions, Collections.unmodifiableList(new ArrayList<>(keys))));
+
+    }
+
+
+    /**
+     * Gets how many entries this cache holds, whether or not they can still be used.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper methods.
+ *
+ *********************************************************************************************************/
+
+    /**
+     * The primary keys one query found, and the versions of the types it read them from.
+     */
+    private static class Entry {
+
+        private final long[] versions;
+        private final List<Integer> keys;
+
+        private Entry(long[] versions, List<Integer> keys) {
+            this.versions = versions;
+            this.keys = keys;
+        }
+
+    }
+
+
+}
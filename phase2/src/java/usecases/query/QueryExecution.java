@@ -0,0 +1,62 @@
+package usecases.query;
+
+import java.io.IOException;
+
+/**
+ * What one fetch of a query made: the scan that its filters were added onto, and the results pulled out of it.
+ * <p>
+ * Each query keeps its own, so that fetchers keep nothing about the queries they run, and one fetcher can run any
+ * number of queries from any number of threads at once. The scan is complete before this is made and never changes
+ * after, and the results are only opened the first time they are asked for. Like the query itself, an execution
+ * belongs to the thread that built the query.
+ *
+ * @param <T> the class type being fetched
+ */
+public final class QueryExecution<T> {
+
+    /**
+     * The scan, with every filter of the query added onto it.
+     */
+    private final Scan<T> scan;
+
+    /**
+     * The results pulled out of the scan so far, or null if they have not been asked for yet.
+     */
+    private LazyResults<T> results;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param scan the scan, with every filter of the query added onto it
+     */
+    QueryExecution(Scan<T> scan) {
+        this.scan = scan;
+    }
+
+
+    /**
+     * Gets the scan, with every filter of the query added onto it.
+     *
+     * @return the scan
+     */
+    public Scan<T> getScan() {
+        return this.scan;
+    }
+
+
+    /**
+     * Gets the results of the scan, which are pulled out of the filtered stream as they are needed.
+     *
+     * @return the results
+     * @throws IOException An IOException
+     */
+    public LazyResults<T> results() throws IOException {
+
+        if (this.results == null) this.results = this.scan.results();
+        return this.results;
+
+    }
+
+
+}
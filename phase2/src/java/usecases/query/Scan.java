@@ -0,0 +1,207 @@
+package usecases.query;
+
+import persistence.PersistenceInterface;
+import persistence.index.Columns;
+import persistence.index.HasColumns;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Describes how a fetcher reads the rows of one type: where the rows come from, and which of them to keep.
+ * <p>
+ * Rows come from a stream over the whole type, unless a filter narrows the scan to the rows found through a
+ * secondary index (see HasIndexes). Only the first narrowing is used; every filter is still applied as a condition,
+ * so a narrowing only changes how many rows are read, never which rows are kept.
+ * <p>
+ * Filters on the columns of a row (see HasColumns) are added with where instead of filter. As long as every filter
+ * is on columns, keys finds the matching primary keys without decoding a single row.
+ * <p>
+ * A scan can also be pinned to primary keys that are already known to match, such as the ones a QueryCache kept for
+ * the same filters. A pinned scan only reads those rows, one at a time as the results are asked for.
+ *
+ * @param <T> the class type being fetched
+ */
+public class Scan<T> {
+
+    /**
+     * Class dependencies
+     */
+    private final PersistenceInterface gateway;
+    private final Class<T> type;
+
+    /**
+     * The indexed field and value the scan is narrowed to, if any.
+     */
+    private String field;
+    private Object value;
+
+    /**
+     * Every filter added so far, joined with and, split into the ones on whole rows and the ones on columns.
+     */
+    private Predicate<T> condition = t -> true;
+    private Predicate<Columns> where = null;
+    private boolean columnar = true;
+
+    /**
+     * The primary keys of the rows that pass every filter, in order, if the scan is pinned to them.
+     */
+    private List<Integer> pinned = null;
+
+
+    /**
+     * Initializes a scan over every row of this type.
+     *
+     * @param gateway PersistenceInterface
+     * @param type    .class information about class T
+     */
+    public Scan(PersistenceInterface gateway, Class<T> type) {
+        this.gateway = gateway;
+        this.type = type;
+    }
+
+
+    /**
+     * Only keeps the rows that pass this condition, as well as every condition added before.
+     *
+     * @param condition the filter condition
+     */
+    public void filter(Predicate<T> condition) {
+        this.condition = this.condition.and(condition);
+        this.columnar = false;
+    }
+
+
+    /**
+     * Only keeps the rows whose columns pass this condition, as well as every condition added before.
+     * The type being scanned must implement HasColumns.
+     *
+     * @param condition the filter condition, which must not keep the Columns it is given
+     */
+    public void where(Predicate<Columns> condition) {
+        this.where = this.where == null ? condition : this.where.and(condition);
+    }
+
+
+    /**
+     * Whether every filter of this scan is on columns, so that keys can answer it without decoding a row.
+     *
+     * @return True iff only where has been used to add filters
+     */
+    public boolean isColumnar() {
+        return this.columnar;
+    }
+
+
+    /**
+     * Reads only the rows with this value in this indexed field, instead of every row, if the scan is not narrowed yet.
+     * A matching condition must be added with filter as well.
+     *
+     * @param field the name of the indexed field
+     * @param value the value to look for
+     */
+    public void narrow(String field, Object value) {
+
+        if (this.field != null) return;
+        this.field = field;
+        this.value = value;
+
+    }
+
+
+    /**
+     * Only reads the rows with these primary keys, which are the ones that pass every filter, instead of testing any
+     * rows. The conditions added so far no longer matter, and keys answers without reading anything.
+     *
+     * @param keys the primary keys of the rows that pass every filter, in the order results would return them
+     */
+    public void pin(List<Integer> keys) {
+
+        this.pinned = Collections.unmodifiableList(new ArrayList<>(keys));
+        this.columnar = true;
+
+    }
+
+
+    /**
+     * Gets the type of the rows being scanned.
+     *
+     * @return .class information about class T
+     */
+    public Class<T> getType() {
+        return this.type;
+    }
+
+
+    /**
+     * Opens the scan. Nothing is read until the results are asked for, except for the lookup of a narrowed scan.
+     *
+     * @return the rows that pass every filter
+     * @throws IOException An IOException
+     */
+    public LazyResults<T> results() throws IOException {
+
+        if (this.pinned != null) {
+            //A row that was deleted since the keys were found is skipped, as a scan would
+            return new LazyResults<>(this.pinned.stream().map(this::read).filter(Objects::nonNull));
+        }
+        Stream<T> rows = this.field == null
+                ? this.gateway.stream(this.type)
+                : this.gateway.findBy(this.field, this.value, this.type).stream();
+        if (this.where != null) {
+            Predicate<Columns> where = this.where;
+            rows = rows.filter(t -> where.test(Columns.of((HasColumns) t)));
+        }
+        return new LazyResults<>(rows.filter(this.condition));
+
+    }
+
+
+    /**
+     * Finds the primary keys of the rows that pass every filter, in the order results would return them.
+     * Only the columns are read, so this may only be called if isColumnar.
+     *
+     * @return the primary keys of the rows that pass every filter
+     * @throws IOException An IOException
+     */
+    public List<Integer> keys() throws IOException {
+
+        if (!this.columnar) throw new IllegalStateException("Only a scan with no filters but where can find keys");
+        if (this.pinned != null) return new ArrayList<>(this.pinned);
+        try {
+            return this.gateway.findKeys(this.type, this.field, this.value, this.where == null ? row -> true : this.where);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper methods.
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Reads one row of a pinned scan. An IOException is rethrown as an UncheckedIOException, which LazyResults turns
+     * back into an IOException.
+     */
+    private T read(int key) {
+
+        try {
+            return this.gateway.get(key, this.type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+    }
+
+
+}
@@ -4,32 +4,62 @@ import entities.*;
 import persistence.PersistenceInterface;
 import persistence.relations.MapsRelations;
 import usecases.query.AbstractFetcher;
+import usecases.query.QueryCache;
+import usecases.query.Scan;
 
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.ToIntFunction;
 
-public class TransactionFetcher extends AbstractFetcher {
+public class TransactionFetcher extends AbstractFetcher<Transaction> {
 
     /**
      * Class dependencies
      */
-    PersistenceInterface gateway;
+    private final PersistenceInterface gateway;
 
     /**
      * A concrete instance of relation mapper.
      */
-    MapsRelations relationMapper;
+    private final MapsRelations relationMapper;
 
     /**
-     * Initializes this class.
+     * Initializes this class, which runs every query it is given.
      *
      * @param gateway        PersistenceInterface
      * @param relationMapper RelationMapper
      */
     public TransactionFetcher(PersistenceInterface gateway, MapsRelations relationMapper) {
+        this(gateway, relationMapper, null);
+    }
+
+    /**
+     * Initializes this class, which keeps the ids each query finds until the transactions, trades, meetings or items
+     * it read change.
+     *
+     * @param gateway        PersistenceInterface
+     * @param relationMapper RelationMapper
+     * @param cache          where to keep the ids each query finds, or null to run every query
+     */
+    public TransactionFetcher(PersistenceInterface gateway, MapsRelations relationMapper, QueryCache cache) {
+        super(cache);
         this.gateway = gateway;
         this.relationMapper = relationMapper;
+
+        this.integerFilter("findById", this::findById);
+        this.integerFilter("involvesUser", this::involvesUser, Trade.class);
+        this.integerFilter("involvesItem", this::involvesItem, Trade.class, Item.class);
+        this.integerFilter("involvesUserAsBorrower", this::involvesUserAsBorrower, Trade.class);
+        this.integerFilter("involvesUserAsLender", this::involvesUserAsLender, Trade.class);
+
+        this.booleanFilter("onGoing", this::onGoing, Meeting.class);
+        this.booleanFilter("isComplete", this::isComplete, Trade.class, Meeting.class);
+        this.booleanFilter("isIncomplete", this::isIncomplete, Trade.class, Meeting.class);
+        this.booleanFilter("isExpected", this::isExpected, Meeting.class);
+        //Whether a transaction is ongoing depends on the time as well
+        this.neverCache("onGoing");
+        this.neverCache("isIncomplete");
     }
 
 
@@ -50,17 +80,15 @@ public class TransactionFetcher extends AbstractFetcher {
 
 
     /**
-     * Returns a Transaction Object if exists
+     * Returns a Transaction Object if exists.
+     * Stops reading transactions as soon as one passes every filter.
      *
      * @param query TransactionQueryBuilder
-     * @return Returns a list of transaction objects.
+     * @return Returns the first transaction object, or null if there is none.
      * @throws IOException IOException
      */
     public Transaction getTransaction(TransactionQueryBuilder query) throws IOException {
-        if (this.getTransactions(query).get(0) != null) {
-            return this.getTransactions(query).get(0);
-        }
-        return null;
+        return this.fetch(query).results().first();
     }
 
     /**
@@ -71,8 +99,7 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Transaction> getTransactions(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        return this.currentList;
+        return this.fetch(query).results().all();
     }
 
     /**
@@ -83,12 +110,7 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, List<Meeting>> getMeetings(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, List<Meeting>> meetings = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            meetings.put(transaction.getKey(), transaction.relation(relationMapper, "meetings", Meeting.class));
-        }
-        return meetings;
+        return relationMapper.relationAll(this.getTransactions(query), "meetings", Meeting.class);
     }
 
     /**
@@ -99,12 +121,7 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Meeting> getMeetingsList(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        List<Meeting> meetings = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            meetings.addAll(transaction.relation(relationMapper, "meetings", Meeting.class));
-        }
-        return meetings;
+        return this.flatten(this.getMeetings(query));
     }
 
     /**
@@ -115,12 +132,7 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, List<Trade>> getTrades(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, List<Trade>> trades = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            trades.put(transaction.getKey(), transaction.relation(relationMapper, "trades", Trade.class));
-        }
-        return trades;
+        return relationMapper.relationAll(this.getTransactions(query), "trades", Trade.class);
     }
 
     /**
@@ -131,12 +143,7 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Trade> getTradesList(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        List<Trade> trades = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            trades.addAll(transaction.relation(relationMapper, "trades", Trade.class));
-        }
-        return trades;
+        return this.flatten(this.getTrades(query));
     }
 
     /**
@@ -147,16 +154,8 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, User> getBorrowers(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, User> users = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            for (Trade trade : trades) {
-                User user = gateway.get(trade.getBorrowerId(), User.class);
-                users.put(trade.getKey(), user);
-            }
-        }
-        return users;
+        List<Trade> trades = this.getTradesList(query);
+        return this.tradeUsers(trades, Trade::getBorrowerId, this.readUsers(trades, Trade::getBorrowerId));
     }
 
     /**
@@ -183,16 +182,8 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, User> getLenders(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, User> users = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            for (Trade trade : trades) {
-                User user = gateway.get(trade.getLenderId(), User.class);
-                users.put(trade.getKey(), user);
-            }
-        }
-        return users;
+        List<Trade> trades = this.getTradesList(query);
+        return this.tradeUsers(trades, Trade::getLenderId, this.readUsers(trades, Trade::getLenderId));
     }
 
     /**
@@ -211,6 +202,38 @@ public class TransactionFetcher extends AbstractFetcher {
         return lenderIds;
     }
 
+    /**
+     * Returns the transactions of a query, together with the relations the query asks for.
+     * Each relation is read for every transaction (or trade) at once, and borrowers and lenders are read together,
+     * so this costs the same few reads however many transactions there are.
+     *
+     * @param query TransactionQueryBuilder
+     * @return Returns the transactions and their relations.
+     * @throws IOException IOException
+     */
+    public TransactionGraph getGraph(TransactionQueryBuilder query) throws IOException {
+        Set<String> with = query.getEagerRelations();
+        List<Transaction> transactions = this.getTransactions(query);
+        boolean borrower = with.contains("borrower"), lender = with.contains("lender");
+
+        //Trades are read for the relations of trades too, even if they were not asked for themselves
+        Map<Integer, List<Trade>> trades = with.contains("trades") || borrower || lender
+                ? relationMapper.relationAll(transactions, "trades", Trade.class) : null;
+        List<Trade> tradeList = trades == null ? new ArrayList<>() : this.flatten(trades);
+        Map<Integer, List<Meeting>> meetings = with.contains("meetings")
+                ? relationMapper.relationAll(transactions, "meetings", Meeting.class) : null;
+        Map<Integer, List<Item>> items = with.contains("trades.items")
+                ? relationMapper.relationAll(tradeList, "items", Item.class) : null;
+
+        Map<Integer, User> users = borrower && lender ? this.readUsers(tradeList, Trade::getBorrowerId, Trade::getLenderId)
+                : borrower ? this.readUsers(tradeList, Trade::getBorrowerId)
+                : lender ? this.readUsers(tradeList, Trade::getLenderId) : null;
+
+        return new TransactionGraph(transactions, with.contains("trades") ? trades : null, meetings, items,
+                borrower ? this.tradeUsers(tradeList, Trade::getBorrowerId, users) : null,
+                lender ? this.tradeUsers(tradeList, Trade::getLenderId, users) : null);
+    }
+
     /**
      * Returns a map with the trade id as key and items as value.
      *
@@ -219,15 +242,7 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, List<Item>> getItems(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, List<Item>> items = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            for (Trade trade : trades) {
-                items.put(trade.getKey(), trade.relation(relationMapper, "items", Item.class));
-            }
-        }
-        return items;
+        return relationMapper.relationAll(this.getTradesList(query), "items", Item.class);
     }
 
 
@@ -240,40 +255,35 @@ public class TransactionFetcher extends AbstractFetcher {
     /**
      * Filter transactions by transaction id
      *
+     * @param scan          The scan of the fetch
      * @param transactionId unique id of transactions
      */
-    public void findById(Integer transactionId) {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            if (transaction.getKey() == transactionId) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    public void findById(Scan<Transaction> scan, Integer transactionId) {
+        scan.filter(transaction -> transaction.getKey() == transactionId);
     }
 
     /**
      * Filter transactions by userId
      *
+     * @param scan   The scan of the fetch
      * @param userId id of user
      * @throws IOException IOException
      */
-    public void involvesUser(Integer userId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            if (this.tradesInvolvesUser(trades, userId)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    public void involvesUser(Scan<Transaction> scan, Integer userId) throws IOException {
+        Set<Integer> tradeIds = this.tradeIdsWith("borrowerId", userId);
+        tradeIds.addAll(this.tradeIdsWith("lenderId", userId));
+        scan.filter(transaction -> this.containsAny(transaction.getTradeList(), tradeIds));
     }
 
     /**
      * Filter transactions by what items it involves
      *
+     * @param scan   The scan of the fetch
      * @param itemId id of item
      * @throws IOException IOException.
      */
-    public void involvesItem(Integer itemId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
+    public void involvesItem(Scan<Transaction> scan, Integer itemId) throws IOException {
+        scan.filter(unchecked(transaction -> {
             boolean involves = false;
             List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
             for (Trade trade: trades) {
@@ -285,39 +295,32 @@ public class TransactionFetcher extends AbstractFetcher {
                     }
                 }
             }
-            if(involves) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+            return involves;
+        }));
     }
 
     /**
      * Filters based on whether the user is a borrower.
      *
+     * @param scan   The scan of the fetch
      * @param userId id of user
      * @throws IOException IOException
      */
-    public void involvesUserAsBorrower(Integer userId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            if (this.tradesInvolvesUserAsBorrower(trades, userId)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    public void involvesUserAsBorrower(Scan<Transaction> scan, Integer userId) throws IOException {
+        Set<Integer> tradeIds = this.tradeIdsWith("borrowerId", userId);
+        scan.filter(transaction -> this.containsAny(transaction.getTradeList(), tradeIds));
     }
 
     /**
      * Filters based on whether the user is a lender.
      *
+     * @param scan   The scan of the fetch
      * @param userId id of user
      * @throws IOException IOException
      */
-    public void involvesUserAsLender(Integer userId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            if (this.tradesInvolvesUserAsLender(trades, userId)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    public void involvesUserAsLender(Scan<Transaction> scan, Integer userId) throws IOException {
+        Set<Integer> tradeIds = this.tradeIdsWith("lenderId", userId);
+        scan.filter(transaction -> this.containsAny(transaction.getTradeList(), tradeIds));
     }
 
 
@@ -330,64 +333,52 @@ public class TransactionFetcher extends AbstractFetcher {
     /**
      * Filters only ongoing transactions
      *
+     * @param scan The scan of the fetch
      * @throws IOException IOException
      */
-    public void onGoing() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Meeting> meetings = transaction.relation(this.relationMapper, "meetings", Meeting.class);
-            Meeting lastMeeting = this.getLastMeeting(meetings);
-            if (!lastMeeting.hasPassed()) {
-                filtered.add(transaction);
-            }
-        }
-        this.currentList = filtered;
+    public void onGoing(Scan<Transaction> scan) throws IOException {
+        scan.filter(unchecked(this::onGoing));
     }
 
     /**
      * Filters only completed transactions
      *
+     * @param scan The scan of the fetch
      * @throws IOException IOException
      */
-    public void isComplete() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
+    public void isComplete(Scan<Transaction> scan) throws IOException {
+        scan.filter(unchecked(transaction -> {
             List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
             List<Meeting> meetings = transaction.relation(relationMapper, "meetings", Meeting.class);
-            if (this.tradesComplete(trades) && this.meetingsComplete(meetings)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+            return this.tradesComplete(trades) && this.meetingsComplete(meetings);
+        }));
     }
 
     /**
      * Filters transactions that are not completed
      *
+     * @param scan The scan of the fetch
      * @throws IOException
      */
-    public void isIncomplete() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
+    public void isIncomplete(Scan<Transaction> scan) throws IOException {
+        scan.filter(unchecked(transaction -> {
             List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
             List<Meeting> meetings = transaction.relation(relationMapper, "meetings", Meeting.class);
-            if ((!this.tradesComplete(trades) | !this.meetingsComplete(meetings)) && !onGoing(transaction))
-                filtered.add(transaction);
-        }
-        this.currentList = filtered;
+            return (!this.tradesComplete(trades) | !this.meetingsComplete(meetings)) && !onGoing(transaction);
+        }));
     }
 
     /**
      * Filters transactions that are expected to take place, but not yet so
      *
+     * @param scan The scan of the fetch
      * @throws IOException
      */
-    public void isExpected() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
+    public void isExpected(Scan<Transaction> scan) throws IOException {
+        scan.filter(unchecked(transaction -> {
             List<Meeting> meetings = transaction.relation(relationMapper, "meetings", Meeting.class);
-            if ((this.meetingAgree(meetings)))
-                filtered.add(transaction);
-        }
-        this.currentList = filtered;
+            return this.meetingAgree(meetings);
+        }));
     }
 
 
@@ -399,22 +390,19 @@ public class TransactionFetcher extends AbstractFetcher {
 
     /**
      * Filters the transactions which is expected to take place after the given date
+     * @param scan The scan of the fetch
      * @param date a date to compare to the date of the first meeting in a transaction
      */
-    public void after(LocalDate date) {
-        List<Transaction> filtered = new ArrayList<>();
-
-        try {
-            for (Transaction transaction : this.currentList) {
+    public void after(Scan<Transaction> scan, LocalDate date) {
+        scan.filter(transaction -> {
+            try {
                 List<Meeting> meetings = gateway.get(transaction.getMeetingList(), Meeting.class);
-                if (getFirstMeeting(meetings).getTime().isAfter(date)) filtered.add(transaction);
+                return getFirstMeeting(meetings).getTime().isAfter(date);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-
-        this.currentList = filtered;
+        });
     }
 
 
@@ -425,43 +413,83 @@ public class TransactionFetcher extends AbstractFetcher {
      *********************************************************************************************************/
 
     /**
-     * Get whether the trades involve user with userId
+     * Puts the lists of a grouped relation one after the other
      *
-     * @param trades list of trades
-     * @param userId id of user
+     * @param grouped a map with lists as values, as returned by relationAll
+     * @param <T>     the class type of each element
+     * @return every element of every list, in order
      */
-    private boolean tradesInvolvesUser(List<Trade> trades, int userId) {
+    private <T> List<T> flatten(Map<Integer, List<T>> grouped) {
+        List<T> all = new ArrayList<>();
+        for (List<T> group : grouped.values()) {
+            all.addAll(group);
+        }
+        return all;
+    }
+
+    /**
+     * Reads the users the trades refer to, every user once and all of them in one go
+     *
+     * @param trades  the trades
+     * @param userIds which users of a trade to read (its borrower, its lender, or both)
+     * @return the users, by id
+     * @throws IOException An IOException
+     */
+    @SafeVarargs
+    private final Map<Integer, User> readUsers(List<Trade> trades, ToIntFunction<Trade>... userIds) throws IOException {
+        Set<Integer> ids = new LinkedHashSet<>();
         for (Trade trade : trades) {
-            boolean involvesUser = trade.getBorrowerId() == userId || trade.getLenderId() == userId;
-            if (involvesUser) return true;
+            for (ToIntFunction<Trade> userId : userIds) ids.add(userId.applyAsInt(trade));
         }
-        return false;
+        Map<Integer, User> users = new HashMap<>();
+        if (ids.isEmpty()) return users;
+        for (User user : gateway.get(new ArrayList<>(ids), User.class)) {
+            users.put(user.getKey(), user);
+        }
+        return users;
     }
 
     /**
-     * Get whether the trades involve user with userId as borrower
+     * Get the user each trade refers to, out of the users already read
      *
-     * @param trades list of trades
-     * @param userId id of user
+     * @param trades the trades
+     * @param userId which user of a trade to get (its borrower or lender)
+     * @param users  the users already read, by id
+     * @return a map with the trade id as key and the user as value
      */
-    private boolean tradesInvolvesUserAsBorrower(List<Trade> trades, int userId) {
+    private Map<Integer, User> tradeUsers(List<Trade> trades, ToIntFunction<Trade> userId, Map<Integer, User> users) {
+        Map<Integer, User> tradeUsers = new HashMap<>();
         for (Trade trade : trades) {
-            boolean involvesUser = trade.getBorrowerId() == userId;
-            if (involvesUser) return true;
+            tradeUsers.put(trade.getKey(), users.get(userId.applyAsInt(trade)));
         }
-        return false;
+        return tradeUsers;
     }
 
     /**
-     * Get whether the trades involve user with userId as borrower
+     * Get the ids of the trades with this value in one of their indexed fields (borrowerId or lenderId)
      *
-     * @param trades list of trades
+     * @param field  the indexed field of Trade
      * @param userId id of user
+     * @return the ids of the matching trades
+     * @throws IOException An IOException
      */
-    private boolean tradesInvolvesUserAsLender(List<Trade> trades, int userId) {
-        for (Trade trade : trades) {
-            boolean involvesUser = trade.getLenderId() == userId;
-            if (involvesUser) return true;
+    private Set<Integer> tradeIdsWith(String field, int userId) throws IOException {
+        Set<Integer> tradeIds = new HashSet<>();
+        for (Trade trade : gateway.findBy(field, userId, Trade.class)) {
+            tradeIds.add(trade.getKey());
+        }
+        return tradeIds;
+    }
+
+    /**
+     * Get whether any of the trade ids of a transaction are in a set of trade ids
+     *
+     * @param tradeList the trade ids of a transaction
+     * @param tradeIds  the set of trade ids to look for
+     */
+    private boolean containsAny(List<Integer> tradeList, Set<Integer> tradeIds) {
+        for (Integer tradeId : tradeList) {
+            if (tradeIds.contains(tradeId)) return true;
         }
         return false;
     }
@@ -549,27 +577,10 @@ public class TransactionFetcher extends AbstractFetcher {
 
 
     /**
-     * Stores the result of the current fetch.
-     */
-    private List<Transaction> allTransactions = new ArrayList<>();
-    private List<Transaction> currentList = new ArrayList<>();
-
-
-    /**
-     * Reset the all lists this class saved
-     */
-    protected void reset() {
-        this.allTransactions = new ArrayList<>();
-        this.currentList = new ArrayList<>();
-    }
-
-
-    /**
-     * Get all Item Objects and save them into the lists this class had
+     * Start a scan over all Transaction Objects
      */
-    protected void all() throws IOException {
-        this.allTransactions = gateway.all(Transaction.class);
-        this.currentList.addAll(this.allTransactions);
+    protected Scan<Transaction> all() {
+        return new Scan<>(this.gateway, Transaction.class);
     }
 
 
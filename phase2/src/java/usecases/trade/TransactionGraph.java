@@ -0,0 +1,117 @@
+package usecases.trade;
+
+import entities.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The transactions of a query together with the relations asked for with TransactionQueryBuilder.with,
+ * all loaded in one pass: each relation is read for every transaction at once, rather than once per transaction.
+ */
+public class TransactionGraph {
+
+    /**
+     * The transactions, and their relations, or null for the relations that were not asked for.
+     */
+    private final List<Transaction> transactions;
+    private final Map<Integer, List<Trade>> trades;
+    private final Map<Integer, List<Meeting>> meetings;
+    private final Map<Integer, List<Item>> items;
+    private final Map<Integer, User> borrowers;
+    private final Map<Integer, User> lenders;
+
+    /**
+     * Initializes this class.
+     *
+     * @param transactions The transactions
+     * @param trades       A map with the transaction id as key and its trades as value
+     * @param meetings     A map with the transaction id as key and its meetings as value
+     * @param items        A map with the trade id as key and its items as value
+     * @param borrowers    A map with the trade id as key and its borrower as value
+     * @param lenders      A map with the trade id as key and its lender as value
+     */
+    TransactionGraph(List<Transaction> transactions, Map<Integer, List<Trade>> trades, Map<Integer, List<Meeting>> meetings,
+                     Map<Integer, List<Item>> items, Map<Integer, User> borrowers, Map<Integer, User> lenders) {
+        this.transactions = transactions;
+        this.trades = trades;
+        this.meetings = meetings;
+        this.items = items;
+        this.borrowers = borrowers;
+        this.lenders = lenders;
+    }
+
+
+    /**
+     * Get the transactions
+     *
+     * @return list of transactions
+     */
+    public List<Transaction> getTransactions() {
+        return this.transactions;
+    }
+
+    /**
+     * Get a map with transaction id with a list of its trades
+     *
+     * @return a map with transaction id as key and a list of its trades as value
+     * @throws IllegalStateException if "trades" was not asked for.
+     */
+    public Map<Integer, List<Trade>> getTrades() {
+        return this.loaded(this.trades, "trades");
+    }
+
+    /**
+     * Get a map with transaction ids and a list of its meetings
+     *
+     * @return a map with transaction id as key a list of its meeting as value
+     * @throws IllegalStateException if "meetings" was not asked for.
+     */
+    public Map<Integer, List<Meeting>> getMeetings() {
+        return this.loaded(this.meetings, "meetings");
+    }
+
+    /**
+     * Get a map with trade id as key and its list of items as value
+     *
+     * @return a map with trade id as key and list of items as value
+     * @throws IllegalStateException if "trades.items" was not asked for.
+     */
+    public Map<Integer, List<Item>> getItems() {
+        return this.loaded(this.items, "trades.items");
+    }
+
+    /**
+     * Get a map with trade id as key and borrower as value
+     *
+     * @return a map with trade id as key and borrower as value
+     * @throws IllegalStateException if "borrower" was not asked for.
+     */
+    public Map<Integer, User> getBorrowers() {
+        return this.loaded(this.borrowers, "borrower");
+    }
+
+    /**
+     * Get a map with trade id as key and lender as value
+     *
+     * @return a map with trade id as key and lender as value
+     * @throws IllegalStateException if "lender" was not asked for.
+     */
+    public Map<Integer, User> getLenders() {
+        return this.loaded(this.lenders, "lender");
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper Methods
+ *
+ *********************************************************************************************************/
+
+    private <T> T loaded(T relation, String relationName) {
+        if (relation == null) throw new IllegalStateException("Add with(\"" + relationName + "\") to the query to load " + relationName);
+        return relation;
+    }
+
+
+}
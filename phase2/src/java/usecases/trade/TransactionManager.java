@@ -114,16 +114,26 @@ public class TransactionManager {
      * @param meetingDate      the date of first meeting
      * @param meetingLocation1 first location of meeting
      * @param meetingLocation2 second location of meeting
+     * @return the id of the created transaction
      */
     public int buildTransaction(int borrowerId, int lenderId, int borrowedItemId, int lendItemId, String tradeType,
                                 String tradeDuration, LocalDate meetingDate,
                                 String meetingLocation1, String meetingLocation2)
             throws TooManyItemListsException, IOException, TooManyLocationsException, TooManyTimesException {
 
-        this.setupTrades(borrowerId, lenderId, borrowedItemId, lendItemId, tradeType);
-        this.setupMeetings(tradeDuration, meetingDate, meetingLocation1, meetingLocation2, borrowerId);
-
-        return initiateTransaction(tradeFactory.getTradeId(), meetingFactory.getMeetingId());
+        //Trades, meetings, the transaction and the reserved items are saved together, or not at all
+        this.gateway.beginBatch();
+        try {
+            this.setupTrades(borrowerId, lenderId, borrowedItemId, lendItemId, tradeType);
+            this.setupMeetings(tradeDuration, meetingDate, meetingLocation1, meetingLocation2, borrowerId);
+
+            int transactionId = initiateTransaction(tradeFactory.getTradeId(), meetingFactory.getMeetingId());
+            this.gateway.commit();
+            return transactionId;
+        } catch (Exception e) {
+            this.gateway.rollback();
+            throw e;
+        }
     }
 
 
@@ -164,15 +174,24 @@ public class TransactionManager {
      */
     public void deleteTransaction(int transactionId) throws IOException {
         Transaction transaction = gateway.get(transactionId, Transaction.class);
-        //Make items unreserved
-        Trade trade = gateway.get(transaction.getTradeList().get(0), Trade.class);
-        List<Item> items = gateway.get(trade.getItemList(), Item.class);
-        for (Item item : items) item.setReserved(false);
-        gateway.update(items, Item.class);
-
-        gateway.delete(transaction.getTradeList(), Trade.class);
-        gateway.delete(transaction.getMeetingList(), Meeting.class);
-        gateway.delete(Collections.singletonList(transactionId), Transaction.class);
+
+        //The items are released and the records deleted together, or not at all
+        gateway.beginBatch();
+        try {
+            //Make items unreserved
+            Trade trade = gateway.get(transaction.getTradeList().get(0), Trade.class);
+            List<Item> items = gateway.get(trade.getItemList(), Item.class);
+            for (Item item : items) item.setReserved(false);
+            gateway.update(items, Item.class);
+
+            gateway.delete(transaction.getTradeList(), Trade.class);
+            gateway.delete(transaction.getMeetingList(), Meeting.class);
+            gateway.delete(Collections.singletonList(transactionId), Transaction.class);
+            gateway.commit();
+        } catch (IOException | RuntimeException e) {
+            gateway.rollback();
+            throw e;
+        }
 
     }
 
@@ -11,7 +11,7 @@ import java.util.Map;
 /**
  * Builds a transaction query. This query builder allows the user to chain filters together easily.
  */
-public class TransactionQueryBuilder extends AbstractQueryBuilder {
+public class TransactionQueryBuilder extends AbstractQueryBuilder<Transaction> {
 
     /**
      * Fetcher used to Executes a TransactionQuery
@@ -34,6 +34,12 @@ public class TransactionQueryBuilder extends AbstractQueryBuilder {
         this.booleanFilters.put("isIncomplete", null);
         this.booleanFilters.put("isExpected", null);
         this.dateFilters.put("after", null);
+
+        this.relations.add("trades");
+        this.relations.add("trades.items");
+        this.relations.add("meetings");
+        this.relations.add("borrower");
+        this.relations.add("lender");
     }
 
 
@@ -160,12 +166,42 @@ public class TransactionQueryBuilder extends AbstractQueryBuilder {
     }
 
 
+/********************************************************************************************************
+ *
+ * Eager loading
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Loads these relations along with the transactions, see getGraph.
+     * The relations are "trades", "trades.items", "meetings", and the "borrower" and "lender" of each trade.
+     *
+     * @param relations the names of the relations
+     * @return TransactionQueryBuilder
+     * @throws IllegalArgumentException if a relation is not one of these.
+     */
+    public TransactionQueryBuilder with(String... relations) {
+        this.addEagerRelations(relations);
+        return this;
+    }
+
+
 /********************************************************************************************************
  *
  * Gets relations
  *
  *********************************************************************************************************/
 
+    /**
+     * Get the transactions together with every relation asked for with with, each read for all of them at once
+     *
+     * @return the transactions and their relations
+     * @throws IOException An IOException
+     */
+    public TransactionGraph getGraph() throws IOException {
+        return this.fetcher.getGraph(this);
+    }
+
     /**
      * Get a transaction
      *
@@ -60,7 +60,7 @@ public class Authenticator {
      */
     public int register(String username, String password, String homeCity, boolean isAdmin, boolean isDemo)
             throws IOException, DuplicatedUserNameException {
-        List<User> users = gateway.all(User.class);
+        List<User> users = gateway.findBy("name", username, User.class);
         for (User user : users) {
             if (user.getName().equals(username)) {
                 throw new DuplicatedUserNameException();
@@ -102,7 +102,7 @@ public class Authenticator {
      * @return True if the input email has a duplicate, false if not
      */
     public boolean emailDuplicate(String username) throws IOException {
-        List<User> users = gateway.all(User.class);
+        List<User> users = gateway.findBy("name", username, User.class);
         for (User user : users) {
             if (user.getName().equals(username)) {
                 return true;
@@ -138,7 +138,7 @@ public class Authenticator {
 
     // Private method used as helper method, which returns true iff the credentials is valid
     private int checkCredentials(String username, String password) throws IOException {
-        List<User> users = gateway.all(User.class);
+        List<User> users = gateway.findBy("name", username, User.class);
         for (User user : users) {
             if (user.getName().equals(username) && user.getPassword().equals(password)) {
                 return user.getKey();
@@ -0,0 +1,159 @@
+import entities.*;
+import persistence.Persistable;
+import persistence.codec.BinaryRowCodec;
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares Java serialization with the hand-written binary codecs, for every entity type.
+ * For each type it prints the bytes per row of a saved table, the bytes of a row encoded on its own (as the journal
+ * and the cache hold them), and how many rows per second can be encoded and decoded.
+ * It also checks that the binary codec reads tables saved with Java serialization, which is how existing .ser files
+ * are migrated.
+ * <p>
+ * Run with: java -cp target/classes:target/test-classes CodecBenchmark [rows per type]
+ */
+public class CodecBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        RowCodec java = new JavaRowCodec();
+        RowCodec binary = new BinaryRowCodec();
+
+        System.out.printf("%-12s %-7s %10s %10s %14s %14s%n", "type", "codec", "bytes/row", "row alone",
+                "encode rows/s", "decode rows/s");
+        for (List<? extends Persistable> table : tables(rows)) {
+            String name = table.get(0).getClass().getSimpleName();
+            run(name, "java", java, table);
+            run(name, "binary", binary, table);
+
+            //Migration: a table saved with Java serialization must come back the same through the binary codec
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            java.writeAll(table, saved);
+            List<Persistable> migrated = binary.readAll(new ByteArrayInputStream(saved.toByteArray()));
+            for (int i = 0; i < table.size(); i++) {
+                if (!Arrays.equals(binary.encode(table.get(i)), binary.encode(migrated.get(i)))) {
+                    throw new IllegalStateException(name + " row " + i + " did not survive the migration");
+                }
+            }
+        }
+
+    }
+
+
+    private static void run(String name, String codecName, RowCodec codec, List<? extends Persistable> table) throws IOException {
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        codec.writeAll(table, saved);
+        double bytesPerRow = (double) saved.size() / table.size();
+
+        List<byte[]> encoded = new ArrayList<>();
+        long singleBytes = 0;
+        for (Persistable p : table) {
+            encoded.add(codec.encode(p));
+            singleBytes += encoded.get(encoded.size() - 1).length;
+        }
+
+        //The first round warms up the JIT, the best of the rest is reported
+        long bestEncode = Long.MAX_VALUE;
+        long bestDecode = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (Persistable p : table) codec.encode(p);
+            long encode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] row : encoded) codec.decode(row);
+            long decode = System.nanoTime() - start;
+
+            if (round > 0) {
+                bestEncode = Math.min(bestEncode, encode);
+                bestDecode = Math.min(bestDecode, decode);
+            }
+        }
+
+        System.out.printf("%-12s %-7s %10.1f %10.1f %14.0f %14.0f%n", name, codecName, bytesPerRow,
+                (double) singleBytes / table.size(), table.size() / (bestEncode / 1e9), table.size() / (bestDecode / 1e9));
+
+    }
+
+
+    private static List<List<? extends Persistable>> tables(int rows) {
+
+        List<Item> items = new ArrayList<>();
+        List<User> users = new ArrayList<>();
+        List<Trade> trades = new ArrayList<>();
+        List<Transaction> transactions = new ArrayList<>();
+        List<Meeting> meetings = new ArrayList<>();
+        List<Tag> tags = new ArrayList<>();
+        List<WishList> wishLists = new ArrayList<>();
+        List<History> histories = new ArrayList<>();
+        List<Config> configs = new ArrayList<>();
+
+        for (int i = 1; i <= rows; i++) {
+            Item item = new Item("item " + i, "a description of item " + i, i % 500, i % 100, i % 3 == 0);
+            item.setKey(i);
+            item.setVisibility(i % 2 == 0);
+            items.add(item);
+
+            User user = new User("user" + i, "password" + i, "Toronto", i % 50 == 0 ? "admin" : "normal");
+            user.setKey(i);
+            user.setCredit(i % 10);
+            users.add(user);
+
+            Trade trade = new Trade(i % 500, (i + 1) % 500, new ArrayList<>(Arrays.asList(i, i + 1)));
+            trade.setKey(i);
+            trades.add(trade);
+
+            Transaction transaction = new Transaction(new ArrayList<>(Arrays.asList(i)), new ArrayList<>(Arrays.asList(i, i + 1)));
+            transaction.setKey(i);
+            transactions.add(transaction);
+
+            Meeting meeting = new Meeting(LocalDate.of(2020, 8, 1).plusDays(i % 300), "Bahen Centre", i % 500);
+            meeting.editLocation("Robarts Library");
+            meeting.setLastEditor((i + 1) % 500);
+            meeting.markConfirmed(i % 500);
+            meeting.setKey(i);
+            meetings.add(meeting);
+
+            Tag tag = new Tag("tag" + i);
+            tag.associateItem(i);
+            tag.associateItem(i + 1);
+            tag.setKey(i);
+            tags.add(tag);
+
+            WishList wishList = new WishList(i);
+            wishList.addWishList(i + 2);
+            wishList.setKey(i);
+            wishLists.add(wishList);
+
+            History history = new History();
+            history.setActionName("AddToWishlist");
+            history.setDisplayString("User " + i + " added an item to their wishlist");
+            history.addData("itemId", i);
+            history.addData("userId", i % 500);
+            history.addData("meetingDate", LocalDate.of(2020, 8, 1));
+            history.setKey(i);
+            histories.add(history);
+
+            Config config = new Config().setConfigName("config" + i).setConfigValue(String.valueOf(i));
+            config.setKey(i);
+            configs.add(config);
+        }
+
+        return Arrays.asList(items, users, trades, transactions, meetings, tags, wishLists, histories, configs);
+
+    }
+
+}
@@ -0,0 +1,176 @@
+import entities.*;
+import org.junit.jupiter.api.Test;
+import persistence.Persistable;
+import persistence.codec.BinaryRowCodec;
+import persistence.codec.JavaRowCodec;
+import persistence.codec.RowCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Saves one row of every entity type with each codec, one row at a time (as the journal and the cache hold them) and
+ * as a whole table (as the .ser files hold them), and checks that every field comes back as it was saved.
+ * Also checks that the binary codec reads what Java serialization saved, which is how existing files are migrated.
+ * <p>
+ * Rows are compared field by field, after a copy through Java serialization, which decodes the fields that the binary
+ * codec only decodes when they are first read.
+ */
+class CodecRoundTripTest {
+
+    private final RowCodec java = new JavaRowCodec();
+    private final RowCodec binary = new BinaryRowCodec();
+
+
+    @Test
+    void javaRowsRoundTrip() throws IOException {
+        for (Persistable row : rows()) this.assertSame(row, this.java.decode(this.java.encode(row)));
+    }
+
+
+    @Test
+    void binaryRowsRoundTrip() throws IOException {
+        for (Persistable row : rows()) this.assertSame(row, this.binary.decode(this.binary.encode(row)));
+    }
+
+
+    @Test
+    void javaTablesRoundTrip() throws IOException {
+        this.assertTableSurvives(this.java, this.java);
+    }
+
+
+    @Test
+    void binaryTablesRoundTrip() throws IOException {
+        this.assertTableSurvives(this.binary, this.binary);
+    }
+
+
+    @Test
+    void binaryReadsJavaRowsAndTables() throws IOException {
+        for (Persistable row : rows()) this.assertSame(row, this.binary.decode(this.java.encode(row)));
+        this.assertTableSurvives(this.java, this.binary);
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    private void assertTableSurvives(RowCodec writer, RowCodec reader) throws IOException {
+
+        for (Persistable row : rows()) {
+            List<Persistable> table = Arrays.asList(row, row);
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            writer.writeAll(table, saved);
+            List<Persistable> read = reader.readAll(new ByteArrayInputStream(saved.toByteArray()));
+            assertEquals(table.size(), read.size(), row.getClass().getSimpleName());
+            for (Persistable p : read) this.assertSame(row, p);
+        }
+
+    }
+
+
+    /**
+     * Checks that two rows have the same class and the same value in every field that is saved.
+     */
+    private void assertSame(Persistable expected, Persistable actual) throws IOException {
+
+        assertEquals(expected.getClass(), actual.getClass());
+        Persistable left = this.java.decode(this.java.encode(expected));
+        Persistable right = this.java.decode(this.java.encode(actual));
+        for (Class<?> type = left.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) continue;
+                field.setAccessible(true);
+                try {
+                    assertEquals(field.get(left), field.get(right), type.getSimpleName() + "." + field.getName());
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * One row of every entity type, with every field set to something other than its default.
+     */
+    private static List<Persistable> rows() {
+
+        List<Persistable> rows = new ArrayList<>();
+
+        Item item = new Item("item", "a description with ünïcödé", 3, 42, true);
+        item.setKey(1);
+        item.setVisibility(true);
+        item.setReserved(true);
+        item.setHolderId(4);
+        rows.add(item);
+
+        User user = new User("user", "password", "Toronto", "admin");
+        user.setKey(2);
+        user.setCredit(7);
+        rows.add(user);
+
+        Trade trade = new Trade(3, 4, new ArrayList<>(Arrays.asList(5, 6)));
+        trade.setComplete(true);
+        trade.setSell(true);
+        trade.setKey(3);
+        rows.add(trade);
+
+        Transaction transaction = new Transaction(new ArrayList<>(Arrays.asList(3)), new ArrayList<>(Arrays.asList(8, 9)));
+        transaction.setKey(4);
+        rows.add(transaction);
+
+        Meeting meeting = new Meeting(LocalDate.of(2020, 8, 1), "Bahen Centre", 3);
+        meeting.editLocation("Robarts Library");
+        meeting.setLastEditor(4);
+        meeting.markConfirmed(3);
+        meeting.markAgreed();
+        meeting.setSecondMeeting(true);
+        meeting.setKey(5);
+        rows.add(meeting);
+
+        Tag tag = new Tag("tag");
+        tag.associateItem(1);
+        tag.associateItem(2);
+        tag.setKey(6);
+        rows.add(tag);
+
+        WishList wishList = new WishList(2);
+        wishList.addWishList(1);
+        wishList.addWishList(9);
+        wishList.setKey(7);
+        rows.add(wishList);
+
+        History history = new History();
+        history.setActionName("AddToWishlist");
+        history.setDisplayString("User 2 added an item to their wishlist");
+        history.addData("itemId", 1);
+        history.addData("userId", 2);
+        history.addData("meetingDate", LocalDate.of(2020, 8, 1));
+        history.setUndone(true);
+        history.setKey(8);
+        rows.add(history);
+
+        Config config = new Config().setConfigName("config").setConfigValue("value");
+        config.setKey(9);
+        rows.add(config);
+
+        return rows;
+
+    }
+
+}
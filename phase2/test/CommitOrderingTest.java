@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import persistence.CachingPersistenceGateway;
+import persistence.Persistable;
+import persistence.SerPersistenceGateway;
+import persistence.codec.JavaRowCodec;
+import persistence.sequence.SequenceAllocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Commits updates to the same rows from many threads through a CachingPersistenceGateway that saves them in groups,
+ * with and without write-behind, and checks that the storage is given the updates to each row in the order they
+ * were committed, and that the last one is what a gateway started afterwards reads.
+ */
+class CommitOrderingTest {
+
+    private static final int THREADS = 8;
+    private static final int UPDATES = 50;
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    void groupCommitKeepsOrder() throws Exception {
+        this.run(false);
+    }
+
+
+    @Test
+    void writeBehindKeepsOrder() throws Exception {
+        this.run(true);
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Has each thread update a row of its own, and every thread update one shared row, UPDATES times each.
+     */
+    private void run(boolean writeBehind) throws Exception {
+
+        Map<Integer, List<Integer>> saved = new HashMap<>();
+        SerPersistenceGateway storage = new SerPersistenceGateway(new JavaRowCodec(), this.keys(), 256, this.directory, null) {
+            @Override
+            public <T extends Persistable> boolean update(List<T> rows, Class<T> type) throws IOException {
+                synchronized (saved) {
+                    for (T row : rows) saved.computeIfAbsent(row.getKey(), key -> new ArrayList<>()).add(value((Rows.Row) row));
+                }
+                return super.update(rows, type);
+            }
+        };
+        CachingPersistenceGateway gateway = new CachingPersistenceGateway(storage, new JavaRowCodec(),
+                this.keys(), 8, 5, writeBehind);
+
+        //Row 1 is shared, row 2 + t belongs to thread t
+        for (int i = 0; i <= THREADS; i++) gateway.create(new Rows.Row("0"), Rows.Row.class);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int own = 2 + t;
+            futures.add(pool.submit(() -> {
+                for (int i = 1; i <= UPDATES; i++) {
+                    gateway.update(new Rows.Row(own, String.valueOf(i)), Rows.Row.class);
+                    //The shared row counts up, so only one thread at a time reads and writes it
+                    synchronized (gateway) {
+                        Rows.Row shared = gateway.get(1, Rows.Row.class);
+                        gateway.update(new Rows.Row(1, String.valueOf(value(shared) + 1)), Rows.Row.class);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        pool.shutdown();
+        gateway.close();
+
+        for (Map.Entry<Integer, List<Integer>> row : saved.entrySet()) {
+            List<Integer> values = row.getValue();
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue(values.get(i - 1) < values.get(i), "row " + row.getKey() + " was saved out of order: " + values);
+            }
+        }
+
+        SerPersistenceGateway restarted = new SerPersistenceGateway(new JavaRowCodec(), this.keys(), 256, this.directory, null);
+        assertEquals(THREADS * UPDATES, value(restarted.get(1, Rows.Row.class)));
+        for (int t = 0; t < THREADS; t++) assertEquals(UPDATES, value(restarted.get(2 + t, Rows.Row.class)));
+
+    }
+
+
+    private SequenceAllocator keys() {
+        return new SequenceAllocator(64, this.directory);
+    }
+
+
+    /**
+     * The rows of this test count up, so their values are numbers.
+     */
+    private static int value(Rows.Row row) {
+        return Integer.parseInt(row.value);
+    }
+
+}
@@ -0,0 +1,160 @@
+import entities.*;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import persistence.JdbcPersistenceGateway;
+import persistence.Persistable;
+import persistence.PersistenceInterface;
+import persistence.codec.BinaryRowCodec;
+import persistence.relations.RelationMapper;
+import usecases.items.ItemFetcher;
+import usecases.items.ItemQueryBuilder;
+import usecases.trade.TransactionFetcher;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs many different queries through one ItemFetcher and one TransactionFetcher from many threads at once, as the
+ * singletons in SpringConfig are used by the request threads, and checks that every query gets exactly the results
+ * it gets when it runs alone.
+ * <p>
+ * The rows are kept in an in-memory H2 database, so that nothing is written to the working directory.
+ */
+class FetcherConcurrencyTest {
+
+    private static final int USERS = 8;
+    private static final int ITEMS = 200;
+    private static final int THREADS = 16;
+    private static final int QUERIES = 1600;
+
+    private static JdbcConnectionPool database;
+    private static ItemFetcher items;
+    private static TransactionFetcher transactions;
+
+
+    @BeforeAll
+    static void seed() throws IOException {
+
+        database = JdbcConnectionPool.create("jdbc:h2:mem:fetcher-concurrency", "sa", "");
+        database.setMaxConnections(THREADS + 1);
+        PersistenceInterface gateway = new JdbcPersistenceGateway(database, new BinaryRowCodec());
+        RelationMapper relations = new RelationMapper(gateway);
+        items = new ItemFetcher(gateway, relations);
+        transactions = new TransactionFetcher(gateway, relations);
+
+        Random random = new Random(24);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) users.add(new User("user" + i, "password", "city" + (i % 3), "active"));
+        gateway.create(users, User.class);
+
+        List<Item> itemList = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++) {
+            itemList.add(new Item("item" + i, "description", 1 + random.nextInt(USERS), i, random.nextBoolean()));
+        }
+        gateway.create(itemList, Item.class);
+
+        for (int i = 0; i < 40; i++) {
+            int lender = 1 + random.nextInt(USERS);
+            int borrower = 1 + random.nextInt(USERS);
+            Trade trade = gateway.create(new Trade(lender, borrower, Collections.singletonList(1 + random.nextInt(ITEMS))), Trade.class);
+            Meeting meeting = gateway.create(new Meeting(LocalDate.now().plusDays(i), "location", lender), Meeting.class);
+            gateway.create(new Transaction(Collections.singletonList(trade.getKey()),
+                    Collections.singletonList(meeting.getKey())), Transaction.class);
+        }
+
+    }
+
+
+    @AfterAll
+    static void drop() {
+        database.dispose();
+    }
+
+
+    @Test
+    void fetchersKeepNoStateAboutTheirQueries() {
+
+        for (Class<?> fetcher : Arrays.asList(ItemFetcher.class, TransactionFetcher.class)) {
+            for (Class<?> type = fetcher; type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    assertTrue(Modifier.isFinal(field.getModifiers()), type.getSimpleName() + "." + field.getName() + " is not final");
+                }
+            }
+        }
+
+    }
+
+
+    @Test
+    void concurrentQueriesDoNotSeeEachOthersResults() throws Exception {
+
+        //What each query returns when it runs alone
+        List<Callable<Object>> queries = new ArrayList<>();
+        for (int i = 1; i <= USERS; i++) {
+            int user = i;
+            queries.add(() -> items.query().onlyOwnedBy(user).getIds());
+            queries.add(() -> items.query().exceptOwnedBy(user).forSell().getIds());
+            queries.add(() -> items.query().onlyHeldBy(user).getNames());
+            queries.add(() -> items.query().findByHomeCity(user).exceptOwnedBy(user).getIds());
+            queries.add(() -> keys(transactions.query().involvesUser(user).getTransactions()));
+            queries.add(() -> transactions.query().involvesUserAsBorrower(user).getBorrowerIds());
+        }
+        for (int i = 1; i <= ITEMS; i += 17) {
+            int item = i;
+            queries.add(() -> {
+                //The first result, then all of them, from the same query
+                ItemQueryBuilder query = items.query().findById(item);
+                Item first = query.getObject();
+                return Arrays.asList(first == null ? null : first.getKey(), keys(query.getObjects()));
+            });
+            queries.add(() -> keys(transactions.query().involvesItem(item).getTransactions()));
+        }
+        List<Object> expected = new ArrayList<>();
+        for (Callable<Object> query : queries) expected.add(query.call());
+
+        //Then every query at once, in a random order, from many threads
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger mismatches = new AtomicInteger();
+        List<Future<?>> runs = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < QUERIES; i++) {
+            int query = random.nextInt(queries.size());
+            runs.add(threads.submit(() -> {
+                start.await();
+                if (!expected.get(query).equals(queries.get(query).call())) mismatches.incrementAndGet();
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> run : runs) run.get(60, TimeUnit.SECONDS);
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(0, mismatches.get(), "queries that got results other than their own");
+
+    }
+
+
+    private static List<Integer> keys(List<? extends Persistable> rows) {
+
+        List<Integer> keys = new ArrayList<>();
+        for (Persistable row : rows) keys.add(row.getKey());
+        return keys;
+
+    }
+
+
+}
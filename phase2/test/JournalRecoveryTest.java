@@ -0,0 +1,183 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import persistence.JournalPersistenceGateway;
+import persistence.codec.JavaRowCodec;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Leaves the files of a JournalPersistenceGateway as a crash would, and checks what a gateway started afterwards
+ * reads: a record torn half way through an append, a unit of work whose batch log was synced but whose records only
+ * reached some of the journals, and a batch log that was itself torn. Also checks that deletes survive a snapshot,
+ * and that a rollback only undoes its own changes.
+ */
+class JournalRecoveryTest {
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    void tornAppendIsDropped() throws IOException {
+
+        JournalPersistenceGateway gateway = this.gateway();
+        gateway.create(Arrays.asList(new Rows.Row("a"), new Rows.Row("b")), Rows.Row.class);
+        gateway.update(new Rows.Row(2, "b2"), Rows.Row.class);
+        long valid = this.journal(Rows.Row.class).length();
+
+        //An update of row 1 that stopped after its header and part of its bytes
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(this.journal(Rows.Row.class), true))) {
+            output.writeByte(2);
+            output.writeInt(1);
+            output.writeInt(100);
+            output.write(new byte[10]);
+        }
+
+        JournalPersistenceGateway restarted = this.gateway();
+        assertEquals(Arrays.asList("a", "b2"), Rows.values(restarted.all(Rows.Row.class)));
+        assertEquals(valid, this.journal(Rows.Row.class).length());
+
+        //New records go after the last whole one, so they can be read back
+        restarted.create(new Rows.Row("c"), Rows.Row.class);
+        assertEquals(Arrays.asList("a", "b2", "c"), Rows.values(this.gateway().all(Rows.Row.class)));
+
+    }
+
+
+    @Test
+    void interruptedBatchLogIsAppendedAgain() throws IOException {
+
+        JournalPersistenceGateway gateway = this.gateway();
+        gateway.create(new Rows.Row("a"), Rows.Row.class);
+        gateway.create(new Rows.Other("x"), Rows.Other.class);
+        long rows = this.journal(Rows.Row.class).length();
+        long others = this.journal(Rows.Other.class).length();
+
+        gateway.beginBatch();
+        gateway.update(new Rows.Row(1, "a2"), Rows.Row.class);
+        gateway.create(new Rows.Other("y"), Rows.Other.class);
+        gateway.commit();
+
+        //Put the batch log back as it was synced, with the records of the row journal appended in full, and the
+        //append to the other journal torn part of the way through
+        byte[] rowRecords = this.tail(Rows.Row.class, rows);
+        byte[] otherRecords = this.tail(Rows.Other.class, others);
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(this.batchLog()))) {
+            output.writeInt(2);
+            output.writeUTF(Rows.Row.class.getName());
+            output.writeInt(rowRecords.length);
+            output.write(rowRecords);
+            output.writeUTF(Rows.Other.class.getName());
+            output.writeInt(otherRecords.length);
+            output.write(otherRecords);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(this.journal(Rows.Other.class), "rw")) {
+            file.setLength(others + 3);
+        }
+
+        JournalPersistenceGateway restarted = this.gateway();
+        assertFalse(this.batchLog().exists());
+        assertEquals(Arrays.asList("a2"), Rows.values(restarted.all(Rows.Row.class)));
+        assertEquals(Arrays.asList("x", "y"), Rows.values(restarted.all(Rows.Other.class)));
+
+    }
+
+
+    @Test
+    void tornBatchLogIsIgnored() throws IOException {
+
+        JournalPersistenceGateway gateway = this.gateway();
+        gateway.create(new Rows.Row("a"), Rows.Row.class);
+        long rows = this.journal(Rows.Row.class).length();
+
+        //The unit of work never committed, since its batch log stops half way through its records
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(this.batchLog()))) {
+            output.writeInt(1);
+            output.writeUTF(Rows.Row.class.getName());
+            output.writeInt(100);
+            output.write(new byte[10]);
+        }
+
+        JournalPersistenceGateway restarted = this.gateway();
+        assertFalse(this.batchLog().exists());
+        assertEquals(rows, this.journal(Rows.Row.class).length());
+        assertEquals(Arrays.asList("a"), Rows.values(restarted.all(Rows.Row.class)));
+
+    }
+
+
+    @Test
+    void deletesSurviveSnapshot() throws IOException {
+
+        JournalPersistenceGateway gateway = this.gateway();
+        gateway.create(Arrays.asList(new Rows.Row("a"), new Rows.Row("b"), new Rows.Row("c"), new Rows.Row("d")), Rows.Row.class);
+        gateway.delete(Arrays.asList(2, 4), Rows.Row.class);
+        assertEquals(Arrays.asList("a", "c"), Rows.values(this.gateway().all(Rows.Row.class)));
+
+        gateway.snapshotAll();
+        assertFalse(this.journal(Rows.Row.class).exists());
+        assertEquals(Arrays.asList("a", "c"), Rows.values(this.gateway().all(Rows.Row.class)));
+
+    }
+
+    @Test
+    void rollbackOnlyUndoesItsOwnKeys() throws IOException {
+
+        JournalPersistenceGateway gateway = this.gateway();
+        gateway.create(Arrays.asList(new Rows.Row("a"), new Rows.Row("b")), Rows.Row.class);
+
+        gateway.beginBatch();
+        gateway.create(new Rows.Row("c"), Rows.Row.class);
+        gateway.delete(Arrays.asList(1), Rows.Row.class);
+        gateway.rollback();
+
+        //Row 1 can be updated again, and row 3 was never saved, and its key is not handed out again
+        assertTrue(gateway.update(new Rows.Row(1, "a2"), Rows.Row.class));
+        assertEquals(4, gateway.create(new Rows.Row("d"), Rows.Row.class).getKey());
+        assertEquals(Arrays.asList("a2", "b", "d"), Rows.values(this.gateway().all(Rows.Row.class)));
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * A new gateway, which knows nothing of what the others have done except through the files.
+     * Snapshots are only taken when asked for.
+     */
+    private JournalPersistenceGateway gateway() {
+        return new JournalPersistenceGateway(Integer.MAX_VALUE, 3600, new JavaRowCodec(), this.directory);
+    }
+
+
+    private File journal(Class<?> type) {
+        return new File(this.directory, "serfile" + type.getName() + ".journal");
+    }
+
+
+    private File batchLog() {
+        return new File(this.directory, "serfile.batch");
+    }
+
+
+    /**
+     * Reads the bytes appended to the journal of a type after the given length.
+     */
+    private byte[] tail(Class<?> type, long from) throws IOException {
+
+        byte[] all = Files.readAllBytes(this.journal(type).toPath());
+        return Arrays.copyOfRange(all, (int) from, all.length);
+
+    }
+
+}
@@ -0,0 +1,84 @@
+import persistence.Persistable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The row types that the storage tests save, and helpers to read them back.
+ * The tests keep their files in a temporary directory of their own, which JUnit deletes afterwards.
+ */
+final class Rows {
+
+    private Rows() {
+    }
+
+
+    /**
+     * A row with a value, which is all the storage tests need to tell their rows apart.
+     */
+    static class Row implements Persistable {
+
+        private int id;
+        final String value;
+
+        Row(String value) {
+            this(0, value);
+        }
+
+        Row(int id, String value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        @Override
+        public int getKey() {
+            return this.id;
+        }
+
+        @Override
+        public void setKey(int id) {
+            this.id = id;
+        }
+
+    }
+
+
+    /**
+     * A row of a second type, for tests that change several types at once.
+     */
+    static class Other extends Row {
+
+        Other(String value) {
+            super(value);
+        }
+
+    }
+
+
+    static List<Row> rows(int count) {
+
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) rows.add(new Row("row" + i));
+        return rows;
+
+    }
+
+
+    static List<String> values(List<? extends Row> rows) {
+
+        List<String> values = new ArrayList<>();
+        for (Row row : rows) values.add(row.value);
+        return values;
+
+    }
+
+
+    static List<Integer> keys(List<? extends Row> rows) {
+
+        List<Integer> keys = new ArrayList<>();
+        for (Row row : rows) keys.add(row.getKey());
+        return keys;
+
+    }
+
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import persistence.SerPersistenceGateway;
+import persistence.codec.JavaRowCodec;
+import persistence.sequence.SequenceAllocator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Deletes rows from a SerPersistenceGateway with a low compact threshold, and checks that the deleted rows stay
+ * deleted for a gateway started afterwards: while they are only tombstones, once the file has been compacted, and
+ * once a create has rewritten the file.
+ * <p>
+ * The gateways compact on the thread that deletes, so a compaction is over by the time the delete returns.
+ */
+class SerCompactionTest {
+
+    private static final int THRESHOLD = 4;
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    void deletesSurviveTombstonesAndCompaction() throws IOException {
+
+        SerPersistenceGateway gateway = this.gateway();
+        gateway.create(Rows.rows(10), Rows.Row.class);
+
+        //Below the threshold, the deleted rows are still in the file, and only skipped
+        gateway.delete(Arrays.asList(1, 2, 3), Rows.Row.class);
+        assertTrue(this.file(".tombstones").exists());
+        assertEquals(10, this.rowsInFile());
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8, 9, 10), Rows.keys(this.gateway().all(Rows.Row.class)));
+
+        //At the threshold, the file is rewritten without them
+        gateway.delete(Arrays.asList(4, 5), Rows.Row.class);
+        assertFalse(this.file(".tombstones").exists());
+        assertEquals(5, this.rowsInFile());
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10), Rows.keys(this.gateway().all(Rows.Row.class)));
+
+    }
+
+
+    @Test
+    void deletesSurviveARewrite() throws IOException {
+
+        SerPersistenceGateway gateway = this.gateway();
+        gateway.create(Rows.rows(5), Rows.Row.class);
+        gateway.delete(Arrays.asList(2), Rows.Row.class);
+
+        //A unit of work that only deletes buries the rows without reading the file
+        gateway.beginBatch();
+        gateway.delete(Arrays.asList(3), Rows.Row.class);
+        gateway.commit();
+        assertEquals(Arrays.asList(1, 4, 5), Rows.keys(this.gateway().all(Rows.Row.class)));
+
+        //A create rewrites the file, leaving the dead rows out and dropping the tombstones
+        gateway.create(new Rows.Row("new"), Rows.Row.class);
+        assertFalse(this.file(".tombstones").exists());
+        assertEquals(4, this.rowsInFile());
+        assertEquals(Arrays.asList(6, 1, 4, 5), Rows.keys(this.gateway().all(Rows.Row.class)));
+
+    }
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * A new gateway, which knows nothing of what the others have done except through the files.
+     */
+    private SerPersistenceGateway gateway() {
+        return new SerPersistenceGateway(new JavaRowCodec(), new SequenceAllocator(64, this.directory), THRESHOLD,
+                this.directory, Runnable::run);
+    }
+
+
+    private File file(String extension) {
+        return new File(this.directory, "serfile" + Rows.Row.class.getName() + extension);
+    }
+
+
+    /**
+     * Counts the rows in the file, including the ones that are deleted but not compacted yet.
+     */
+    private int rowsInFile() throws IOException {
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(this.file(".ser")))) {
+            return new JavaRowCodec().readAll(input).size();
+        }
+
+    }
+
+}